@@ -87,6 +87,8 @@ public class AppUiMessageHandler extends UiMessageHandler {
                     break;
                 case "removeInterface": removeInterface(payload.get(command).textValue(), payload.get("interface"));
                     break;
+                case "updateInterface": updateInterface(payload.get(command).textValue(), payload.get("interface"));
+                    break;
                 case "requestStatistics": requestStatistics(payload.get(command).textValue());
                     break;
                 default: log.info("Error processing command: " + command);
@@ -97,28 +99,43 @@ public class AppUiMessageHandler extends UiMessageHandler {
         private void requestStatistics(String device) {
             DeviceId deviceId = DeviceId.deviceId(device);
             WanGateway gateway = sdwanService.getGateway(deviceId);
+            if (gateway == null) {
+                return;
+            }
+            //Each map is a separate snapshot, an interface added or removed in between is only in some of them
             Map<PortNumber, WanInterface> intfs = gateway.getInterfaces();
+            Map<PortNumber, CurrentPortStatistics> stats = gateway.getInterfaceStatistics();
+            Map<PortNumber, LinkQuality> quality = gateway.getInterfaceQuality();
             ObjectNode result = objectNode();
-            result.put("interfacesSize", intfs.size());
             result.put("statisticsResponse", true);
 
-            Map<PortNumber, CurrentPortStatistics> stats = gateway.getInterfaceStatistics();
-
             int i = 0;
-            for (PortNumber port : stats.keySet()) {
+            for (Map.Entry<PortNumber, WanInterface> entry : intfs.entrySet()) {
+                PortNumber port = entry.getKey();
+                CurrentPortStatistics portStats = stats.get(port);
+                if (portStats == null) {
+                    continue;
+                }
                 ObjectNode intfStats = objectNode();
 
-                intfStats.put("totalBytes", stats.get(port).totalBytes);
-                intfStats.put("mbps", stats.get(port).bitsPerSecond / 1000000.0);
+                intfStats.put("totalBytes", portStats.totalBytes);
+                intfStats.put("mbps", portStats.bitsPerSecond / 1000000.0);
+                intfStats.put("uplinkUse", Math.round(portStats.uplinkUtilisation * 100));
+                intfStats.put("downlinkUse", Math.round(portStats.downlinkUtilisation * 100));
+                intfStats.put("quality", quality.getOrDefault(port, LinkQuality.UNKNOWN).toString());
                 intfStats.put("portNumber", port.toString());
-                intfStats.put("name", intfs.get(port).getName());
-                intfStats.put("errors", stats.get(port).packetErrors);
-                intfStats.put("dropped", stats.get(port).packetsDropped);
-                intfStats.put("enabled", intfs.get(port).getState());
+                intfStats.put("name", entry.getValue().getName());
+                intfStats.put("errors", portStats.packetErrors);
+                intfStats.put("dropped", portStats.packetsDropped);
+                intfStats.put("enabled", entry.getValue().getState());
+                intfStats.put("natSessions", gateway.getNatSessionCount(port));
 
                 result.set("interface" + i, intfStats);
                 i++;
             }
+            result.put("interfacesSize", i);
+            result.put("natMemoryReport", gateway.getNatMemoryReport());
+            result.put("failoverReport", gateway.getFailoverReport());
             sendMessage(SDWAN_INTERFACE_DATA_RESP, result);
         }
 
@@ -142,6 +159,44 @@ public class AppUiMessageHandler extends UiMessageHandler {
             requestInterfaces(device);
         }
 
+        private void updateInterface(String device, JsonNode intf) {
+            DeviceId deviceId = DeviceId.deviceId(device);
+            String errorSourceFlag = "No Error";
+            try {
+                errorSourceFlag = "Port Number";
+                PortNumber port = PortNumber.portNumber(intf.get("intfPort").textValue());
+
+                errorSourceFlag = "Bandwidth";
+                String[] bandwidths = intf.get("intfBandwidth").textValue().split("/");
+                int uplinkBandwidth = Integer.valueOf(bandwidths[0].trim());
+                int downlinkBandwidth = bandwidths.length > 1 ? Integer.valueOf(bandwidths[1].trim()) : uplinkBandwidth;
+
+                errorSourceFlag = "Next Hop";
+                Ip4Address nextHop = parseNextHop(intf);
+
+                errorSourceFlag = "setInterfaceBandwidth() in SDWANService";
+                sdwanService.setInterfaceBandwidth(deviceId, port, uplinkBandwidth, downlinkBandwidth);
+                errorSourceFlag = "setInterfaceNextHop() in SDWANService";
+                sdwanService.setInterfaceNextHop(deviceId, port, nextHop);
+            } catch (Exception ex) {
+                log.info("Error updating interface of device: " + device + " due to error processing: " + errorSourceFlag);
+            }
+
+            //Refresh table of interfaces
+            requestInterfaces(device);
+        }
+
+        /**
+         * @return The address of the interface's next hop router, or null if it is left to the link probes to learn
+         */
+        private Ip4Address parseNextHop(JsonNode intf) {
+            JsonNode nextHop = intf.get("intfNextHop");
+            if (nextHop == null || nextHop.textValue().trim().isEmpty()) {
+                return null;
+            }
+            return Ip4Address.valueOf(nextHop.textValue().trim());
+        }
+
         private void addInterface(String device, JsonNode intf) {
             DeviceId deviceId = DeviceId.deviceId(device);
             String errorSourceFlag = "No Error";
@@ -158,11 +213,18 @@ public class AppUiMessageHandler extends UiMessageHandler {
                 errorSourceFlag = "Interface Name";
                 String name = intf.get("intfName").textValue();
 
+                //Either a single bandwidth, or the uplink and downlink bandwidths as "up/down"
                 errorSourceFlag = "Bandwidth";
-                int bandwidth = Integer.valueOf(intf.get("intfBandwidth").textValue());
+                String[] bandwidths = intf.get("intfBandwidth").textValue().split("/");
+                int uplinkBandwidth = Integer.valueOf(bandwidths[0].trim());
+                int downlinkBandwidth = bandwidths.length > 1 ? Integer.valueOf(bandwidths[1].trim()) : uplinkBandwidth;
 
                 errorSourceFlag = "Invalid Interface";
-                WanInterface newIntf = new WanInterface(name, mac, ip, bandwidth);
+                WanInterface newIntf = new WanInterface(name, mac, ip, uplinkBandwidth, downlinkBandwidth);
+
+                //The address of the interface's next hop router is optional, the link probes learn it otherwise
+                errorSourceFlag = "Next Hop";
+                newIntf.setNextHop(parseNextHop(intf));
 
                 sdwanService.addInterface(deviceId, port, newIntf);
 
@@ -208,11 +270,10 @@ public class AppUiMessageHandler extends UiMessageHandler {
                 intfNode.put("name", intf.getName());
                 intfNode.put("portNumber", port.toString());
 
-                int bandwidth = intf.getBandwidth();
-
                 intfNode.put("ip", intf.getIp4Address().toString());
                 intfNode.put("mac", intf.getMacAddress().toString());
-                intfNode.put("bandwidth", bandwidth);
+                intfNode.put("nextHop", intf.getNextHop() != null ? intf.getNextHop().toString() : "");
+                intfNode.put("bandwidth", intf.getUplinkBandwidth() + "/" + intf.getDownlinkBandwidth());
                 result.set("interface" + i, intfNode);
                 i++;
             }
@@ -4,20 +4,31 @@ import org.onosproject.net.PortNumber;
 
 public class CurrentPortStatistics {
     public long totalBytes;
-    public int bitsPerSecond;
+    //Smoothed rates, received and transmitted by the interface and both together
+    public long bitsPerSecond;
+    public long rxBitsPerSecond;
+    public long txBitsPerSecond;
+    //Share of the interface's capacity in use towards the WAN (transmitted) and from it (received)
+    public double uplinkUtilisation;
+    public double downlinkUtilisation;
     public long packetsDropped;
     public long packetErrors;
 
     public CurrentPortStatistics() {
         this.totalBytes = 0;
         this.bitsPerSecond = 0;
+        this.rxBitsPerSecond = 0;
+        this.txBitsPerSecond = 0;
+        this.uplinkUtilisation = 0;
+        this.downlinkUtilisation = 0;
         this.packetsDropped = 0;
         this.packetErrors = 0;
     }
 
     public String toString() {
         return "Bytes: " + totalBytes + ", bits/sec: " +
-                bitsPerSecond + ", packetsDropped: " + packetsDropped +
+                bitsPerSecond + " (rx " + rxBitsPerSecond + ", tx " + txBitsPerSecond +
+                "), packetsDropped: " + packetsDropped +
                 ", packetErrors: " + packetErrors;
     }
 }
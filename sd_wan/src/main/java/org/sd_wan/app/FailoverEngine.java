@@ -0,0 +1,108 @@
+package org.sd_wan.app;
+
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleOperations;
+import org.onosproject.net.flow.FlowRuleOperationsContext;
+import org.onosproject.net.flow.FlowRuleService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.concurrent.Executors.newSingleThreadExecutor;
+import static org.onlab.util.Tools.groupedThreads;
+
+/**
+ * Moves the NAT sessions of a WAN interface onto the remaining interfaces as soon as the interface goes down,
+ * instead of leaving its traffic blackholed until the rules idle out. The rule changes are applied in
+ * FlowRuleOperations batches, the time from the link-down event to the last batch being installed is recorded
+ * on the gateway.
+ */
+public class FailoverEngine {
+
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final FlowRuleService flowRuleService;
+    private final ExecutorService failoverExecutor =
+            newSingleThreadExecutor(groupedThreads("sdwan", "failover", log));
+
+    private volatile int batchSize = DEFAULT_BATCH_SIZE;
+
+    public FailoverEngine(FlowRuleService flowRuleService) {
+        this.flowRuleService = flowRuleService;
+    }
+
+    /**
+     * Sets the number of installed rules in each flow rule batch
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Invalid failover batch size: " + batchSize);
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Starts moving the sessions of an interface which has gone down, off the device event thread
+     * @param gateway The gateway of the interface, whose path selector no longer chooses the interface
+     * @param port The physical PortNumber of the interface
+     */
+    public void interfaceDown(WanGateway gateway, PortNumber port) {
+        final long startNanos = System.nanoTime();
+        failoverExecutor.execute(() -> failover(gateway, port, startNanos));
+    }
+
+    public void shutdown() {
+        failoverExecutor.shutdown();
+    }
+
+    private void failover(WanGateway gateway, PortNumber port, long startNanos) {
+        NatMigration migration = gateway.migrateInterface(port);
+        if (migration.isEmpty()) {
+            return;
+        }
+
+        //New rules are installed before the old rules of their batch are removed
+        List<FlowRule> installed = migration.getInstalledRules();
+        List<FlowRule> removed = migration.getRemovedRules();
+        int size = batchSize;
+        int batches = Math.max((installed.size() + size - 1) / size, 1);
+        int removedPerBatch = (removed.size() + batches - 1) / batches;
+        AtomicInteger pending = new AtomicInteger(batches);
+
+        for (int batch = 0; batch < batches; batch++) {
+            FlowRuleOperations.Builder ops = FlowRuleOperations.builder();
+            for (FlowRule rule : installed.subList(Math.min(batch * size, installed.size()),
+                    Math.min((batch + 1) * size, installed.size()))) {
+                ops.add(rule);
+            }
+            ops.newStage();
+            for (FlowRule rule : removed.subList(Math.min(batch * removedPerBatch, removed.size()),
+                    Math.min((batch + 1) * removedPerBatch, removed.size()))) {
+                ops.remove(rule);
+            }
+
+            flowRuleService.apply(ops.build(new FlowRuleOperationsContext() {
+                @Override
+                public void onSuccess(FlowRuleOperations ops) {
+                    if (pending.decrementAndGet() == 0) {
+                        long millis = (System.nanoTime() - startNanos) / 1000000;
+                        gateway.recordFailover(migration, millis);
+                        log.info("Failover completed in " + millis + " ms. " + migration);
+                    }
+                }
+
+                @Override
+                public void onError(FlowRuleOperations ops) {
+                    pending.set(-1);
+                    log.warn("Failed to apply failover rules. " + migration);
+                }
+            }));
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package org.sd_wan.app;
+
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleOperations;
+import org.onosproject.net.flow.FlowRuleOperationsContext;
+import org.onosproject.net.flow.FlowRuleService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static org.onlab.util.Tools.groupedThreads;
+
+/**
+ * Collects the NAT flow rules of new connections into FlowRuleOperations batches, so that many
+ * connections are installed with a single flow rule operation. A batch is applied once it reaches the
+ * maximum batch size, or once the flush delay has passed since its first rule was added.
+ * Callbacks of a connection run once every rule of its batch has been installed.
+ */
+public class FlowRuleBatcher {
+
+    public static final int DEFAULT_MAX_BATCH_SIZE = 64;
+    public static final int DEFAULT_FLUSH_DELAY_MILLIS = 2;
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final FlowRuleService flowRuleService;
+    private final ScheduledExecutorService flushExecutor =
+            newSingleThreadScheduledExecutor(groupedThreads("sdwan", "flow-batcher", log));
+
+    private int maxBatchSize;
+    private int flushDelayMillis;
+
+    //Batch currently being filled
+    private FlowRuleOperations.Builder batch;
+    private List<Runnable> batchCallbacks;
+    private List<Runnable> batchFailureCallbacks;
+    private int batchSize;
+    private ScheduledFuture<?> flushTask;
+
+    public FlowRuleBatcher(FlowRuleService flowRuleService) {
+        this(flowRuleService, DEFAULT_MAX_BATCH_SIZE, DEFAULT_FLUSH_DELAY_MILLIS);
+    }
+
+    public FlowRuleBatcher(FlowRuleService flowRuleService, int maxBatchSize, int flushDelayMillis) {
+        this.flowRuleService = flowRuleService;
+        setBatching(maxBatchSize, flushDelayMillis);
+        newBatch();
+    }
+
+    /**
+     * Changes the size and delay limits of future batches
+     * @param maxBatchSize Number of rules at which a batch is applied immediately, 1 disables batching
+     * @param flushDelayMillis Longest time a rule waits in a batch before the batch is applied
+     */
+    public synchronized void setBatching(int maxBatchSize, int flushDelayMillis) {
+        if (maxBatchSize < 1 || flushDelayMillis < 0) {
+            throw new IllegalArgumentException("Invalid flow rule batching: " + maxBatchSize + " rules, "
+                    + flushDelayMillis + " ms");
+        }
+        this.maxBatchSize = maxBatchSize;
+        this.flushDelayMillis = flushDelayMillis;
+    }
+
+    /**
+     * Adds the flow rules of a connection to the current batch
+     * @param rules The rules to install
+     * @param onInstalled Run once all the rules have been installed, may be null
+     */
+    public void submit(FlowRule[] rules, Runnable onInstalled) {
+        submit(rules, onInstalled, null);
+    }
+
+    /**
+     * Adds the flow rules of a connection to the current batch
+     * @param rules The rules to install
+     * @param onInstalled Run once all the rules have been installed, may be null
+     * @param onFailed Run if the batch fails to install, may be null
+     */
+    public synchronized void submit(FlowRule[] rules, Runnable onInstalled, Runnable onFailed) {
+        for (FlowRule rule : rules) {
+            batch.add(rule);
+        }
+        batchSize += rules.length;
+        if (onInstalled != null) {
+            batchCallbacks.add(onInstalled);
+        }
+        if (onFailed != null) {
+            batchFailureCallbacks.add(onFailed);
+        }
+
+        if (batchSize >= maxBatchSize || flushDelayMillis == 0) {
+            flush();
+        } else if (flushTask == null) {
+            flushTask = flushExecutor.schedule(this::flush, flushDelayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Applies the current batch, if it has any rules
+     */
+    public synchronized void flush() {
+        if (flushTask != null) {
+            flushTask.cancel(false);
+            flushTask = null;
+        }
+        if (batchSize == 0) {
+            return;
+        }
+
+        final List<Runnable> callbacks = batchCallbacks;
+        final List<Runnable> failureCallbacks = batchFailureCallbacks;
+        final int rules = batchSize;
+        flowRuleService.apply(batch.build(new FlowRuleOperationsContext() {
+            @Override
+            public void onSuccess(FlowRuleOperations ops) {
+                for (Runnable callback : callbacks) {
+                    try {
+                        callback.run();
+                    } catch (Exception ex) {
+                        log.warn("Error releasing packet after NAT rule installation: " + ex.getMessage());
+                    }
+                }
+            }
+
+            @Override
+            public void onError(FlowRuleOperations ops) {
+                log.warn("Failed to install batch of " + rules + " NAT flow rules");
+                for (Runnable callback : failureCallbacks) {
+                    try {
+                        callback.run();
+                    } catch (Exception ex) {
+                        log.warn("Error rolling back connection after NAT rule failure: " + ex.getMessage());
+                    }
+                }
+            }
+        }));
+        newBatch();
+    }
+
+    /**
+     * Applies any remaining rules and stops the flush timer
+     */
+    public void shutdown() {
+        flush();
+        flushExecutor.shutdown();
+    }
+
+    private void newBatch() {
+        batch = FlowRuleOperations.builder();
+        batchCallbacks = new ArrayList<>();
+        batchFailureCallbacks = new ArrayList<>();
+        batchSize = 0;
+    }
+}
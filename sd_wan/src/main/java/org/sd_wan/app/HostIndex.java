@@ -0,0 +1,79 @@
+package org.sd_wan.app;
+
+import org.onlab.packet.IpAddress;
+import org.onosproject.net.Host;
+import org.onosproject.net.HostId;
+import org.onosproject.net.host.HostService;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The hosts of the network by id and by IP address, kept up to date from host events so that the host of an
+ * address, and with it its MAC address and location, is found in constant time.
+ * Updates are synchronized, lookups read the concurrent maps without locking.
+ */
+public class HostIndex {
+
+    private final Map<HostId, Host> hostsById = new ConcurrentHashMap<>();
+    private final Map<IpAddress, Host> hostsByIp = new ConcurrentHashMap<>();
+
+    /**
+     * Adds a host, or replaces the host with the same id, e.g. after it was updated or moved
+     */
+    public synchronized void add(Host host) {
+        Host oldHost = hostsById.put(host.id(), host);
+        if (oldHost != null) {
+            unindex(oldHost);
+        }
+        for (IpAddress ipAddress : host.ipAddresses()) {
+            hostsByIp.put(ipAddress, host);
+        }
+    }
+
+    public synchronized void remove(HostId hostId) {
+        Host oldHost = hostsById.remove(hostId);
+        if (oldHost != null) {
+            unindex(oldHost);
+        }
+    }
+
+    /**
+     * @return The host with an IP address, or null if no host is known to have it
+     */
+    public Host getByIp(IpAddress ipAddress) {
+        return hostsByIp.get(ipAddress);
+    }
+
+    /**
+     * Looks a host up in the index, asking HostService only if the index does not know the address, and indexes
+     * the host it finds so later lookups of the address do not ask again
+     * @return The host with an IP address, or null if neither knows a host with it
+     */
+    public Host find(IpAddress ipAddress, HostService hostService) {
+        Host host = hostsByIp.get(ipAddress);
+        if (host == null) {
+            Set<Host> found = hostService.getHostsByIp(ipAddress);
+            if (!found.isEmpty()) {
+                host = found.iterator().next();
+                add(host);
+            }
+        }
+        return host;
+    }
+
+    public int size() {
+        return hostsById.size();
+    }
+
+    private void unindex(Host host) {
+        for (IpAddress ipAddress : host.ipAddresses()) {
+            //The address may have moved on to another host since
+            Host indexed = hostsByIp.get(ipAddress);
+            if (indexed != null && indexed.id().equals(host.id())) {
+                hostsByIp.remove(ipAddress);
+            }
+        }
+    }
+}
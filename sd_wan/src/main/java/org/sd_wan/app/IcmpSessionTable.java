@@ -0,0 +1,162 @@
+package org.sd_wan.app;
+
+import java.util.Arrays;
+
+/**
+ * ICMP echo translations of a single WAN interface. Each entry maps a host's echo identifier to a translated
+ * identifier, replies are looked up by their (remote IP, translated identifier) and requests by their
+ * (host IP, host identifier), both in constant time.
+ *
+ * Entries expire once no echo has used them for the timeout. Deadlines are kept in a TimingWheel, so refreshing
+ * and expiring an entry costs O(1) rather than a scan of the table.
+ */
+public class IcmpSessionTable {
+
+    //Returned when there is no translation
+    public static final int NONE = -1;
+
+    public static final long DEFAULT_TIMEOUT_MILLIS = 60000;
+    public static final long TICK_MILLIS = 1000;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final long timeoutMillis;
+
+    private int[] hostIp;
+    private char[] hostId;
+    private int[] remoteIp;
+    private char[] translatedId;
+    // Next free entry for free entries
+    private int[] next;
+    private int freeEntry = NONE;
+    private int highWater = 0;
+    private int size = 0;
+
+    private final LongIntHashMap entriesByHost = new LongIntHashMap();
+    private final LongIntHashMap entriesByRemote = new LongIntHashMap();
+    private final PortAllocator identifiers = new PortAllocator(1, 65535);
+
+    //Started by the first call, as it needs the current time
+    private TimingWheel wheel;
+
+    public IcmpSessionTable() {
+        this(DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    public IcmpSessionTable(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+        grow(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Translates an echo request from a host, reusing the host's translation to the same remote if it has one
+     * @return The translated identifier, or NONE if every identifier is in use
+     */
+    public int translateOut(int hostIpAddress, int hostIdentifier, int remoteIpAddress, long nowMillis) {
+        advance(nowMillis);
+
+        int entry = entriesByHost.get(key(hostIpAddress, hostIdentifier));
+        if (entry != NONE && remoteIp[entry] == remoteIpAddress) {
+            wheel.schedule(entry, nowMillis + timeoutMillis);
+            return translatedId[entry];
+        }
+
+        int identifier = identifiers.allocate();
+        if (identifier == PortAllocator.EXHAUSTED) {
+            return NONE;
+        }
+
+        entry = freeEntry;
+        if (entry != NONE) {
+            freeEntry = next[entry];
+        } else {
+            if (highWater == hostIp.length) {
+                grow(hostIp.length << 1);
+            }
+            entry = highWater++;
+        }
+
+        hostIp[entry] = hostIpAddress;
+        hostId[entry] = (char) hostIdentifier;
+        remoteIp[entry] = remoteIpAddress;
+        translatedId[entry] = (char) identifier;
+        wheel.schedule(entry, nowMillis + timeoutMillis);
+        size++;
+
+        entriesByHost.put(key(hostIpAddress, hostIdentifier), entry);
+        entriesByRemote.put(key(remoteIpAddress, identifier), entry);
+        return identifier;
+    }
+
+    /**
+     * Looks up the translation of an echo reply, which keeps the translation alive
+     * @return The handle of the entry, or NONE if there is no translation
+     */
+    public int lookupIn(int remoteIpAddress, int translatedIdentifier, long nowMillis) {
+        advance(nowMillis);
+
+        int entry = entriesByRemote.get(key(remoteIpAddress, translatedIdentifier));
+        if (entry != NONE) {
+            wheel.schedule(entry, nowMillis + timeoutMillis);
+        }
+        return entry;
+    }
+
+    public int getHostIp(int entry) {
+        return hostIp[entry];
+    }
+
+    public int getHostId(int entry) {
+        return hostId[entry];
+    }
+
+    /**
+     * Moves the wheel on to the current time, removing the entries which have expired
+     * @return The number of entries removed
+     */
+    public int advance(long nowMillis) {
+        if (wheel == null) {
+            wheel = new TimingWheel(TICK_MILLIS, nowMillis);
+            return 0;
+        }
+        return wheel.advance(nowMillis, this::remove);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return The approximate heap in bytes used by the table
+     */
+    public long getMemoryFootprint() {
+        return (long) hostIp.length * (4 + 2 + 4 + 2 + 4) + (wheel != null ? wheel.memoryFootprint() : 0)
+                + entriesByHost.memoryFootprint() + entriesByRemote.memoryFootprint() + 2 * 65536 / 8;
+    }
+
+    private void remove(int entry) {
+        long hostKey = key(hostIp[entry], hostId[entry]);
+        //A newer translation of the same host identifier to another remote may have replaced it in the index
+        if (entriesByHost.get(hostKey) == entry) {
+            entriesByHost.remove(hostKey);
+        }
+        entriesByRemote.remove(key(remoteIp[entry], translatedId[entry]));
+        identifiers.release(translatedId[entry]);
+
+        next[entry] = freeEntry;
+        freeEntry = entry;
+        size--;
+    }
+
+    private static long key(int ipAddress, int identifier) {
+        return ((ipAddress & 0xFFFFFFFFL) << 16) | (identifier & 0xFFFFL);
+    }
+
+    private void grow(int capacity) {
+        hostIp = hostIp == null ? new int[capacity] : Arrays.copyOf(hostIp, capacity);
+        hostId = hostId == null ? new char[capacity] : Arrays.copyOf(hostId, capacity);
+        remoteIp = remoteIp == null ? new int[capacity] : Arrays.copyOf(remoteIp, capacity);
+        translatedId = translatedId == null ? new char[capacity] : Arrays.copyOf(translatedId, capacity);
+        next = next == null ? new int[capacity] : Arrays.copyOf(next, capacity);
+    }
+}
@@ -0,0 +1,57 @@
+package org.sd_wan.app;
+
+import org.onosproject.net.PortNumber;
+
+import java.util.Map;
+
+/**
+ * Sends new flows out of the interface whose path has the lowest delay score, see LinkQuality.getDelayScore(),
+ * for traffic such as voice where delay matters more than capacity. The chosen interface is only replaced when
+ * another is better by more than a margin, so that flows do not flap between paths of about the same quality.
+ * Until the path of an interface that is up has been measured, flows are balanced by weight as by the
+ * WeightedPathSelector.
+ */
+public class LatencyPathSelector implements PathSelector {
+
+    //Share by which another path's score must be lower to replace the chosen one
+    private static final double HYSTERESIS = 0.1;
+
+    private final WeightedPathSelector fallback = new WeightedPathSelector();
+    private volatile PortNumber best;
+
+    @Override
+    public void update(Map<PortNumber, WanInterface> interfaces, Map<PortNumber, Long> weights,
+                       Map<PortNumber, LinkQuality> quality) {
+        fallback.update(interfaces, weights, quality);
+
+        PortNumber current = best;
+        double currentScore = Double.POSITIVE_INFINITY;
+        PortNumber candidate = null;
+        double candidateScore = Double.POSITIVE_INFINITY;
+        for (Map.Entry<PortNumber, WanInterface> entry : interfaces.entrySet()) {
+            if (!entry.getValue().getState()) {
+                continue;
+            }
+            LinkQuality linkQuality = quality.get(entry.getKey());
+            double score = linkQuality != null ? linkQuality.getDelayScore() : Double.POSITIVE_INFINITY;
+            if (entry.getKey().equals(current)) {
+                currentScore = score;
+            }
+            if (score < candidateScore) {
+                candidate = entry.getKey();
+                candidateScore = score;
+            }
+        }
+
+        if (candidate == null || currentScore == Double.POSITIVE_INFINITY ||
+                candidateScore < currentScore * (1 - HYSTERESIS)) {
+            best = candidate;
+        }
+    }
+
+    @Override
+    public PortNumber select(long flowHash) {
+        PortNumber port = best;
+        return port != null ? port : fallback.select(flowHash);
+    }
+}
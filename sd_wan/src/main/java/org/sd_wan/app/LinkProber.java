@@ -0,0 +1,281 @@
+package org.sd_wan.app;
+
+import org.onlab.packet.ARP;
+import org.onlab.packet.Ethernet;
+import org.onlab.packet.ICMP;
+import org.onlab.packet.ICMPEcho;
+import org.onlab.packet.IPv4;
+import org.onlab.packet.Ip4Address;
+import org.onlab.packet.MacAddress;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.packet.DefaultOutboundPacket;
+import org.onosproject.net.packet.PacketService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static org.onlab.util.Tools.groupedThreads;
+
+/**
+ * Measures the path of every WAN interface by periodically sending an ICMP echo request to a probe target out of
+ * the interface, from the interface's own address. Replies come back to the controller with the other echo
+ * replies and are matched to their probe by sequence number, updating the interface's round trip time, jitter
+ * and loss in its gateway.
+ *
+ * Probes are only counted once the MAC address of the interface's next hop is known, so a path is never reported
+ * as lossy while its probes cannot be delivered. The next hop is resolved by ARP when the interface is configured
+ * with its address, otherwise it is learned from the sender of echo replies to uncounted broadcast probes. Routers
+ * drop unicast IP sent to the broadcast MAC, so the fallback only starts probing a target on the interface's link,
+ * or once some other echo reply arrives on the interface.
+ *
+ * Probes use echo identifier 0, which is never given to a translated host echo, so their replies are told apart
+ * without a table lookup. Round trip times include the controller's packet-out and packet-in latency, which is
+ * about the same for every interface of a gateway and so does not change how they rank.
+ */
+public class LinkProber {
+
+    public static final short PROBE_IDENTIFIER = 0;
+    public static final int DEFAULT_INTERVAL_MILLIS = 1000;
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final PacketService packetService;
+    private final Map<DeviceId, WanGateway> gateways;
+    private final Map<ConnectPoint, ProbedPath> paths = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService probeExecutor =
+            newSingleThreadScheduledExecutor(groupedThreads("sdwan", "link-probe", log));
+
+    private volatile Ip4Address target;
+    private ScheduledFuture<?> probeTask;
+
+    public LinkProber(PacketService packetService, Map<DeviceId, WanGateway> gateways) {
+        this.packetService = packetService;
+        this.gateways = gateways;
+    }
+
+    /**
+     * Starts probing a target at a fixed interval, replacing any previous target and interval
+     */
+    public synchronized void start(Ip4Address target, int intervalMillis) {
+        if (intervalMillis < 1) {
+            throw new IllegalArgumentException("Invalid probe interval: " + intervalMillis + " ms");
+        }
+        stop();
+        this.target = target;
+        probeTask = probeExecutor.scheduleWithFixedDelay(this::probe, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops probing and forgets the measurements, leaving the interfaces' quality unknown
+     */
+    public synchronized void stop() {
+        if (probeTask != null) {
+            probeTask.cancel(false);
+            probeTask = null;
+        }
+        target = null;
+        for (ConnectPoint point : paths.keySet()) {
+            WanGateway gateway = gateways.get(point.deviceId());
+            if (gateway != null) {
+                gateway.updateInterfaceQuality(point.port(), LinkQuality.UNKNOWN);
+            }
+        }
+        paths.clear();
+    }
+
+    public synchronized void shutdown() {
+        probeExecutor.shutdownNow();
+    }
+
+    /**
+     * Passes an ARP reply received on a gateway port to the prober, resolving the next hop of the interface if
+     * the reply is from the interface's configured next hop address
+     */
+    public void handleArpReply(DeviceId deviceId, PortNumber port, ARP arpPacket) {
+        WanGateway gateway = gateways.get(deviceId);
+        WanInterface intf = gateway != null ? gateway.getInterface(port) : null;
+        ProbedPath path = paths.get(new ConnectPoint(deviceId, port));
+        if (intf == null || path == null || intf.getNextHop() == null) {
+            return;
+        }
+        if (Ip4Address.valueOf(arpPacket.getSenderProtocolAddress()).equals(intf.getNextHop())) {
+            path.nextHop = MacAddress.valueOf(arpPacket.getSenderHardwareAddress());
+        }
+    }
+
+    /**
+     * Makes the prober resolve an interface's next hop again, after its configured address has changed
+     */
+    public void forgetNextHop(DeviceId deviceId, PortNumber port) {
+        ProbedPath path = paths.get(new ConnectPoint(deviceId, port));
+        if (path != null) {
+            path.nextHop = null;
+        }
+    }
+
+    /**
+     * @return The resolved MAC address of an interface's next hop, or null if it is not known yet
+     */
+    MacAddress getNextHop(DeviceId deviceId, PortNumber port) {
+        ProbedPath path = paths.get(new ConnectPoint(deviceId, port));
+        return path != null ? path.nextHop : null;
+    }
+
+    /**
+     * Passes an echo reply received on a gateway port to the prober. The sender of any echo reply arriving on a
+     * WAN interface is taken to be the interface's next hop, which probes are then addressed to.
+     * @return true if the reply answers a probe, and so is not meant for a host
+     */
+    public boolean handleReply(DeviceId deviceId, PortNumber port, Ethernet frame) {
+        WanGateway gateway = gateways.get(deviceId);
+        WanInterface intf = gateway != null ? gateway.getInterface(port) : null;
+        if (intf == null) {
+            return false;
+        }
+
+        ConnectPoint point = new ConnectPoint(deviceId, port);
+        ProbedPath path = paths.get(point);
+        if (path != null) {
+            path.nextHop = frame.getSourceMAC();
+        }
+
+        IPv4 ipPacket = (IPv4) frame.getPayload();
+        ICMPEcho echo = (ICMPEcho) ipPacket.getPayload().getPayload();
+        if (echo.getIdentifier() != PROBE_IDENTIFIER ||
+                ipPacket.getDestinationAddress() != intf.getIp4Address().toInt()) {
+            return false;
+        }
+
+        //Replies to probes sent before probing was restarted are dropped
+        if (path != null && path.estimator.replyReceived(echo.getSequenceNum() & 0xFFFF, System.nanoTime())) {
+            gateway.updateInterfaceQuality(port, path.estimator.getQuality());
+        }
+        return true;
+    }
+
+    private void probe() {
+        //An exception would cancel all further runs of the task
+        try {
+            Ip4Address probeTarget = target;
+            if (probeTarget != null) {
+                probe(probeTarget);
+            }
+        } catch (Exception ex) {
+            log.warn("Link probing failed: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Sends one round of probes to a target out of every interface which is up
+     */
+    void probe(Ip4Address probeTarget) {
+        //Forget the interfaces which have been removed
+        paths.keySet().removeIf(point -> {
+            WanGateway gateway = gateways.get(point.deviceId());
+            return gateway == null || gateway.getInterface(point.port()) == null;
+        });
+
+        for (Map.Entry<DeviceId, WanGateway> entry : gateways.entrySet()) {
+            WanGateway gateway = entry.getValue();
+            for (Map.Entry<PortNumber, WanInterface> intfEntry : gateway.getInterfaces().entrySet()) {
+                ConnectPoint point = new ConnectPoint(entry.getKey(), intfEntry.getKey());
+                ProbedPath path = paths.computeIfAbsent(point, p -> new ProbedPath());
+                if (!intfEntry.getValue().getState()) {
+                    //Measurements and the next hop start afresh once the interface is back up
+                    path.estimator.reset();
+                    path.nextHop = null;
+                    gateway.updateInterfaceQuality(intfEntry.getKey(), LinkQuality.UNKNOWN);
+                    continue;
+                }
+
+                MacAddress nextHop = path.nextHop;
+                if (nextHop == null) {
+                    resolveNextHop(entry.getKey(), intfEntry.getKey(), intfEntry.getValue(), probeTarget);
+                    continue;
+                }
+
+                int seq = path.estimator.probeSent(System.nanoTime());
+                sendProbe(entry.getKey(), intfEntry.getKey(), intfEntry.getValue(), nextHop, probeTarget, seq);
+                //Takes in the probes which have just timed out
+                gateway.updateInterfaceQuality(intfEntry.getKey(), path.estimator.getQuality());
+            }
+        }
+    }
+
+    /**
+     * Asks for the MAC address of an interface's next hop, by ARP if its address is configured or else with a
+     * broadcast probe which the estimator does not count
+     */
+    private void resolveNextHop(DeviceId deviceId, PortNumber port, WanInterface intf, Ip4Address probeTarget) {
+        Ip4Address nextHopIp = intf.getNextHop();
+        if (nextHopIp == null) {
+            sendProbe(deviceId, port, intf, MacAddress.BROADCAST, probeTarget, 0);
+            return;
+        }
+
+        ARP request = new ARP()
+                .setHardwareType(ARP.HW_TYPE_ETHERNET)
+                .setProtocolType(ARP.PROTO_TYPE_IP)
+                .setHardwareAddressLength((byte) Ethernet.DATALAYER_ADDRESS_LENGTH)
+                .setProtocolAddressLength((byte) Ip4Address.BYTE_LENGTH)
+                .setOpCode(ARP.OP_REQUEST)
+                .setSenderHardwareAddress(intf.getMacAddress().toBytes())
+                .setSenderProtocolAddress(intf.getIp4Address().toOctets())
+                .setTargetHardwareAddress(MacAddress.ZERO.toBytes())
+                .setTargetProtocolAddress(nextHopIp.toOctets());
+        Ethernet frame = new Ethernet()
+                .setEtherType(Ethernet.TYPE_ARP)
+                .setSourceMACAddress(intf.getMacAddress())
+                .setDestinationMACAddress(MacAddress.BROADCAST);
+        frame.setPayload(request);
+
+        packetService.emit(new DefaultOutboundPacket(deviceId,
+                DefaultTrafficTreatment.builder().setOutput(port).build(),
+                ByteBuffer.wrap(frame.serialize())));
+    }
+
+    private void sendProbe(DeviceId deviceId, PortNumber port, WanInterface intf, MacAddress nextHop,
+                           Ip4Address probeTarget, int seq) {
+        ICMPEcho echo = new ICMPEcho()
+                .setIdentifier(PROBE_IDENTIFIER)
+                .setSequenceNum((short) seq);
+        ICMP icmp = new ICMP()
+                .setIcmpType(ICMP.TYPE_ECHO_REQUEST)
+                .setIcmpCode((byte) 0);
+        icmp.setPayload(echo);
+        IPv4 ipPacket = new IPv4()
+                .setSourceAddress(intf.getIp4Address().toInt())
+                .setDestinationAddress(probeTarget.toInt())
+                .setProtocol(IPv4.PROTOCOL_ICMP)
+                .setTtl((byte) 64);
+        ipPacket.setPayload(icmp);
+        Ethernet frame = new Ethernet()
+                .setEtherType(Ethernet.TYPE_IPV4)
+                .setSourceMACAddress(intf.getMacAddress())
+                .setDestinationMACAddress(nextHop);
+        frame.setPayload(ipPacket);
+
+        packetService.emit(new DefaultOutboundPacket(deviceId,
+                DefaultTrafficTreatment.builder().setOutput(port).build(),
+                ByteBuffer.wrap(frame.serialize())));
+    }
+
+    /**
+     * The measurements of one interface and the next hop its probes are sent to
+     */
+    private static final class ProbedPath {
+        final LinkQualityEstimator estimator = new LinkQualityEstimator();
+        //Null until resolved by ARP or from an echo reply seen on the interface
+        volatile MacAddress nextHop;
+    }
+}
@@ -0,0 +1,68 @@
+package org.sd_wan.app;
+
+/**
+ * Immutable measurement of the quality of a WAN interface's path, from the replies to the probes sent out of it.
+ */
+public final class LinkQuality {
+
+    //Before any probe has been answered
+    public static final LinkQuality UNKNOWN = new LinkQuality(Double.NaN, Double.NaN, Double.NaN);
+
+    //As in the simplified ITU-T G.107 E-model, a percent of loss costs about as much as 100 ms of delay
+    private static final double LOSS_PENALTY_MILLIS = 10000;
+
+    private final double rttMillis;
+    private final double jitterMillis;
+    private final double lossRatio;
+
+    public LinkQuality(double rttMillis, double jitterMillis, double lossRatio) {
+        this.rttMillis = rttMillis;
+        this.jitterMillis = jitterMillis;
+        this.lossRatio = lossRatio;
+    }
+
+    /**
+     * @return The smoothed round trip time in milliseconds
+     */
+    public double getRttMillis() {
+        return rttMillis;
+    }
+
+    /**
+     * @return The mean variation between consecutive round trip times in milliseconds
+     */
+    public double getJitterMillis() {
+        return jitterMillis;
+    }
+
+    /**
+     * @return The share of recent probes which were not answered, from 0 to 1
+     */
+    public double getLossRatio() {
+        return lossRatio;
+    }
+
+    public boolean isKnown() {
+        return !Double.isNaN(rttMillis);
+    }
+
+    /**
+     * Combines delay, jitter and loss into a single figure for ranking paths for latency sensitive traffic,
+     * lower is better. Jitter counts twice, as a receiver's jitter buffer adds about that much delay.
+     * @return The score in milliseconds, or infinity if the quality is unknown
+     */
+    public double getDelayScore() {
+        if (!isKnown()) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return rttMillis + 2 * jitterMillis + LOSS_PENALTY_MILLIS * lossRatio;
+    }
+
+    @Override
+    public String toString() {
+        if (!isKnown()) {
+            return "unknown";
+        }
+        return String.format("rtt %.1f ms, jitter %.1f ms, loss %.0f%%", rttMillis, jitterMillis, lossRatio * 100);
+    }
+}
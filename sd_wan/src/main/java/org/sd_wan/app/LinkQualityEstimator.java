@@ -0,0 +1,146 @@
+package org.sd_wan.app;
+
+import java.util.Arrays;
+
+/**
+ * Estimates the round trip time, jitter and loss of one WAN interface's path from sequence numbered probes.
+ * The round trip time is smoothed as in RFC 6298 (gain 1/8) and the jitter is the mean deviation between
+ * consecutive round trip times as in RFC 3550 (gain 1/16). The loss is the share of unanswered probes among the
+ * last WINDOW probes which were either answered or timed out.
+ * Probes are sent from the prober's thread and replies arrive on the packet path, so methods are synchronized.
+ */
+public class LinkQualityEstimator {
+
+    public static final long DEFAULT_TIMEOUT_MILLIS = 2000;
+    public static final int WINDOW = 32;
+
+    //Probes awaiting a reply, indexed by sequence number
+    private static final int OUTSTANDING = 64;
+    private static final int NONE = -1;
+
+    private final long timeoutNanos;
+
+    private final int[] sentSeq = new int[OUTSTANDING];
+    private final long[] sentNanos = new long[OUTSTANDING];
+    private int nextSeq = 0;
+
+    //Outcomes of the last probes, as a ring of bits where 1 is lost
+    private long lostBits = 0;
+    private int outcomes = 0;
+    private int lost = 0;
+
+    private double srttMillis = Double.NaN;
+    private double jitterMillis = 0;
+    private double lastRttMillis = Double.NaN;
+
+    public LinkQualityEstimator() {
+        this(DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param timeoutMillis Time after which a probe without reply is counted as lost
+     */
+    public LinkQualityEstimator(long timeoutMillis) {
+        this.timeoutNanos = timeoutMillis * 1000000L;
+        Arrays.fill(sentSeq, NONE);
+    }
+
+    /**
+     * Records a probe about to be sent, expiring the probes which have timed out
+     * @return The 16 bit sequence number to send the probe with
+     */
+    public synchronized int probeSent(long nowNanos) {
+        expire(nowNanos);
+        int seq = nextSeq;
+        nextSeq = (nextSeq + 1) & 0xFFFF;
+
+        int slot = seq & (OUTSTANDING - 1);
+        if (sentSeq[slot] != NONE) {
+            //Overwritten before it timed out, only when probing faster than OUTSTANDING per timeout
+            recordOutcome(true);
+        }
+        sentSeq[slot] = seq;
+        sentNanos[slot] = nowNanos;
+        return seq;
+    }
+
+    /**
+     * Records the reply to a probe
+     * @return false if no probe with the sequence number is awaiting a reply, e.g. it has already timed out
+     */
+    public synchronized boolean replyReceived(int seq, long nowNanos) {
+        int slot = seq & (OUTSTANDING - 1);
+        if (sentSeq[slot] != seq) {
+            return false;
+        }
+        sentSeq[slot] = NONE;
+        long rttNanos = nowNanos - sentNanos[slot];
+        if (rttNanos > timeoutNanos) {
+            recordOutcome(true);
+            return false;
+        }
+        recordOutcome(false);
+
+        double rttMillis = rttNanos / 1000000.0;
+        if (Double.isNaN(srttMillis)) {
+            srttMillis = rttMillis;
+        } else {
+            srttMillis += (rttMillis - srttMillis) / 8;
+            jitterMillis += (Math.abs(rttMillis - lastRttMillis) - jitterMillis) / 16;
+        }
+        lastRttMillis = rttMillis;
+        return true;
+    }
+
+    /**
+     * Counts the probes which have not been answered within the timeout as lost
+     */
+    public synchronized void expire(long nowNanos) {
+        for (int slot = 0; slot < OUTSTANDING; slot++) {
+            if (sentSeq[slot] != NONE && nowNanos - sentNanos[slot] > timeoutNanos) {
+                sentSeq[slot] = NONE;
+                recordOutcome(true);
+            }
+        }
+    }
+
+    /**
+     * @return The current estimates, with an unknown delay until a probe has been answered
+     */
+    public synchronized LinkQuality getQuality() {
+        double loss = outcomes > 0 ? (double) lost / outcomes : 0;
+        if (Double.isNaN(srttMillis)) {
+            return outcomes > 0 ? new LinkQuality(Double.NaN, Double.NaN, loss) : LinkQuality.UNKNOWN;
+        }
+        return new LinkQuality(srttMillis, jitterMillis, loss);
+    }
+
+    /**
+     * Forgets all probes and estimates, e.g. once the interface has come back up
+     */
+    public synchronized void reset() {
+        Arrays.fill(sentSeq, NONE);
+        lostBits = 0;
+        outcomes = 0;
+        lost = 0;
+        srttMillis = Double.NaN;
+        jitterMillis = 0;
+        lastRttMillis = Double.NaN;
+    }
+
+    private void recordOutcome(boolean isLost) {
+        long oldest = 1L << (WINDOW - 1);
+        if (outcomes == WINDOW) {
+            if ((lostBits & oldest) != 0) {
+                lost--;
+            }
+        } else {
+            outcomes++;
+        }
+        lostBits = (lostBits << 1) & ((1L << WINDOW) - 1);
+        if (isLost) {
+            lostBits |= 1;
+            lost++;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package org.sd_wan.app;
+
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.device.PortStatistics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Turns the port statistics of the gateways' WAN interfaces into smoothed receive and transmit rates.
+ * Rates are computed from the duration each delta actually covers, using 64 bit counters, and smoothed by a
+ * RateEstimator per direction with a configurable half-life.
+ */
+public class LinkTelemetry {
+
+    //ONOS polls port statistics every 5 seconds by default, assumed when a delta carries no duration
+    public static final long DEFAULT_POLL_MILLIS = 5000;
+
+    private final Map<DeviceId, Map<PortNumber, PortRates>> rates = new ConcurrentHashMap<>();
+    private volatile long halfLifeMillis = RateEstimator.DEFAULT_HALF_LIFE_MILLIS;
+
+    /**
+     * Adds an interface's latest statistics to its rate estimates
+     * @param delta The change in the port's counters since the previous poll
+     * @param total The port's counters
+     * @return The interface's statistics, with its smoothed rates
+     */
+    public CurrentPortStatistics update(DeviceId deviceId, PortNumber port, PortStatistics delta,
+                                       PortStatistics total, long nowMillis) {
+        PortRates portRates = rates.computeIfAbsent(deviceId, id -> new ConcurrentHashMap<>())
+                .computeIfAbsent(port, number -> new PortRates());
+
+        CurrentPortStatistics stats = new CurrentPortStatistics();
+        synchronized (portRates) {
+            //The duration of a delta is the difference of both polls' durations, its nanoseconds may be negative
+            long durationMillis = delta.durationSec() * 1000 + delta.durationNano() / 1000000;
+            if (durationMillis <= 0) {
+                durationMillis = portRates.lastUpdateMillis != 0 ? nowMillis - portRates.lastUpdateMillis :
+                        DEFAULT_POLL_MILLIS;
+            }
+            portRates.lastUpdateMillis = nowMillis;
+
+            long halfLife = halfLifeMillis;
+            stats.rxBitsPerSecond = portRates.rx.update(delta.bytesReceived(), durationMillis, halfLife);
+            stats.txBitsPerSecond = portRates.tx.update(delta.bytesSent(), durationMillis, halfLife);
+        }
+        stats.bitsPerSecond = stats.rxBitsPerSecond + stats.txBitsPerSecond;
+        stats.totalBytes = total.bytesReceived() + total.bytesSent();
+        stats.packetErrors = total.packetsRxErrors() + total.packetsTxErrors();
+        stats.packetsDropped = total.packetsRxDropped() + total.packetsTxDropped();
+        return stats;
+    }
+
+    /**
+     * Forgets the rates of an interface, e.g. when it goes down, so they start afresh
+     */
+    public void reset(DeviceId deviceId, PortNumber port) {
+        Map<PortNumber, PortRates> deviceRates = rates.get(deviceId);
+        if (deviceRates != null) {
+            deviceRates.remove(port);
+        }
+    }
+
+    /**
+     * Sets how quickly the rates follow changes in traffic
+     * @param halfLifeMillis The time after which a sample's weight has halved, 0 for no smoothing
+     */
+    public void setHalfLife(long halfLifeMillis) {
+        if (halfLifeMillis < 0) {
+            throw new IllegalArgumentException("Invalid telemetry half-life: " + halfLifeMillis + " ms");
+        }
+        this.halfLifeMillis = halfLifeMillis;
+    }
+
+    public long getHalfLife() {
+        return halfLifeMillis;
+    }
+
+    /**
+     * Rate estimates of both directions of an interface
+     */
+    private static final class PortRates {
+        final RateEstimator rx = new RateEstimator();
+        final RateEstimator tx = new RateEstimator();
+        long lastUpdateMillis;
+    }
+}
@@ -0,0 +1,159 @@
+package org.sd_wan.app;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map from primitive long keys to primitive int values, used to index NAT state
+ * without boxing. Keys are spread with the 64 bit MurmurHash3 finalizer and collisions are resolved by
+ * linear probing with backward shift deletion, so no tombstones are left behind.
+ */
+public class LongIntHashMap {
+
+    //Returned by get() and remove() when the key is not present
+    public static final int NO_VALUE = -1;
+
+    private static final int MIN_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private long[] keys;
+    private int[] values;
+    private boolean[] used;
+    private int size;
+    private int mask;
+    private int resizeThreshold;
+
+    public LongIntHashMap() {
+        this(MIN_CAPACITY);
+    }
+
+    public LongIntHashMap(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity * LOAD_FACTOR < expectedSize) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    public int get(long key) {
+        int slot = findSlot(key);
+        return used[slot] ? values[slot] : NO_VALUE;
+    }
+
+    public boolean containsKey(long key) {
+        return used[findSlot(key)];
+    }
+
+    /**
+     * @return The previous value of the key, or NO_VALUE if it was not present
+     */
+    public int put(long key, int value) {
+        int slot = findSlot(key);
+        if (used[slot]) {
+            int previous = values[slot];
+            values[slot] = value;
+            return previous;
+        }
+
+        keys[slot] = key;
+        values[slot] = value;
+        used[slot] = true;
+        if (++size > resizeThreshold) {
+            rehash(keys.length << 1);
+        }
+        return NO_VALUE;
+    }
+
+    /**
+     * @return The removed value, or NO_VALUE if the key was not present
+     */
+    public int remove(long key) {
+        int slot = findSlot(key);
+        if (!used[slot]) {
+            return NO_VALUE;
+        }
+        int removed = values[slot];
+
+        //Shift back any following entries of the probe sequence into the freed slot
+        int gap = slot;
+        int next = (gap + 1) & mask;
+        while (used[next]) {
+            int home = mix(keys[next]) & mask;
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                keys[gap] = keys[next];
+                values[gap] = values[next];
+                gap = next;
+            }
+            next = (next + 1) & mask;
+        }
+        used[gap] = false;
+        size--;
+        return removed;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        Arrays.fill(used, false);
+        size = 0;
+    }
+
+    /**
+     * @return The approximate heap used by the key, value and occupancy arrays
+     */
+    public long memoryFootprint() {
+        return (long) keys.length * (Long.BYTES + Integer.BYTES + 1);
+    }
+
+    /**
+     * 64 bit MurmurHash3 finalizer, folded down to an int
+     */
+    static int mix(long key) {
+        return (int) mix64(key);
+    }
+
+    /**
+     * 64 bit MurmurHash3 finalizer
+     */
+    static long mix64(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    private int findSlot(long key) {
+        int slot = mix(key) & mask;
+        while (used[slot] && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new int[capacity];
+        used = new boolean[capacity];
+        mask = capacity - 1;
+        resizeThreshold = (int) (capacity * LOAD_FACTOR);
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        boolean[] oldUsed = used;
+
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldUsed[i]) {
+                int slot = findSlot(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+                used[slot] = true;
+            }
+        }
+    }
+}
@@ -5,18 +5,26 @@ import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.ReferenceCardinality;
 import org.onlab.packet.*;
 import org.onosproject.core.ApplicationId;
+import org.onosproject.core.GroupId;
 import org.onosproject.net.DeviceId;
 import org.onosproject.net.flow.criteria.Criterion;
 import org.onosproject.net.flow.instructions.Instruction;
 import org.onosproject.net.intf.Interface;
 import org.onosproject.net.PortNumber;
 import org.onosproject.net.flow.*;
+import org.onosproject.net.meter.MeterId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 
+import java.nio.ByteBuffer;
 import java.util.*;
 
+/**
+ * Translates the TCP, UDP and ICMP traffic of a gateway to the addresses of its WAN interfaces.
+ * Packet-ins may be processed on several worker lanes at once, so all access to the NAT state is synchronized
+ * on the handler of the gateway.
+ */
 public class NatHandler {
 
     private final Logger log = LoggerFactory.getLogger(getClass());
@@ -26,10 +34,44 @@ public class NatHandler {
     //List of interfaces
     private Map<PortNumber, InterfaceTable> Interfaces;
 
+    //TCP and UDP sessions of every interface
+    private NatSessionTable sessions = new NatSessionTable();
+
     private ApplicationId appId;
 
-    public NatHandler(ApplicationId appId, DeviceId mainSwitch) {
+    //Chooses the timeouts of the NAT rules, shared by every gateway
+    private final TimeoutPolicy timeoutPolicy;
+
+    //Shortest time a session may go unseen in the flow statistics before it is expired. It is raised above the
+    //longest idle timeout of the rules, plus this margin for the removal to be reported.
+    private long sessionTimeoutMillis = NatSessionTable.DEFAULT_SESSION_TIMEOUT_MILLIS;
+    private static final long SESSION_TIMEOUT_MARGIN_MILLIS = 10000;
+
+    //Range of translated TCP/UDP ports handed out on each interface
+    public static final int DEFAULT_MIN_PORT = 1024;
+    public static final int DEFAULT_MAX_PORT = 65535;
+    private int minPort = DEFAULT_MIN_PORT;
+    private int maxPort = DEFAULT_MAX_PORT;
+
+    //Group of the WAN interfaces which new sessions are sent to, or null to send each session to one interface.
+    //Group sessions are stored against PortNumber.ANY and hold their translated port on every interface
+    private GroupId interfaceGroup;
+    private static final int GROUP_PORT_ATTEMPTS = 16;
+
+    //In aggregate mode each mapping has a single session to this wildcard destination, whose rules match the
+    //mapping's traffic to and from every destination. They sit below the exact session rules.
+    private boolean aggregateRules = false;
+    public static final int AGGREGATE_DEST = 0;
+    private static final int AGGREGATE_PRIORITY = 49000;
+
+    //In port-block mode each address of the local prefix owns a fixed block of the translated ports of every
+    //interface, laid out by this allocator. Null to allocate from the whole range.
+    private PortBlockAllocator blockLayout;
+    private IpPrefix blockPrefix;
+
+    public NatHandler(ApplicationId appId, DeviceId mainSwitch, TimeoutPolicy timeoutPolicy) {
         this.appId = appId;
+        this.timeoutPolicy = timeoutPolicy;
         this.gateway = mainSwitch;
         Interfaces = new TreeMap<>(new Comparator<PortNumber>() {
             @Override
@@ -37,242 +79,737 @@ public class NatHandler {
                 return o1.toString().compareTo(o2.toString());
             }
         });
+        applySessionTimeout();
     }
 
     /**
-     * Not yet implemented method for removing expired IP-TpPort combinations from the list, so that the port becomes
-     * available again
+     * Removes an expired flow rule from the session table, once both rules of every session using a mapping
+     * have expired the translated port becomes available again
      * @param flowRule The flowrule to remove
      */
-    public void removeRule(FlowRule flowRule) {
-        for (PortNumber port : Interfaces.keySet()) {
-            Interfaces.get(port).removeFlowEntry(flowRule.id());
+    public synchronized void removeRule(FlowRule flowRule) {
+        int mapping = sessions.removeFlowRule(flowRule.id());
+        if (mapping != NatSessionTable.NONE) {
+            releaseMapping(mapping);
+        }
+    }
+
+    /**
+     * Rolls back the session of a pair of NAT rules which failed to install, releasing its translated port if
+     * it was the last session of its mapping
+     * @param rules The rules returned by makeNATRules()
+     */
+    public synchronized void abortNATRules(FlowRule[] rules) {
+        for (FlowRule rule : rules) {
+            removeRule(rule);
+        }
+    }
+
+    /**
+     * Records the flow statistics of the gateway's rules, each session seen is kept alive from its last seen time
+     */
+    public synchronized void recordFlowStats(Iterable<FlowEntry> flowEntries) {
+        for (FlowEntry flowEntry : flowEntries) {
+            int session = sessions.getByFlowId(flowEntry.id());
+            if (session != NatSessionTable.NONE) {
+                sessions.touchSession(session, flowEntry.lastSeen());
+            }
+        }
+    }
+
+    /**
+     * Removes the sessions whose rules have not been seen in the flow statistics within the session timeout,
+     * e.g. because their rule removal events were lost, and releases their translated ports
+     * @param expiredRules Filled with the rules the expired sessions still owned, to remove from the gateway in
+     *                     case they are still installed. A session may own any number of its rules.
+     * @return The number of sessions expired
+     */
+    public synchronized int expireSessions(long nowMillis, List<FlowRule> expiredRules) {
+        applySessionTimeout();
+        return sessions.expireSessions(nowMillis, session -> {
+            int mapping = sessions.getSessionMapping(session);
+            PortNumber interfacePort = sessions.getInterfacePort(mapping);
+            if (PortNumber.ANY.equals(interfacePort) || Interfaces.containsKey(interfacePort)) {
+                //Rules another session has since been installed with are left to it. The extra incoming rules of
+                //an aggregate group session go with its first.
+                FlowRule[] rules = buildNATRules(sessions.getHostSwitchPort(mapping),
+                        MacAddress.valueOf(sessions.getHostMac(mapping)), sessions.getHostIp(mapping),
+                        sessions.getHostPort(mapping), sessions.getDestIp(session), sessions.getDestPort(session),
+                        sessions.getProtocol(mapping), interfacePort, sessions.getTranslatedPort(mapping));
+                boolean ownsInRule = sessions.getByFlowId(rules[0].id()) == session;
+                for (int i = 0; i < rules.length; i++) {
+                    if (i > 1 ? ownsInRule : sessions.getByFlowId(rules[i].id()) == session) {
+                        expiredRules.add(rules[i]);
+                    }
+                }
+            }
+
+            int emptyMapping = sessions.removeSession(session);
+            if (emptyMapping != NatSessionTable.NONE) {
+                releaseMapping(emptyMapping);
+            }
+        });
+    }
+
+    /**
+     * Sets how long a session may go unseen in the flow statistics before it is expired. The timeout is never
+     * shorter than the longest idle timeout of the timeout policy, so sessions whose rules are still installed
+     * are not expired.
+     */
+    public synchronized void setSessionTimeout(long sessionTimeoutMillis) {
+        this.sessionTimeoutMillis = sessionTimeoutMillis;
+        applySessionTimeout();
+    }
+
+    /**
+     * Follows changes to the timeout policy, which may be made at any time
+     */
+    private void applySessionTimeout() {
+        sessions.setSessionTimeout(Math.max(sessionTimeoutMillis,
+                timeoutPolicy.getMaxIdleTimeout() * 1000L + SESSION_TIMEOUT_MARGIN_MILLIS));
+    }
+
+    /**
+     * Takes a flow rule from the session holding it, unless that is the session the rule is being installed for,
+     * so the old session is not left waiting for the rule's removal and keeping its mapping forever
+     */
+    private void retireFlowRule(FlowId flowId, int mapping, int destIp, int destPort) {
+        int owner = sessions.getByFlowId(flowId);
+        if (owner != NatSessionTable.NONE && !sessions.isSession(owner, mapping, destIp, destPort)) {
+            int emptyMapping = sessions.removeFlowRule(flowId);
+            if (emptyMapping != NatSessionTable.NONE) {
+                releaseMapping(emptyMapping);
+            }
         }
     }
 
+    /**
+     * Releases the translated port of a mapping with no sessions left and removes it
+     */
+    private void releaseMapping(int mapping) {
+        PortNumber interfacePort = sessions.getInterfacePort(mapping);
+        if (PortNumber.ANY.equals(interfacePort)) {
+            for (InterfaceTable interfaceTable : Interfaces.values()) {
+                interfaceTable.releasePort(sessions.getProtocol(mapping), sessions.getTranslatedPort(mapping));
+            }
+        } else if (Interfaces.containsKey(interfacePort)) {
+            Interfaces.get(interfacePort).releasePort(sessions.getProtocol(mapping),
+                    sessions.getTranslatedPort(mapping));
+        }
+        sessions.removeMapping(mapping);
+    }
+
+    /**
+     * Sends the outgoing rules of new sessions to a group of the WAN interfaces, which rewrites their source
+     * address and chooses the interface in the switch
+     * @param group The group, or null to send each new session out of a single interface
+     */
+    public synchronized void setInterfaceGroup(GroupId group) {
+        this.interfaceGroup = group;
+    }
+
+    public synchronized GroupId getInterfaceGroup() {
+        return interfaceGroup;
+    }
+
+    /**
+     * Installs one outgoing rule per host IP/port mapping and one incoming rule per translated port, instead of a
+     * pair of rules per destination. Replies are then accepted from any remote endpoint of the mapping.
+     */
+    public synchronized void setAggregateRules(boolean aggregateRules) {
+        this.aggregateRules = aggregateRules;
+    }
+
     /**
      * Makes the NAT rules to translate from host to edge router and back
      *
      * @param srcPortNumber The physical PortNumber of the source host
+     * @param packet        The parsed packet, which is read but not changed
+     * @param frame         The raw frame of the packet, translated in place, or null if the packet is not sent
+     *                      on by the controller
      * @param protocol      The protocol of the connection
      * @param outgoingPortNumber   The physical PortNumber of the interface
+     * @param trafficClass  The connection's traffic class, whose meter on the interface the outgoing rule uses
      * @return An array of two flow rules to apply, 0th is for edge to host (incoming) NAT,
      *          1st is for host to edge(outgoing) NAT
      */
-    public FlowRule[] makeNATRules(PortNumber srcPortNumber, Ethernet packet, byte protocol, PortNumber outgoingPortNumber) {
+    public synchronized FlowRule[] makeNATRules(PortNumber srcPortNumber, Ethernet packet, ByteBuffer frame,
+                                              byte protocol, PortNumber outgoingPortNumber, int trafficClass) {
+        applySessionTimeout();
 
         MacAddress srcMacAddr = MacAddress.valueOf(packet.getSourceMACAddress());
 
         IPv4 ipPacket = (IPv4)packet.getPayload();
         IpAddress srcIP = IpAddress.valueOf(ipPacket.getSourceAddress());
         IpAddress destIP = IpAddress.valueOf(ipPacket.getDestinationAddress());
-        int outTpPort;
+        int outTpPort = PortAllocator.EXHAUSTED;
 
         int srcPort = 0;
         int destPort = 0;
+        short tcpFlags = 0;
         if (protocol == IPv4.PROTOCOL_TCP) {
             TCP tcpPacket = (TCP) ipPacket.getPayload();
             srcPort = tcpPacket.getSourcePort();
             destPort = tcpPacket.getDestinationPort();
-            outTpPort = Interfaces.get(outgoingPortNumber).getNextTCPPort();
+            tcpFlags = tcpPacket.getFlags();
         } else if (protocol == IPv4.PROTOCOL_UDP) {
             UDP udpPacket = (UDP) ipPacket.getPayload();
             srcPort = udpPacket.getSourcePort();
             destPort = udpPacket.getDestinationPort();
-            outTpPort = Interfaces.get(outgoingPortNumber).getNextUDPPort();
         } else {
             return null;
         }
 
         //Satisfies NAT endpoint-independant mapping requirement
-        for (PortNumber portNumber : Interfaces.keySet()) {
-            NatSessionTuple tuple;
-            tuple = Interfaces.get(portNumber).hasExistingNatSessionSource(srcIP, srcPort);
-            if (tuple != null) {
-                outgoingPortNumber = portNumber;
-                outTpPort = tuple.translatedSrcSessionIdentifier;
+        int mapping = sessions.getByHost(ipPacket.getSourceAddress(), srcPort, protocol);
+        boolean grouped = interfaceGroup != null;
+        if (mapping != NatSessionTable.NONE) {
+            grouped = PortNumber.ANY.equals(sessions.getInterfacePort(mapping));
+            if (!grouped) {
+                outgoingPortNumber = sessions.getInterfacePort(mapping);
+            } else if (interfaceGroup == null) {
+                //The group was removed, its sessions end once their rules are removed with it
+                return null;
+            }
+            outTpPort = sessions.getTranslatedPort(mapping);
+        }
+
+        //The chosen interface may have been removed since it was selected
+        if (!Interfaces.containsKey(outgoingPortNumber)) {
+            return null;
+        }
+
+        //Only take a new port from the interface if there is no existing mapping to reuse
+        if (outTpPort == PortAllocator.EXHAUSTED) {
+            int hostIp = ipPacket.getSourceAddress();
+            outTpPort = grouped ? allocateGroupPort(protocol, hostIp) :
+                    Interfaces.get(outgoingPortNumber).allocatePort(protocol, hostIp);
+            if (outTpPort == PortAllocator.EXHAUSTED) {
+                log.warn("No free " + (protocol == IPv4.PROTOCOL_TCP ? "TCP" : "UDP") + " ports left on interface "
+                        + outgoingPortNumber + " of gateway " + gateway);
+                return null;
             }
         }
 
         InterfaceTable outInterface = Interfaces.get(outgoingPortNumber);
         Ip4Address interfaceIPAddr = outInterface.getIpAddress().getIp4Address();
         MacAddress interfaceMacAddr = outInterface.getMacAddress();
+        int srcIp = srcIP.getIp4Address().toInt();
+        int destIp = destIP.getIp4Address().toInt();
+
+        //Group sessions have their packet translated for the chosen interface, but their rules use the group.
+        //A FIN or RST gets a short idle timeout, replacing the timeout of the session's rules if already installed.
+        //Aggregate rules carry the mapping's traffic to every destination, so they take the mapping's timeouts
+        //rather than those of the packet which happened to install them.
+        int sessionDestIp = aggregateRules ? AGGREGATE_DEST : destIp;
+        int sessionDestPort = aggregateRules ? 0 : destPort;
+        FlowRule[] rules = aggregateRules ?
+                buildNATRules(srcPortNumber, srcMacAddr, srcIp, srcPort, sessionDestIp, sessionDestPort,
+                        protocol, grouped ? PortNumber.ANY : outgoingPortNumber, outTpPort, trafficClass) :
+                buildNATRules(srcPortNumber, srcMacAddr, srcIp, srcPort, sessionDestIp, sessionDestPort,
+                        protocol, grouped ? PortNumber.ANY : outgoingPortNumber, outTpPort,
+                        timeoutPolicy.getIdleTimeout(protocol, destPort, tcpFlags),
+                        timeoutPolicy.getHardTimeout(protocol, destPort), trafficClass);
+
+        //Translate the packet itself, so it can be sent on once the rules are installed
+        if (frame != null) {
+            PacketRewriter.setSrcPort(frame, outTpPort);
+            PacketRewriter.setIpSrc(frame, interfaceIPAddr.toInt());
+            PacketRewriter.setEthSrc(frame, interfaceMacAddr.toLong());
+        }
 
-        //Selector and treatment for translating outgoing traffic from the host
-        TrafficSelector.Builder outSelector = DefaultTrafficSelector.builder();
-        TrafficTreatment.Builder outTreatment = DefaultTrafficTreatment.builder();
+        if (mapping == NatSessionTable.NONE && grouped) {
+            //The translated IP depends on the bucket the switch chooses
+            mapping = sessions.addMapping(PortNumber.ANY, srcMacAddr.toLong(), srcPortNumber, srcIp, srcPort,
+                    0, outTpPort, protocol);
+        } else if (mapping == NatSessionTable.NONE) {
+            mapping = sessions.addMapping(outgoingPortNumber, srcMacAddr.toLong(), srcPortNumber, srcIp, srcPort,
+                    interfaceIPAddr.toInt(), outTpPort, protocol);
+        }
+        retireFlowRule(rules[0].id(), mapping, sessionDestIp, sessionDestPort);
+        retireFlowRule(rules[1].id(), mapping, sessionDestIp, sessionDestPort);
+        sessions.addSession(mapping, sessionDestIp, sessionDestPort, rules[0].id(), rules[1].id(),
+                System.currentTimeMillis());
 
-        //Selector and treatment for translating incoming traffic from the Destination
-        TrafficSelector.Builder inSelector = DefaultTrafficSelector.builder();
-        TrafficTreatment.Builder inTreatment = DefaultTrafficTreatment.builder();
+        return rules;
+    }
 
-        outSelector.matchEthType(Ethernet.TYPE_IPV4);
-        inSelector.matchEthType(Ethernet.TYPE_IPV4);
+    /**
+     * Moves the TCP and UDP sessions of an interface which went down onto the remaining interfaces.
+     * Each mapping is given a new translated port on the interface chosen by the selector, and the rules of
+     * its sessions are rebuilt there. Sessions are dropped if there is no interface left to move them to.
+     *
+     * @param failedPort The physical PortNumber of the interface which went down
+     * @param selector   Chooses the new interface of each mapping
+     * @param policy     Classifies the moved sessions for their meters, by 5-tuple only as their DSCP is not kept
+     * @return The rules to remove from and install on the gateway
+     */
+    public synchronized NatMigration migrateInterface(PortNumber failedPort, PathSelector selector,
+                                                      TrafficPolicy policy) {
+        NatMigration migration = new NatMigration(failedPort);
+        if (!Interfaces.containsKey(failedPort)) {
+            return migration;
+        }
 
-        if (protocol == IPv4.PROTOCOL_TCP) {
-            outSelector.matchIPProtocol(IPv4.PROTOCOL_TCP)
-                    .matchTcpSrc(TpPort.tpPort(srcPort))
-                    .matchIPSrc(IpPrefix.valueOf(srcIP, 32))
-                    .matchTcpDst(TpPort.tpPort(destPort))
-                    .matchIPDst(IpPrefix.valueOf(destIP, 32));
+        //Copy out the failed sessions first, as removing them frees their handles for the new mappings
+        int[] failedSessions = sessions.getSessions(failedPort);
+        int count = failedSessions.length;
+        int[] oldMappings = new int[count];
+        int[] destIps = new int[count];
+        int[] destPorts = new int[count];
+        for (int i = 0; i < count; i++) {
+            oldMappings[i] = sessions.getSessionMapping(failedSessions[i]);
+            destIps[i] = sessions.getDestIp(failedSessions[i]);
+            destPorts[i] = sessions.getDestPort(failedSessions[i]);
+        }
+        int[] hostIps = new int[count];
+        int[] hostPorts = new int[count];
+        int[] translatedPorts = new int[count];
+        byte[] protocols = new byte[count];
+        MacAddress[] hostMacs = new MacAddress[count];
+        PortNumber[] hostSwitchPorts = new PortNumber[count];
+        for (int i = 0; i < count; i++) {
+            int mapping = oldMappings[i];
+            hostIps[i] = sessions.getHostIp(mapping);
+            hostPorts[i] = sessions.getHostPort(mapping);
+            translatedPorts[i] = sessions.getTranslatedPort(mapping);
+            protocols[i] = sessions.getProtocol(mapping);
+            hostMacs[i] = MacAddress.valueOf(sessions.getHostMac(mapping));
+            hostSwitchPorts[i] = sessions.getHostSwitchPort(mapping);
+        }
 
-            outTreatment.setIpSrc(interfaceIPAddr)
-                    .setEthSrc(interfaceMacAddr)
-                    .setTcpSrc(TpPort.tpPort(outTpPort))
-                    .setOutput(outgoingPortNumber);
+        InterfaceTable failedInterface = Interfaces.get(failedPort);
+        for (int i = 0; i < count; i++) {
+            int emptyMapping = sessions.removeSession(failedSessions[i]);
+            if (emptyMapping != NatSessionTable.NONE) {
+                failedInterface.releasePort(protocols[i], translatedPorts[i]);
+                sessions.removeMapping(emptyMapping);
+            }
+        }
 
+        //Sessions sharing a mapping keep sharing one on their new interface
+        LongIntHashMap newMappings = new LongIntHashMap(count);
+        for (int i = 0; i < count; i++) {
+            FlowRule[] oldRules = buildNATRules(hostSwitchPorts[i], hostMacs[i], hostIps[i], hostPorts[i],
+                    destIps[i], destPorts[i], protocols[i], failedPort, translatedPorts[i]);
+
+            int mapping = NatSessionTable.NONE;
+            if (newMappings.containsKey(oldMappings[i])) {
+                mapping = newMappings.get(oldMappings[i]);
+            } else {
+                PortNumber newPort = selector.select(PathSelector.flowHash(hostIps[i], hostPorts[i], destIps[i],
+                        destPorts[i], protocols[i]));
+                InterfaceTable newInterface = newPort != null && !newPort.equals(failedPort) ?
+                        Interfaces.get(newPort) : null;
+                int newTpPort = newInterface != null ?
+                        newInterface.allocatePort(protocols[i], hostIps[i]) : PortAllocator.EXHAUSTED;
+                if (newTpPort != PortAllocator.EXHAUSTED) {
+                    mapping = sessions.addMapping(newPort, hostMacs[i].toLong(), hostSwitchPorts[i], hostIps[i],
+                            hostPorts[i], newInterface.getIpAddress().getIp4Address().toInt(), newTpPort,
+                            protocols[i]);
+                }
+                newMappings.put(oldMappings[i], mapping);
+            }
 
-            inSelector.matchIPProtocol(IPv4.PROTOCOL_TCP)
-                    .matchTcpDst(TpPort.tpPort(outTpPort))
-                    .matchIPDst(IpPrefix.valueOf(interfaceIPAddr, 32))
-                    .matchTcpSrc(TpPort.tpPort(destPort))
-                    .matchIPSrc(IpPrefix.valueOf(destIP, 32));
+            //The outgoing rule keeps its selector, so its replacement overwrites it rather than being removed
+            migration.removedRules.add(oldRules[0]);
+            if (mapping == NatSessionTable.NONE) {
+                migration.removedRules.add(oldRules[1]);
+                migration.droppedSessions++;
+                continue;
+            }
 
-            inTreatment.setIpDst(srcIP)
-                    .setEthDst(srcMacAddr)
-                    .setTcpDst(TpPort.tpPort(srcPort))
-                    .setOutput(srcPortNumber);
+            FlowRule[] newRules = buildNATRules(hostSwitchPorts[i], hostMacs[i], hostIps[i], hostPorts[i],
+                    destIps[i], destPorts[i], protocols[i], sessions.getInterfacePort(mapping),
+                    sessions.getTranslatedPort(mapping),
+                    policy.classify(hostIps[i], hostPorts[i], destIps[i], destPorts[i], protocols[i], 0));
+            sessions.addSession(mapping, destIps[i], destPorts[i], newRules[0].id(), newRules[1].id(),
+                    System.currentTimeMillis());
+            migration.installedRules.add(newRules[0]);
+            migration.installedRules.add(newRules[1]);
+            migration.migratedSessions++;
+        }
+        return migration;
+    }
 
-            TCP tcpPacket = (TCP) ipPacket.getPayload();
-            tcpPacket.setSourcePort(outTpPort);
+    /**
+     * Builds the pair of rules translating a session between a host and an interface
+     *
+     * @param hostSwitchPort The physical PortNumber of the host
+     * @param interfacePort  The physical PortNumber of the interface, or PortNumber.ANY to use the interface group
+     * @param translatedPort The TpPort the host's port is translated to on the interface
+     * @return An array of two flow rules, 0th is for edge to host (incoming) NAT,
+     *          1st is for host to edge(outgoing) NAT
+     */
+    private FlowRule[] buildNATRules(PortNumber hostSwitchPort, MacAddress hostMac, int hostIp, int hostPort,
+                                     int destIp, int destPort, byte protocol,
+                                     PortNumber interfacePort, int translatedPort) {
+        //Rules rebuilt to be removed are matched by their selector, so they need no meter
+        return buildNATRules(hostSwitchPort, hostMac, hostIp, hostPort, destIp, destPort, protocol, interfacePort,
+                translatedPort, TrafficPolicy.NONE);
+    }
 
-            ipPacket.setSourceAddress(interfaceIPAddr.toInt());
-            ipPacket.setPayload(tcpPacket);
-            packet.setPayload(ipPacket);
-            packet.setSourceMACAddress(interfaceMacAddr);
+    /**
+     * Builds the pair of rules translating a session of a traffic class between a host and an interface.
+     * Aggregate sessions have the protocol's default timeouts, as they stand for the whole mapping.
+     */
+    private FlowRule[] buildNATRules(PortNumber hostSwitchPort, MacAddress hostMac, int hostIp, int hostPort,
+                                     int destIp, int destPort, byte protocol,
+                                     PortNumber interfacePort, int translatedPort, int trafficClass) {
+        boolean aggregate = destIp == AGGREGATE_DEST;
+        return buildNATRules(hostSwitchPort, hostMac, hostIp, hostPort, destIp, destPort, protocol, interfacePort,
+                translatedPort,
+                aggregate ? timeoutPolicy.getDefaultIdleTimeout(protocol) :
+                        timeoutPolicy.getIdleTimeout(protocol, destPort),
+                aggregate ? timeoutPolicy.getDefaultHardTimeout(protocol) :
+                        timeoutPolicy.getHardTimeout(protocol, destPort), trafficClass);
+    }
 
-        } else {
-            outSelector.matchIPProtocol(IPv4.PROTOCOL_UDP)
-                    .matchUdpSrc(TpPort.tpPort(srcPort))
-                    .matchIPSrc(IpPrefix.valueOf(srcIP, 32))
-                    .matchUdpDst(TpPort.tpPort(destPort))
-                    .matchIPDst(IpPrefix.valueOf(destIP, 32));
-
-            outTreatment.setIpSrc(interfaceIPAddr)
-                    .setEthSrc(interfaceMacAddr)
-                    .setUdpSrc(TpPort.tpPort(outTpPort))
-                    .setOutput(outgoingPortNumber);
-
-            inSelector.matchIPProtocol(IPv4.PROTOCOL_UDP)
-                    .matchUdpDst(TpPort.tpPort(outTpPort))
-                    .matchIPDst(IpPrefix.valueOf(interfaceIPAddr, 32))
-                    .matchUdpSrc(TpPort.tpPort(destPort))
-                    .matchIPSrc(IpPrefix.valueOf(destIP, 32));
-
-            inTreatment.setIpDst(srcIP)
-                    .setEthDst(srcMacAddr)
-                    .setUdpDst(TpPort.tpPort(srcPort))
-                    .setOutput(srcPortNumber);
+    /**
+     * Builds the pair of rules translating a session between a host and an interface, with the given timeouts.
+     * An aggregate session of the interface group has an incoming rule on every interface, the rules after the
+     * first are appended to the pair and are not held by the session.
+     */
+    private FlowRule[] buildNATRules(PortNumber hostSwitchPort, MacAddress hostMac, int hostIp, int hostPort,
+                                     int destIp, int destPort, byte protocol,
+                                     PortNumber interfacePort, int translatedPort,
+                                     int idleTimeout, int hardTimeout, int trafficClass) {
+        boolean grouped = PortNumber.ANY.equals(interfacePort);
+        boolean aggregate = destIp == AGGREGATE_DEST;
 
-            UDP udpPacket = (UDP) ipPacket.getPayload();
-            udpPacket.setSourcePort(outTpPort);
+        //Selector and treatment for translating outgoing traffic from the host
+        TrafficSelector.Builder outSelector = DefaultTrafficSelector.builder()
+                .matchEthType(Ethernet.TYPE_IPV4)
+                .matchIPProtocol(protocol)
+                .matchIPSrc(IpPrefix.valueOf(hostIp, 32));
+        TrafficTreatment.Builder outTreatment = DefaultTrafficTreatment.builder();
 
-            ipPacket.setSourceAddress(interfaceIPAddr.toInt());
-            ipPacket.setPayload(udpPacket);
-            packet.setPayload(ipPacket);
-            packet.setSourceMACAddress(interfaceMacAddr);
+        //Aggregate rules translate the mapping for every destination
+        if (!aggregate) {
+            outSelector.matchIPDst(IpPrefix.valueOf(destIp, 32));
+        }
 
+        //The group's buckets rewrite the source address, and the translated port is held on every interface,
+        //so replies are matched whichever interface they return on
+        if (!grouped) {
+            InterfaceTable outInterface = Interfaces.get(interfacePort);
+            outTreatment.setIpSrc(outInterface.getIpAddress().getIp4Address())
+                    .setEthSrc(outInterface.getMacAddress());
+
+            //Caps the rate of the session's class on the interface
+            MeterId meter = outInterface.getMeter(trafficClass);
+            if (meter != null) {
+                outTreatment.meter(meter);
+            }
         }
 
-        FlowRule inFlowRule = DefaultFlowRule.builder()
-                .forDevice(gateway)
-                .fromApp(appId)
-                .withSelector(inSelector.build())
-                .withTreatment(inTreatment.build())
-                //10 Sec?
-                .withIdleTimeout(20)
-                .withPriority(50000)
-                .build();
+        if (protocol == IPv4.PROTOCOL_TCP) {
+            outSelector.matchTcpSrc(TpPort.tpPort(hostPort));
+            outTreatment.setTcpSrc(TpPort.tpPort(translatedPort));
+            if (!aggregate) {
+                outSelector.matchTcpDst(TpPort.tpPort(destPort));
+            }
+        } else {
+            outSelector.matchUdpSrc(TpPort.tpPort(hostPort));
+            outTreatment.setUdpSrc(TpPort.tpPort(translatedPort));
+            if (!aggregate) {
+                outSelector.matchUdpDst(TpPort.tpPort(destPort));
+            }
+        }
+        if (grouped) {
+            //Only missing when rebuilding the rules of a removed group for removal
+            if (interfaceGroup != null) {
+                outTreatment.group(interfaceGroup);
+            }
+        } else {
+            outTreatment.setOutput(interfacePort);
+        }
 
         FlowRule outFlowRule = DefaultFlowRule.builder()
                 .forDevice(gateway)
                 .fromApp(appId)
                 .withSelector(outSelector.build())
                 .withTreatment(outTreatment.build())
-                //10 Sec?
-                .withIdleTimeout(20)
-                .withPriority(50000)
+                .withIdleTimeout(idleTimeout)
+                .withHardTimeout(hardTimeout)
+                .withPriority(aggregate ? AGGREGATE_PRIORITY : 50000)
                 .build();
 
-        InterfaceTable interfaceTable = Interfaces.get(outgoingPortNumber);
+        //An aggregate incoming rule matches no remote endpoint, so it is held to traffic arriving on its interface
+        //or it would also translate the host's own traffic to the remote port
+        List<PortNumber> inPorts = grouped && aggregate && !Interfaces.isEmpty() ?
+                new ArrayList<>(Interfaces.keySet()) : Collections.singletonList(interfacePort);
+        FlowRule[] result = new FlowRule[inPorts.size() + 1];
+        result[1] = outFlowRule;
+        for (int i = 0; i < inPorts.size(); i++) {
+            result[i == 0 ? 0 : i + 1] = buildInRule(hostSwitchPort, hostMac, hostIp, hostPort, destIp, destPort,
+                    protocol, inPorts.get(i), translatedPort, idleTimeout, hardTimeout);
+        }
+        return result;
+    }
 
+    /**
+     * Builds the rule translating a session's incoming traffic from the destination back to the host
+     *
+     * @param interfacePort The interface the traffic arrives on, or PortNumber.ANY for any interface of the group
+     */
+    private FlowRule buildInRule(PortNumber hostSwitchPort, MacAddress hostMac, int hostIp, int hostPort,
+                                 int destIp, int destPort, byte protocol, PortNumber interfacePort,
+                                 int translatedPort, int idleTimeout, int hardTimeout) {
+        boolean aggregate = destIp == AGGREGATE_DEST;
+
+        TrafficSelector.Builder inSelector = DefaultTrafficSelector.builder()
+                .matchEthType(Ethernet.TYPE_IPV4)
+                .matchIPProtocol(protocol);
+        if (!aggregate) {
+            inSelector.matchIPSrc(IpPrefix.valueOf(destIp, 32));
+        }
+        if (!PortNumber.ANY.equals(interfacePort) && Interfaces.containsKey(interfacePort)) {
+            inSelector.matchIPDst(IpPrefix.valueOf(Interfaces.get(interfacePort).getIpAddress().getIp4Address(),
+                    32));
+            if (aggregate) {
+                inSelector.matchInPort(interfacePort);
+            }
+        }
+        TrafficTreatment.Builder inTreatment = DefaultTrafficTreatment.builder()
+                .setIpDst(Ip4Address.valueOf(hostIp))
+                .setEthDst(hostMac);
 
-        NatSessionTuple sessionTuple = new NatSessionTuple(srcIP, interfaceIPAddr, destIP, srcPort, outTpPort, destPort, protocol);
+        if (protocol == IPv4.PROTOCOL_TCP) {
+            inSelector.matchTcpDst(TpPort.tpPort(translatedPort));
+            inTreatment.setTcpDst(TpPort.tpPort(hostPort));
+            if (!aggregate) {
+                inSelector.matchTcpSrc(TpPort.tpPort(destPort));
+            }
+        } else {
+            inSelector.matchUdpDst(TpPort.tpPort(translatedPort));
+            inTreatment.setUdpDst(TpPort.tpPort(hostPort));
+            if (!aggregate) {
+                inSelector.matchUdpSrc(TpPort.tpPort(destPort));
+            }
+        }
+        inTreatment.setOutput(hostSwitchPort);
 
-        interfaceTable.addFlowEntry(sessionTuple, inFlowRule, outFlowRule, protocol);
+        return DefaultFlowRule.builder()
+                .forDevice(gateway)
+                .fromApp(appId)
+                .withSelector(inSelector.build())
+                .withTreatment(inTreatment.build())
+                .withIdleTimeout(idleTimeout)
+                .withHardTimeout(hardTimeout)
+                .withPriority(aggregate ? AGGREGATE_PRIORITY : 50000)
+                .build();
+    }
 
-        FlowRule[] result = {inFlowRule, outFlowRule};
-        return result;
+    /**
+     * Translates an outgoing ICMP echo request to an interface, reusing the host's identifier translation
+     * @param ipPktIn The parsed request, which is read but not changed
+     * @param frame The raw frame of the request, translated in place
+     * @return false if the interface has no free echo identifiers
+     */
+    public synchronized boolean handleICMPOut(IPv4 ipPktIn, ByteBuffer frame, PortNumber outgoingPortNumber) {
+        ICMP icmpPktIn = (ICMP)ipPktIn.getPayload();
+        ICMPEcho echo = (ICMPEcho)icmpPktIn.getPayload();
 
+        InterfaceTable outInterface = Interfaces.get(outgoingPortNumber);
+        if (outInterface == null) {
+            return false;
+        }
+        int queryID = outInterface.icmpSessions.translateOut(ipPktIn.getSourceAddress(),
+                echo.getIdentifier() & 0xFFFF, ipPktIn.getDestinationAddress(), System.currentTimeMillis());
+        if (queryID == IcmpSessionTable.NONE) {
+            log.warn("No free ICMP echo identifiers left on interface " + outgoingPortNumber +
+                    " of gateway " + gateway);
+            return false;
+        }
 
+        PacketRewriter.setIcmpEchoId(frame, queryID);
+        PacketRewriter.setIpSrc(frame, outInterface.getIpAddress().getIp4Address().toInt());
+        PacketRewriter.setEthSrc(frame, outInterface.getMacAddress().toLong());
+        return true;
     }
 
-    public IPv4 handleICMPOut(int destIp, int srcIp, IPv4 ipPktIn, PortNumber outgoingPortNumber, int hostIP) {
-
+    /**
+     * Translates an incoming ICMP echo reply back to the host which sent the request.
+     * The destination MAC address is left for the caller, which knows the host's location.
+     * @param ipPktIn The parsed reply, which is read but not changed
+     * @param frame The raw frame of the reply, translated in place
+     * @return The address of the host, or null if the reply matches no translation
+     */
+    public synchronized Ip4Address handleICMPIn(IPv4 ipPktIn, ByteBuffer frame, PortNumber ingressPort) {
         ICMP icmpPktIn = (ICMP)ipPktIn.getPayload();
-        if (icmpPktIn.getIcmpType() == 3 || icmpPktIn.getIcmpType() == 12) {
-             log.info("ICMP Packet: " + icmpPktIn.toString() +"\nICMP encapsulated packet: " + icmpPktIn.getPayload().toString());
+        ICMPEcho echo = (ICMPEcho)icmpPktIn.getPayload();
 
+        InterfaceTable inInterface = Interfaces.get(ingressPort);
+        int entry = inInterface != null ? inInterface.icmpSessions.lookupIn(ipPktIn.getSourceAddress(),
+                echo.getIdentifier() & 0xFFFF, System.currentTimeMillis()) : IcmpSessionTable.NONE;
+        if (entry == IcmpSessionTable.NONE) {
+            return null;
         }
-            ICMPEcho echo = (ICMPEcho)icmpPktIn.getPayload();
-
-            int queryID = Interfaces.get(outgoingPortNumber).getNextQueryId();
-            int oldQueryId = echo.getIdentifier();
-
-            Interfaces.get(outgoingPortNumber).addPingEntry(new NatSessionTuple(
-                    IpAddress.valueOf(hostIP),
-                    IpAddress.valueOf(srcIp),
-                    IpAddress.valueOf(destIp),
-                    oldQueryId,
-                    queryID,
-                    -1,
-                    IPv4.PROTOCOL_ICMP));
 
-            //log.info("Added ping entry to interface table, IP: " + hostIP + ", oldID: " + oldQueryId + ", newID: " + queryID);
-            echo.setIdentifier((short)queryID);
+        int hostIp = inInterface.icmpSessions.getHostIp(entry);
+        PacketRewriter.setIcmpEchoId(frame, inInterface.icmpSessions.getHostId(entry));
+        PacketRewriter.setIpDst(frame, hostIp);
+        return Ip4Address.valueOf(hostIp);
+    }
 
-            ipPktIn.setDestinationAddress(destIp);
-            ipPktIn.setSourceAddress(srcIp);
-            icmpPktIn.setPayload(echo);
-            ipPktIn.setPayload(icmpPktIn);
+    /**
+     * Removes the ICMP echo translations which have not been used within their timeout
+     * @return The number of translations removed
+     */
+    public synchronized int expireIcmpSessions() {
+        int expired = 0;
+        long now = System.currentTimeMillis();
+        for (InterfaceTable interfaceTable : Interfaces.values()) {
+            expired += interfaceTable.icmpSessions.advance(now);
+        }
+        return expired;
+    }
 
-            return ipPktIn;
+    /**
+     *  method used for adding interfaces to the NatHandler
+     * @param intf
+     */
+    public synchronized void addInterfaceTable(PortNumber port, WanInterface intf) {
+        InterfaceTable interfaceTable = new InterfaceTable(port, intf);
+        interfaceTable.setPortBlocks(blockLayout);
 
+        //Group sessions may be sent out of the new interface once it joins the group
+        for (int mapping : sessions.getMappings(PortNumber.ANY)) {
+            interfaceTable.reservePort(sessions.getProtocol(mapping), sessions.getTranslatedPort(mapping));
+        }
+        Interfaces.put(port, interfaceTable);
     }
 
-    public IPv4 handleICMPIn(int srcIPAddress, IPv4 ipPktIn, PortNumber ingressPort) {
-        ICMP icmpPktIn = (ICMP)ipPktIn.getPayload();
-        ICMPEcho echo = (ICMPEcho)icmpPktIn.getPayload();
+    /**
+     * Sets the meters the outgoing rules of new sessions on an interface use, by traffic class
+     * @param meters The meter of flows with no class at index 0 and of class i at i + 1, null where not limited
+     */
+    public synchronized void setInterfaceMeters(PortNumber port, MeterId[] meters) {
+        InterfaceTable interfaceTable = Interfaces.get(port);
+        if (interfaceTable != null) {
+            interfaceTable.setMeters(meters);
+        }
+    }
 
-        int queryID = (int)echo.getIdentifier();
+    /**
+     * Allocates a translated port which is free on every interface, as the group may send the session out of
+     * any of them
+     * @return The port, or PortAllocator.EXHAUSTED if no common free port was found
+     */
+    private int allocateGroupPort(byte protocol, int hostIp) {
+        InterfaceTable first = Interfaces.values().iterator().next();
+        for (int attempt = 0; attempt < GROUP_PORT_ATTEMPTS; attempt++) {
+            int port = first.allocatePort(protocol, hostIp);
+            if (port == PortAllocator.EXHAUSTED) {
+                return port;
+            }
 
-        IpAddress hostIP = Interfaces.get(ingressPort).getHostIP(IpAddress.valueOf(srcIPAddress), queryID, IPv4.PROTOCOL_ICMP);
-        int oldQueryID = Interfaces.get(ingressPort).getQueryID(IpAddress.valueOf(srcIPAddress), queryID, IPv4.PROTOCOL_ICMP);
+            List<InterfaceTable> reserved = new ArrayList<>();
+            for (InterfaceTable interfaceTable : Interfaces.values()) {
+                if (interfaceTable != first) {
+                    if (!interfaceTable.reservePort(protocol, port)) {
+                        break;
+                    }
+                    reserved.add(interfaceTable);
+                }
+            }
+            if (reserved.size() == Interfaces.size() - 1) {
+                return port;
+            }
 
-        echo.setIdentifier((short)oldQueryID);
+            //Taken on another interface, the allocator moves on to the next port
+            first.releasePort(protocol, port);
+            for (InterfaceTable interfaceTable : reserved) {
+                interfaceTable.releasePort(protocol, port);
+            }
+        }
+        return PortAllocator.EXHAUSTED;
+    }
 
-        ipPktIn.setDestinationAddress(hostIP.getIp4Address().toInt());
-        ipPktIn.setSourceAddress(srcIPAddress);
-        icmpPktIn.setPayload(echo);
-        ipPktIn.setPayload(icmpPktIn);
+    /**
+     * Sets the range of translated TCP/UDP ports used on every interface of the gateway.
+     * Ports already in use outside of the new range are kept until their session ends.
+     * @param minPort The lowest translated port
+     * @param maxPort The highest translated port
+     */
+    public synchronized void setPortRange(int minPort, int maxPort) {
+        PortBlockAllocator layout = blockPrefix != null ?
+                makeBlockLayout(blockPrefix, minPort, maxPort, blockLayout.getBlockSize()) : null;
+        for (InterfaceTable table : Interfaces.values()) {
+            table.setPortRange(minPort, maxPort);
+        }
+        this.minPort = minPort;
+        this.maxPort = maxPort;
+        setBlockLayout(layout);
+    }
 
-        return ipPktIn;
+    /**
+     * Switches the gateway to port-block NAT, where every address of the local prefix owns a fixed block of
+     * translated ports on each interface, or back to allocating from the whole range.
+     * Ports already in use are kept until their session ends, wherever they lie.
+     * @param localPrefix The prefix of the hosts behind the gateway
+     * @param blockSize The number of ports in each host's block, or 0 to turn port blocks off
+     */
+    public synchronized void setPortBlocks(IpPrefix localPrefix, int blockSize) {
+        if (blockSize == 0) {
+            blockPrefix = null;
+            setBlockLayout(null);
+            return;
+        }
+        PortBlockAllocator layout = makeBlockLayout(localPrefix, minPort, maxPort, blockSize);
+        blockPrefix = localPrefix;
+        setBlockLayout(layout);
+        log.info("Gateway: " + gateway + " port blocks of " + blockSize + " ports from " + minPort + " for "
+                + localPrefix);
     }
 
     /**
-     *  method used for adding interfaces to the NatHandler
-     * @param intf
+     * Finds the host a translated port belongs to in port-block mode, computed from the block layout
+     * @return The host's address, or null if port blocks are off or the port is outside of every block
      */
-    public void addInterfaceTable(PortNumber port, WanInterface intf) {
-        Interfaces.put(port, new InterfaceTable(intf));
+    public synchronized Ip4Address getPortBlockHost(int translatedPort) {
+        if (blockLayout == null) {
+            return null;
+        }
+        int block = blockLayout.getBlockIndex(translatedPort);
+        return block != PortBlockAllocator.NONE ? Ip4Address.valueOf(blockLayout.getHostIp(block)) : null;
     }
 
-    public void removeInterfaceTable(PortNumber port) {
+    private PortBlockAllocator makeBlockLayout(IpPrefix localPrefix, int minPort, int maxPort, int blockSize) {
+        return new PortBlockAllocator(localPrefix.address().getIp4Address().toInt(), localPrefix.prefixLength(),
+                minPort, maxPort, blockSize);
+    }
+
+    private void setBlockLayout(PortBlockAllocator layout) {
+        blockLayout = layout;
+        for (InterfaceTable table : Interfaces.values()) {
+            table.setPortBlocks(layout);
+        }
+    }
+
+    public synchronized void removeInterfaceTable(PortNumber port) {
         Interfaces.remove(port);
+        sessions.removeInterface(port);
+    }
+
+    public synchronized int getNumberFlows(PortNumber portNumber) {
+        return sessions.getSessionCount(portNumber);
     }
 
-    public int getNumberFlows(PortNumber portNumber) {
-        return Interfaces.get(portNumber).flowRules.size();
+    public synchronized int getNumberFlows() {
+        return sessions.getSessionCount();
+    }
+
+    /**
+     * @return The approximate heap in bytes used to store the gateway's NAT sessions
+     */
+    public synchronized long getMemoryFootprint() {
+        long footprint = sessions.getMemoryFootprint();
+        for (InterfaceTable interfaceTable : Interfaces.values()) {
+            footprint += interfaceTable.icmpSessions.getMemoryFootprint();
+        }
+        return footprint;
     }
 
     /**
@@ -280,212 +817,109 @@ public class NatHandler {
      */
     private class InterfaceTable {
 
+        final private PortNumber port;
         final private WanInterface intf;
 
-        // Maps the host's IP Address/TpPort tuple to a FlowRule for outgoing NAT
-        Map<FlowId, NatSessionTuple> flowRules;
-
-        //List of assigned TpPorts
-        private List<TpPort> AssignedTCPPorts;
-        private List<TpPort> AssignedUDPPorts;
-        private List<NatSessionTuple> AssignedQueryIDs;
+        //Assigned translated TpPorts
+        private PortAllocator tcpPorts;
+        private PortAllocator udpPorts;
 
-        private int nextQueryId;
-        private int nextUDPPort;
-        private int nextTCPPort;
-
-        public InterfaceTable(WanInterface intf) {
-            this.intf = intf;
+        //Each host's block of the ports in port-block mode, otherwise null
+        private PortBlockAllocator tcpBlocks;
+        private PortBlockAllocator udpBlocks;
+        //Blocks whose assignment has been logged, a block is logged when its host first uses it
+        private final BitSet loggedBlocks = new BitSet();
 
-            AssignedTCPPorts = new ArrayList<>();
-            AssignedUDPPorts = new ArrayList<>();
-            AssignedQueryIDs = new ArrayList<>();
+        //ICMP echo identifier translations
+        private final IcmpSessionTable icmpSessions = new IcmpSessionTable();
 
-            nextQueryId = 1;
-            nextUDPPort = 1;
-            nextTCPPort = 1;
+        //Meter of each traffic class on the interface, flows with no class at index 0 and class i at i + 1
+        private MeterId[] meters = new MeterId[0];
 
-            flowRules = new HashMap<>();
-        }
+        public InterfaceTable(PortNumber port, WanInterface intf) {
+            this.port = port;
+            this.intf = intf;
 
-        public NatSessionTuple hasExistingNatSessionSource(IpAddress srcAddr, int port) {
-            for (NatSessionTuple session : flowRules.values()) {
-                if (session.hostSessionIdentifier == port && session.hostIpAddr == srcAddr) {
-                    return session;
-                }
-            }
-            return null;
+            tcpPorts = new PortAllocator(minPort, maxPort);
+            udpPorts = new PortAllocator(minPort, maxPort);
         }
 
-        public IpAddress getHostIP (IpAddress endpointIP, int queryID, byte protocol) {
-            for (NatSessionTuple session : AssignedQueryIDs) {
-                if (session.destIpAddr.equals(endpointIP) && session.destSessionIdentifier == queryID &&
-                        session.protocol == protocol) {
-                    return session.hostIpAddr;
-                }
+        /**
+         * Allocates a free translated port for the given protocol, from the host's block in port-block mode
+         * @return The port, or PortAllocator.EXHAUSTED if the interface or the host's block has run out of ports
+         */
+        public int allocatePort(byte protocol, int hostIp) {
+            PortAllocator ports = protocol == IPv4.PROTOCOL_TCP ? tcpPorts : udpPorts;
+            PortBlockAllocator blocks = protocol == IPv4.PROTOCOL_TCP ? tcpBlocks : udpBlocks;
+            if (blocks == null) {
+                return ports.allocate();
             }
-            return null;
-        }
 
-        public int getQueryID (IpAddress endpointIP, int queryID, byte protocol) {
-            for (NatSessionTuple session : AssignedQueryIDs) {
-                if (session.destIpAddr.equals(endpointIP) && session.destSessionIdentifier == queryID &&
-                        session.protocol == protocol) {
-                    return session.hostSessionIdentifier;
-                }
+            int port = blocks.allocate(ports, hostIp);
+            int block = blocks.getHostIndex(hostIp);
+            if (port != PortAllocator.EXHAUSTED && !loggedBlocks.get(block)) {
+                loggedBlocks.set(block);
+                log.info("NAT port block: " + Ip4Address.valueOf(hostIp) + " -> " + getIpAddress() + " ports "
+                        + blocks.getBlockStart(block) + "-" + blocks.getBlockEnd(block) + " on interface "
+                        + this.port + " of gateway " + gateway);
             }
-            return 0;
+            return port;
         }
 
-        public void addFlowEntry(NatSessionTuple tuple, FlowRule outgoingFlowRule, FlowRule incomingFlowRule, byte protocol) {
-            flowRules.put(outgoingFlowRule.id(), tuple);
-            if (protocol == IPv4.PROTOCOL_TCP) {
-                AssignedTCPPorts.add(TpPort.tpPort(tuple.translatedSrcSessionIdentifier));
-            } else if (protocol == IPv4.PROTOCOL_UDP) {
-                AssignedUDPPorts.add(TpPort.tpPort(tuple.translatedSrcSessionIdentifier));
+        /**
+         * Sets the block layout of the interface's ports, or null to allocate from the whole range
+         */
+        public void setPortBlocks(PortBlockAllocator layout) {
+            if (layout == null) {
+                tcpBlocks = null;
+                udpBlocks = null;
+            } else {
+                //Each protocol bumps its own cursors through the blocks
+                tcpBlocks = new PortBlockAllocator(layout);
+                udpBlocks = new PortBlockAllocator(layout);
             }
+            loggedBlocks.clear();
         }
 
-        public void addPingEntry(NatSessionTuple sessionTuple) {
-            AssignedQueryIDs.add(sessionTuple);
-            //TODO: Schedule timer to remove session in 60 sec
+        /**
+         * @return false if the port is already in use
+         */
+        public boolean reservePort(byte protocol, int port) {
+            return protocol == IPv4.PROTOCOL_TCP ? tcpPorts.reserve(port) : udpPorts.reserve(port);
         }
 
-        public void removePingEntry(NatSessionTuple sessionTuple) {
-            AssignedQueryIDs.remove(sessionTuple);
-        }
-
-        public void removeFlowEntry(FlowId flowId) {
-            if (flowRules.get(flowId) != null) {
-                NatSessionTuple session = flowRules.get(flowId);
-                int sessionId = session.destSessionIdentifier;
-                if (session.protocol == IPv4.PROTOCOL_TCP) {
-                    AssignedTCPPorts.remove(TpPort.tpPort(sessionId));
-                } else if (session.protocol == IPv4.PROTOCOL_UDP) {
-                    AssignedUDPPorts.remove(TpPort.tpPort(sessionId));
-                } else if (session.protocol == IPv4.PROTOCOL_ICMP) {
-                    AssignedQueryIDs.remove(flowRules.get(flowId));
-                }
-                flowRules.remove(flowId);
-
+        public void releasePort(byte protocol, int port) {
+            if (protocol == IPv4.PROTOCOL_TCP) {
+                tcpPorts.release(port);
+            } else {
+                udpPorts.release(port);
             }
         }
 
-        public int getNextTCPPort() {
-            //Copy the nextPort to be assigned
-            int returnPort = nextTCPPort;
-
-            //Find the new nextPort value
-            boolean nextPortFound = false;
-            while (!nextPortFound) {
-                if (!AssignedTCPPorts.contains(TpPort.tpPort(++nextTCPPort))) {
-                    nextPortFound = true;
-                }
-            }
-
-            //Return previous nextPort value
-            return returnPort;
+        public void setPortRange(int minPort, int maxPort) {
+            tcpPorts.setRange(minPort, maxPort);
+            udpPorts.setRange(minPort, maxPort);
         }
 
-        public int getNextUDPPort() {
-            //Copy the nextPort to be assigned
-            int returnPort = nextUDPPort;
-
-            //Find the new nextPort value
-            boolean nextPortFound = false;
-            while (!nextPortFound) {
-                if (!AssignedUDPPorts.contains(TpPort.tpPort(++nextUDPPort))) {
-                    nextPortFound = true;
-                }
-            }
-
-            //Return previous nextPort value
-            return returnPort;
+        public IpAddress getIpAddress() {
+            return intf.getIp4Address();
         }
 
-        public int getNextQueryId() {
-            //Copy the nextPort to be assigned
-            int returnId = nextQueryId;
-
-            //Find the new nextPort value
-            boolean nextIdFound = false;
-            while (!nextIdFound) {
-                if (!AssignedQueryIDs.contains(++nextQueryId)) {
-                    nextIdFound = true;
-                }
-            }
-
-            //Return previous nextQueryId value
-            return returnId;
+        /**
+         * @param trafficClass The class's index in the traffic policy, or TrafficPolicy.NONE
+         * @return The meter of the class on the interface, or null if its rate is not limited
+         */
+        public MeterId getMeter(int trafficClass) {
+            int index = trafficClass + 1;
+            return index >= 0 && index < meters.length ? meters[index] : null;
         }
 
-        public IpAddress getIpAddress() {
-            return intf.getIp4Address();
+        public void setMeters(MeterId[] meters) {
+            this.meters = meters;
         }
 
         public MacAddress getMacAddress() {
             return intf.getMacAddress();
         }
     }
-
-    /**
-     * Class used for storing a combination of IP Address and TpPort to keep track of NAT connections
-     */
-    private class NatSessionTuple {
-        IpAddress hostIpAddr;
-        IpAddress translatedSrcIpAddr;
-        IpAddress destIpAddr;
-        int hostSessionIdentifier;
-        int translatedSrcSessionIdentifier;
-        int destSessionIdentifier;
-        byte protocol;
-
-        /*@Override
-        public String toString() {
-            return "NatSessionTuple{" +
-                    "hostIpAddr=" + hostIpAddr +
-                    ", destIpAddr=" + destIpAddr +
-                    ", srcSessionIdentifier=" + hostSessionIdentifier +
-                    ", destSessionIdentifier=" + destSessionIdentifier +
-                    ", protocol=" + protocol +
-                    '}';
-        }*/
-
-        public NatSessionTuple(IpAddress hostIpAddr, IpAddress translatedSrcIpAddr, IpAddress destIpAddr,
-                               int hostSessionIdentifier, int translatedSrcSessionIdentifier,
-                               int destSessionIdentifier, byte protocol) {
-            this.hostIpAddr = hostIpAddr;
-            this.translatedSrcIpAddr = translatedSrcIpAddr;
-            this.destIpAddr = destIpAddr;
-            this.hostSessionIdentifier = hostSessionIdentifier;
-            this.translatedSrcSessionIdentifier = translatedSrcSessionIdentifier;
-            this.destSessionIdentifier = destSessionIdentifier;
-            this.protocol = protocol;
-        }
-
-        @Override
-        public int hashCode() {
-            int result = hostIpAddr.hashCode() + destIpAddr.hashCode() + translatedSrcIpAddr.hashCode();
-            result = 31 * result + hostSessionIdentifier + destSessionIdentifier +
-                    translatedSrcSessionIdentifier + protocol;
-            return result;
-        }
-
-        @Override
-        public boolean equals(Object o) {
-            if (o == null || getClass() != o.getClass()) return false;
-
-            NatSessionTuple that = (NatSessionTuple) o;
-
-            if (hostSessionIdentifier != that.hostSessionIdentifier) return false;
-            if (translatedSrcSessionIdentifier != that.translatedSrcSessionIdentifier) return false;
-            if (destSessionIdentifier != that.destSessionIdentifier) return false;
-            if (protocol != that.protocol) return false;
-            if (!hostIpAddr.equals(that.hostIpAddr)) return false;
-            if (!translatedSrcIpAddr.equals(that.translatedSrcIpAddr)) return false;
-            return destIpAddr.equals(that.destIpAddr);
-        }
-    }
 }
-
-
@@ -0,0 +1,58 @@
+package org.sd_wan.app;
+
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.flow.FlowRule;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The flow rule changes needed to move the NAT sessions of a failed interface onto the remaining interfaces
+ */
+public class NatMigration {
+
+    final PortNumber failedPort;
+    final List<FlowRule> removedRules = new ArrayList<>();
+    final List<FlowRule> installedRules = new ArrayList<>();
+    int migratedSessions;
+    int droppedSessions;
+
+    public NatMigration(PortNumber failedPort) {
+        this.failedPort = failedPort;
+    }
+
+    public PortNumber getFailedPort() {
+        return failedPort;
+    }
+
+    /**
+     * @return The rules of the failed interface, which are not replaced by an installed rule
+     */
+    public List<FlowRule> getRemovedRules() {
+        return removedRules;
+    }
+
+    public List<FlowRule> getInstalledRules() {
+        return installedRules;
+    }
+
+    public int getMigratedSessions() {
+        return migratedSessions;
+    }
+
+    /**
+     * @return The number of sessions which could not be moved, as no other interface had a free port
+     */
+    public int getDroppedSessions() {
+        return droppedSessions;
+    }
+
+    public boolean isEmpty() {
+        return removedRules.isEmpty() && installedRules.isEmpty();
+    }
+
+    public String toString() {
+        return "Port: " + failedPort + ", migrated sessions: " + migratedSessions +
+                ", dropped sessions: " + droppedSessions;
+    }
+}
@@ -0,0 +1,445 @@
+package org.sd_wan.app;
+
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.flow.FlowId;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Hash indexed table of the TCP/UDP NAT sessions of a gateway.
+ * Mappings are indexed by the host's (IP, port, protocol) and by the translated (IP, port, protocol) so that
+ * both directions can be looked up in constant time, sessions are indexed by the ids of their two flow rules.
+ *
+ * Mappings and sessions are packed into parallel primitive arrays and referred to by int handles, which stay
+ * valid until the mapping or session is removed. Freed handles are reused before the arrays are grown.
+ *
+ * Each session also has an expiry deadline in a TimingWheel, pushed back whenever its rules are seen in the
+ * flow statistics, so sessions whose rule removal events were lost are still reclaimed.
+ */
+public class NatSessionTable {
+
+    //Handle returned when a mapping or session does not exist
+    public static final int NONE = -1;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    //Sessions not seen in the flow statistics for this long are expired. NatHandler raises the timeout above the
+    //rules' longest idle timeout, see TimeoutPolicy.getMaxIdleTimeout()
+    public static final long DEFAULT_SESSION_TIMEOUT_MILLIS = 30000;
+    private static final long EXPIRY_TICK_MILLIS = 1000;
+
+    // Endpoint independent mappings: host IP/port translated to an interface IP/port
+    private int[] mappingHostIp;
+    private int[] mappingTranslatedIp;
+    private char[] mappingHostPort;
+    private char[] mappingTranslatedPort;
+    private byte[] mappingProtocol;
+    private byte[] mappingInterface;
+    // Host's MAC address and the gateway port it is attached to, used to rebuild the mapping's flow rules
+    private long[] mappingHostMac;
+    private long[] mappingHostSwitchPort;
+    // Number of sessions using the mapping, or the next free handle for free mappings
+    private int[] mappingSessions;
+    private int freeMapping = NONE;
+    private int mappingHighWater = 0;
+    private int mappingCount = 0;
+
+    // Sessions from a mapping to a single destination, installed as a pair of flow rules
+    private int[] sessionMapping;
+    private int[] sessionDestIp;
+    private char[] sessionDestPort;
+    private long[] sessionInFlowId;
+    private long[] sessionOutFlowId;
+    // Number of the session's flow rules still installed, 0 for free sessions
+    private byte[] sessionInstalledRules;
+    private int freeSession = NONE;
+    private int sessionHighWater = 0;
+    private int sessionCount = 0;
+
+    //Started by the first session, as it needs the current time
+    private TimingWheel expiryWheel;
+    private long sessionTimeoutMillis = DEFAULT_SESSION_TIMEOUT_MILLIS;
+
+    private LongIntHashMap mappingsByHost = new LongIntHashMap();
+    private LongIntHashMap mappingsByTranslated = new LongIntHashMap();
+    private LongIntHashMap sessionsByFlowId = new LongIntHashMap();
+
+    // Interfaces are stored in the mappings as an index into this list
+    private List<PortNumber> interfacePorts = new ArrayList<>();
+    private int[] interfaceSessionCounts = new int[256];
+
+    public NatSessionTable() {
+        growMappings(INITIAL_CAPACITY);
+        growSessions(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Packs an IPv4 address, transport port and protocol into a single key
+     */
+    public static long key(int ipAddress, int port, byte protocol) {
+        return ((ipAddress & 0xFFFFFFFFL) << 24) | ((port & 0xFFFFL) << 8) | (protocol & 0xFFL);
+    }
+
+    public int getByHost(int hostIp, int hostPort, byte protocol) {
+        return mappingsByHost.get(key(hostIp, hostPort, protocol));
+    }
+
+    public int getByTranslated(int translatedIp, int translatedPort, byte protocol) {
+        return mappingsByTranslated.get(key(translatedIp, translatedPort, protocol));
+    }
+
+    public int getByFlowId(FlowId flowId) {
+        return sessionsByFlowId.get(flowId.value());
+    }
+
+    /**
+     * Creates a new mapping from a host's IP/port to a translated IP/port on an interface
+     * @param hostMac The host's MAC address
+     * @param hostSwitchPort The gateway port the host is reached through
+     * @return The handle of the new mapping
+     */
+    public int addMapping(PortNumber interfacePort, long hostMac, PortNumber hostSwitchPort, int hostIp, int hostPort,
+                          int translatedIp, int translatedPort, byte protocol) {
+        int mapping = freeMapping;
+        if (mapping != NONE) {
+            freeMapping = mappingSessions[mapping];
+        } else {
+            if (mappingHighWater == mappingHostIp.length) {
+                growMappings(mappingHostIp.length << 1);
+            }
+            mapping = mappingHighWater++;
+        }
+
+        mappingHostIp[mapping] = hostIp;
+        mappingTranslatedIp[mapping] = translatedIp;
+        mappingHostPort[mapping] = (char) hostPort;
+        mappingTranslatedPort[mapping] = (char) translatedPort;
+        mappingProtocol[mapping] = protocol;
+        mappingInterface[mapping] = (byte) interfaceIndex(interfacePort);
+        mappingHostMac[mapping] = hostMac;
+        mappingHostSwitchPort[mapping] = hostSwitchPort.toLong();
+        mappingSessions[mapping] = 0;
+        mappingCount++;
+
+        mappingsByHost.put(key(hostIp, hostPort, protocol), mapping);
+        mappingsByTranslated.put(key(translatedIp, translatedPort, protocol), mapping);
+        return mapping;
+    }
+
+    /**
+     * Adds a session to a destination through an existing mapping.
+     * If the session already exists, e.g. one of its rules has idled out and both are being installed again,
+     * it is kept and holds both rules again. Rules still held by any other session must first be taken from it
+     * with removeFlowRule().
+     * @param inFlowRuleId The id of the edge to host flow rule
+     * @param outFlowRuleId The id of the host to edge flow rule
+     * @param nowMillis The current time, from which the session's expiry is counted
+     * @return The handle of the session
+     */
+    public int addSession(int mapping, int destIp, int destPort, FlowId inFlowRuleId, FlowId outFlowRuleId,
+                          long nowMillis) {
+        int existing = sessionsByFlowId.get(outFlowRuleId.value());
+        if (!isSession(existing, mapping, destIp, destPort)) {
+            existing = sessionsByFlowId.get(inFlowRuleId.value());
+        }
+        if (isSession(existing, mapping, destIp, destPort)) {
+            sessionsByFlowId.put(inFlowRuleId.value(), existing);
+            sessionsByFlowId.put(outFlowRuleId.value(), existing);
+            sessionInstalledRules[existing] = 2;
+            touchSession(existing, nowMillis);
+            return existing;
+        }
+
+        int session = freeSession;
+        if (session != NONE) {
+            freeSession = sessionMapping[session];
+        } else {
+            if (sessionHighWater == sessionMapping.length) {
+                growSessions(sessionMapping.length << 1);
+            }
+            session = sessionHighWater++;
+        }
+
+        sessionMapping[session] = mapping;
+        sessionDestIp[session] = destIp;
+        sessionDestPort[session] = (char) destPort;
+        sessionInFlowId[session] = inFlowRuleId.value();
+        sessionOutFlowId[session] = outFlowRuleId.value();
+        sessionInstalledRules[session] = 2;
+        sessionCount++;
+
+        mappingSessions[mapping]++;
+        interfaceSessionCounts[mappingInterface[mapping] & 0xFF]++;
+        sessionsByFlowId.put(inFlowRuleId.value(), session);
+        sessionsByFlowId.put(outFlowRuleId.value(), session);
+
+        if (expiryWheel == null) {
+            expiryWheel = new TimingWheel(EXPIRY_TICK_MILLIS, nowMillis);
+        }
+        expiryWheel.schedule(session, nowMillis + sessionTimeoutMillis);
+        return session;
+    }
+
+    /**
+     * @return true if a session is the session of a mapping to a destination
+     */
+    public boolean isSession(int session, int mapping, int destIp, int destPort) {
+        return session != NONE && sessionMapping[session] == mapping && sessionDestIp[session] == destIp
+                && sessionDestPort[session] == destPort;
+    }
+
+    /**
+     * Records that a rule of a session was still installed at a time, pushing back the session's expiry
+     */
+    public void touchSession(int session, long lastSeenMillis) {
+        long deadline = lastSeenMillis + sessionTimeoutMillis;
+        if (expiryWheel.isScheduled(session) && deadline > expiryWheel.getDeadline(session)) {
+            expiryWheel.schedule(session, deadline);
+        }
+    }
+
+    /**
+     * Passes every session which has not been seen within the session timeout to the handler.
+     * The handler is expected to remove the session with removeSession().
+     * @return The number of sessions expired
+     */
+    public int expireSessions(long nowMillis, TimingWheel.ExpiryHandler handler) {
+        return expiryWheel != null ? expiryWheel.advance(nowMillis, handler) : 0;
+    }
+
+    public void setSessionTimeout(long sessionTimeoutMillis) {
+        this.sessionTimeoutMillis = sessionTimeoutMillis;
+    }
+
+    /**
+     * Removes a flow rule of a session. The session ends once both of its flow rules are gone.
+     * @param flowId The id of the removed flow rule
+     * @return The handle of the session's mapping if the mapping no longer has any sessions, otherwise NONE.
+     *          The caller should release the mapping's translated port and then call removeMapping()
+     */
+    public int removeFlowRule(FlowId flowId) {
+        int session = sessionsByFlowId.remove(flowId.value());
+        if (session == NONE || --sessionInstalledRules[session] > 0) {
+            return NONE;
+        }
+
+        int mapping = sessionMapping[session];
+        freeSession(session);
+        return mappingSessions[mapping] == 0 ? mapping : NONE;
+    }
+
+    /**
+     * Removes a session and those of its flow rules it still holds from the table
+     * @return The handle of the session's mapping if the mapping no longer has any sessions, otherwise NONE.
+     *          The caller should release the mapping's translated port and then call removeMapping()
+     */
+    public int removeSession(int session) {
+        unindexFlowRule(sessionInFlowId[session], session);
+        unindexFlowRule(sessionOutFlowId[session], session);
+
+        int mapping = sessionMapping[session];
+        freeSession(session);
+        return mappingSessions[mapping] == 0 ? mapping : NONE;
+    }
+
+    /**
+     * @return The handles of every session using an interface
+     */
+    public int[] getSessions(PortNumber interfacePort) {
+        int index = interfacePorts.indexOf(interfacePort);
+        if (index < 0) {
+            return new int[0];
+        }
+
+        int[] sessions = new int[interfaceSessionCounts[index]];
+        int found = 0;
+        for (int session = 0; session < sessionHighWater && found < sessions.length; session++) {
+            if (sessionInstalledRules[session] > 0 && mappingInterface[sessionMapping[session]] == (byte) index) {
+                sessions[found++] = session;
+            }
+        }
+        return found == sessions.length ? sessions : Arrays.copyOf(sessions, found);
+    }
+
+    /**
+     * @return The handles of every mapping on an interface
+     */
+    public int[] getMappings(PortNumber interfacePort) {
+        int index = interfacePorts.indexOf(interfacePort);
+        if (index < 0) {
+            return new int[0];
+        }
+
+        int[] mappings = new int[mappingCount];
+        int found = 0;
+        for (int mapping = 0; mapping < mappingHighWater; mapping++) {
+            if (mappingProtocol[mapping] != 0 && mappingInterface[mapping] == (byte) index) {
+                mappings[found++] = mapping;
+            }
+        }
+        return Arrays.copyOf(mappings, found);
+    }
+
+    /**
+     * Removes a mapping which no longer has any sessions
+     */
+    public void removeMapping(int mapping) {
+        byte protocol = mappingProtocol[mapping];
+        mappingsByHost.remove(key(mappingHostIp[mapping], mappingHostPort[mapping], protocol));
+        mappingsByTranslated.remove(key(mappingTranslatedIp[mapping], mappingTranslatedPort[mapping], protocol));
+
+        mappingProtocol[mapping] = 0;
+        mappingSessions[mapping] = freeMapping;
+        freeMapping = mapping;
+        mappingCount--;
+    }
+
+    /**
+     * Drops every mapping and session of an interface, used when the interface is removed from the gateway
+     */
+    public void removeInterface(PortNumber interfacePort) {
+        int index = interfacePorts.indexOf(interfacePort);
+        if (index < 0) {
+            return;
+        }
+
+        for (int session = 0; session < sessionHighWater; session++) {
+            if (sessionInstalledRules[session] > 0 && mappingInterface[sessionMapping[session]] == (byte) index) {
+                unindexFlowRule(sessionInFlowId[session], session);
+                unindexFlowRule(sessionOutFlowId[session], session);
+                freeSession(session);
+            }
+        }
+        for (int mapping = 0; mapping < mappingHighWater; mapping++) {
+            if (mappingProtocol[mapping] != 0 && mappingInterface[mapping] == (byte) index) {
+                removeMapping(mapping);
+            }
+        }
+        interfaceSessionCounts[index] = 0;
+    }
+
+    public PortNumber getInterfacePort(int mapping) {
+        return interfacePorts.get(mappingInterface[mapping] & 0xFF);
+    }
+
+    public long getHostMac(int mapping) {
+        return mappingHostMac[mapping];
+    }
+
+    public PortNumber getHostSwitchPort(int mapping) {
+        return PortNumber.portNumber(mappingHostSwitchPort[mapping]);
+    }
+
+    public int getHostIp(int mapping) {
+        return mappingHostIp[mapping];
+    }
+
+    public int getHostPort(int mapping) {
+        return mappingHostPort[mapping];
+    }
+
+    public int getTranslatedIp(int mapping) {
+        return mappingTranslatedIp[mapping];
+    }
+
+    public int getTranslatedPort(int mapping) {
+        return mappingTranslatedPort[mapping];
+    }
+
+    public byte getProtocol(int mapping) {
+        return mappingProtocol[mapping];
+    }
+
+    public int getSessionMapping(int session) {
+        return sessionMapping[session];
+    }
+
+    public int getDestIp(int session) {
+        return sessionDestIp[session];
+    }
+
+    public int getDestPort(int session) {
+        return sessionDestPort[session];
+    }
+
+    public int getSessionCount(PortNumber interfacePort) {
+        int index = interfacePorts.indexOf(interfacePort);
+        return index < 0 ? 0 : interfaceSessionCounts[index];
+    }
+
+    public int getSessionCount() {
+        return sessionCount;
+    }
+
+    public int getMappingCount() {
+        return mappingCount;
+    }
+
+    /**
+     * @return The approximate heap in bytes used by the mapping and session arrays and their indexes
+     */
+    public long getMemoryFootprint() {
+        long mappingBytes = (long) mappingHostIp.length * (4 + 4 + 2 + 2 + 1 + 1 + 4 + 8 + 8);
+        long sessionBytes = (long) sessionMapping.length * (4 + 4 + 2 + 8 + 8 + 1);
+        return mappingBytes + sessionBytes + mappingsByHost.memoryFootprint()
+                + mappingsByTranslated.memoryFootprint() + sessionsByFlowId.memoryFootprint()
+                + (expiryWheel != null ? expiryWheel.memoryFootprint() : 0);
+    }
+
+    /**
+     * Drops a flow rule id from the index if it still refers to a session. A rule taken over by another session
+     * with removeFlowRule() stays indexed to its new owner.
+     */
+    private void unindexFlowRule(long flowId, int session) {
+        if (sessionsByFlowId.get(flowId) == session) {
+            sessionsByFlowId.remove(flowId);
+        }
+    }
+
+    private void freeSession(int session) {
+        int mapping = sessionMapping[session];
+        mappingSessions[mapping]--;
+        interfaceSessionCounts[mappingInterface[mapping] & 0xFF]--;
+
+        sessionInstalledRules[session] = 0;
+        expiryWheel.cancel(session);
+        sessionMapping[session] = freeSession;
+        freeSession = session;
+        sessionCount--;
+    }
+
+    private int interfaceIndex(PortNumber interfacePort) {
+        int index = interfacePorts.indexOf(interfacePort);
+        if (index < 0) {
+            if (interfacePorts.size() == interfaceSessionCounts.length) {
+                throw new IllegalStateException("Too many interfaces for NAT session table");
+            }
+            interfacePorts.add(interfacePort);
+            index = interfacePorts.size() - 1;
+        }
+        return index;
+    }
+
+    private void growMappings(int capacity) {
+        mappingHostIp = mappingHostIp == null ? new int[capacity] : Arrays.copyOf(mappingHostIp, capacity);
+        mappingTranslatedIp = mappingTranslatedIp == null ? new int[capacity] : Arrays.copyOf(mappingTranslatedIp, capacity);
+        mappingHostPort = mappingHostPort == null ? new char[capacity] : Arrays.copyOf(mappingHostPort, capacity);
+        mappingTranslatedPort = mappingTranslatedPort == null ? new char[capacity] : Arrays.copyOf(mappingTranslatedPort, capacity);
+        mappingProtocol = mappingProtocol == null ? new byte[capacity] : Arrays.copyOf(mappingProtocol, capacity);
+        mappingInterface = mappingInterface == null ? new byte[capacity] : Arrays.copyOf(mappingInterface, capacity);
+        mappingHostMac = mappingHostMac == null ? new long[capacity] : Arrays.copyOf(mappingHostMac, capacity);
+        mappingHostSwitchPort = mappingHostSwitchPort == null ? new long[capacity] : Arrays.copyOf(mappingHostSwitchPort, capacity);
+        mappingSessions = mappingSessions == null ? new int[capacity] : Arrays.copyOf(mappingSessions, capacity);
+    }
+
+    private void growSessions(int capacity) {
+        sessionMapping = sessionMapping == null ? new int[capacity] : Arrays.copyOf(sessionMapping, capacity);
+        sessionDestIp = sessionDestIp == null ? new int[capacity] : Arrays.copyOf(sessionDestIp, capacity);
+        sessionDestPort = sessionDestPort == null ? new char[capacity] : Arrays.copyOf(sessionDestPort, capacity);
+        sessionInFlowId = sessionInFlowId == null ? new long[capacity] : Arrays.copyOf(sessionInFlowId, capacity);
+        sessionOutFlowId = sessionOutFlowId == null ? new long[capacity] : Arrays.copyOf(sessionOutFlowId, capacity);
+        sessionInstalledRules = sessionInstalledRules == null ? new byte[capacity] : Arrays.copyOf(sessionInstalledRules, capacity);
+    }
+}
@@ -0,0 +1,239 @@
+package org.sd_wan.app;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Rewrites the addresses and ports of a raw Ethernet frame in place, so that a punted packet can be translated and
+ * sent on without deserializing it into packet objects and serializing it again.
+ * The IPv4 header checksum and the TCP, UDP and ICMP checksums are updated incrementally from the old and new
+ * value of each changed 16 bit word (RFC 1624), rather than recomputed over the whole packet.
+ *
+ * Every offset is from the start of the frame, which must be at position 0 of the buffer.
+ * Frames which are not IPv4, and the transport header of non-first IPv4 fragments, are left untouched.
+ */
+public final class PacketRewriter {
+
+    public static final int NONE = -1;
+
+    private static final int ETH_HEADER_LENGTH = 14;
+    private static final int VLAN_HEADER_LENGTH = 4;
+    private static final int TYPE_VLAN = 0x8100;
+    private static final int TYPE_IPV4 = 0x0800;
+    private static final int IPV4_MIN_HEADER_LENGTH = 20;
+
+    private static final int PROTOCOL_ICMP = 1;
+    private static final int PROTOCOL_TCP = 6;
+    private static final int PROTOCOL_UDP = 17;
+
+    private static final int TCP_CHECKSUM = 16;
+    private static final int UDP_CHECKSUM = 6;
+    private static final int ICMP_CHECKSUM = 2;
+    private static final int ICMP_ECHO_ID = 4;
+
+    private PacketRewriter() {
+    }
+
+    /**
+     * @return A buffer holding the frame that may be rewritten and emitted: the buffer itself if it is writable and
+     *          backs onto a whole array from position 0, otherwise a copy
+     */
+    public static ByteBuffer writableFrame(ByteBuffer unparsed) {
+        ByteBuffer frame = unparsed.duplicate();
+        if (!frame.isReadOnly() && frame.hasArray() && frame.arrayOffset() == 0 && frame.position() == 0
+                && frame.limit() == frame.array().length) {
+            return frame;
+        }
+        ByteBuffer copy = ByteBuffer.allocate(frame.remaining());
+        copy.put(frame);
+        copy.flip();
+        return copy;
+    }
+
+    public static void setEthSrc(ByteBuffer frame, long mac) {
+        putMac(frame, 6, mac);
+    }
+
+    public static void setEthDst(ByteBuffer frame, long mac) {
+        putMac(frame, 0, mac);
+    }
+
+    /**
+     * Sets the IPv4 source address, updating the IP header checksum and the TCP/UDP checksum
+     */
+    public static void setIpSrc(ByteBuffer frame, int ip) {
+        setIpAddress(frame, 12, ip);
+    }
+
+    /**
+     * Sets the IPv4 destination address, updating the IP header checksum and the TCP/UDP checksum
+     */
+    public static void setIpDst(ByteBuffer frame, int ip) {
+        setIpAddress(frame, 16, ip);
+    }
+
+    /**
+     * Sets the TCP or UDP source port, updating the transport checksum
+     */
+    public static void setSrcPort(ByteBuffer frame, int port) {
+        setTransportWord(frame, 0, port);
+    }
+
+    /**
+     * Sets the TCP or UDP destination port, updating the transport checksum
+     */
+    public static void setDstPort(ByteBuffer frame, int port) {
+        setTransportWord(frame, 2, port);
+    }
+
+    /**
+     * Sets the identifier of an ICMP echo request or reply, updating the ICMP checksum
+     */
+    public static void setIcmpEchoId(ByteBuffer frame, int identifier) {
+        int ipOffset = ipOffset(frame);
+        int transportOffset = transportOffset(frame, ipOffset);
+        if (transportOffset == NONE || protocol(frame, ipOffset) != PROTOCOL_ICMP
+                || frame.limit() < transportOffset + ICMP_ECHO_ID + 2) {
+            return;
+        }
+        replaceWord(frame, transportOffset + ICMP_ECHO_ID, transportOffset + ICMP_CHECKSUM, identifier, false);
+    }
+
+    /**
+     * Copies the source MAC address, IPv4 address and TCP/UDP port of a translated frame onto another frame of the
+     * same connection, so it is translated the same way
+     */
+    public static void copySource(ByteBuffer translated, ByteBuffer frame) {
+        int ipOffset = ipOffset(translated);
+        int transportOffset = transportOffset(translated, ipOffset);
+        if (transportChecksumOffset(translated, ipOffset, transportOffset) != NONE) {
+            setSrcPort(frame, translated.getShort(transportOffset) & 0xFFFF);
+        }
+        if (ipOffset != NONE) {
+            setIpSrc(frame, translated.getInt(ipOffset + 12));
+        }
+        for (int i = 6; i < 12; i++) {
+            frame.put(i, translated.get(i));
+        }
+    }
+
+    /**
+     * @return The offset of the IPv4 header, or NONE if the frame is not IPv4
+     */
+    public static int ipOffset(ByteBuffer frame) {
+        if (frame.limit() < ETH_HEADER_LENGTH) {
+            return NONE;
+        }
+        int offset = ETH_HEADER_LENGTH;
+        int etherType = frame.getShort(12) & 0xFFFF;
+        if (etherType == TYPE_VLAN && frame.limit() >= ETH_HEADER_LENGTH + VLAN_HEADER_LENGTH) {
+            etherType = frame.getShort(16) & 0xFFFF;
+            offset += VLAN_HEADER_LENGTH;
+        }
+        return etherType == TYPE_IPV4 && frame.limit() >= offset + IPV4_MIN_HEADER_LENGTH ? offset : NONE;
+    }
+
+    /**
+     * RFC 1624 eqn. 3, HC' = ~(~HC + ~m + m')
+     * @return The ones' complement checksum after a 16 bit word covered by it changes
+     */
+    public static int updateChecksum(int checksum, int oldWord, int newWord) {
+        int sum = (~checksum & 0xFFFF) + (~oldWord & 0xFFFF) + (newWord & 0xFFFF);
+        sum = (sum & 0xFFFF) + (sum >>> 16);
+        sum = (sum & 0xFFFF) + (sum >>> 16);
+        return ~sum & 0xFFFF;
+    }
+
+    /**
+     * @return The offset of the transport header, or NONE if there is none or it is not in this fragment
+     */
+    private static int transportOffset(ByteBuffer frame, int ipOffset) {
+        if (ipOffset == NONE || (frame.getShort(ipOffset + 6) & 0x1FFF) != 0) {
+            return NONE;
+        }
+        return ipOffset + (frame.get(ipOffset) & 0x0F) * 4;
+    }
+
+    private static int protocol(ByteBuffer frame, int ipOffset) {
+        return frame.get(ipOffset + 9) & 0xFF;
+    }
+
+    /**
+     * @return The offset of the TCP or UDP checksum, or NONE if the packet has none to update
+     */
+    private static int transportChecksumOffset(ByteBuffer frame, int ipOffset, int transportOffset) {
+        if (transportOffset == NONE) {
+            return NONE;
+        }
+        int protocol = protocol(frame, ipOffset);
+        int checksumOffset;
+        if (protocol == PROTOCOL_TCP) {
+            checksumOffset = transportOffset + TCP_CHECKSUM;
+        } else if (protocol == PROTOCOL_UDP) {
+            checksumOffset = transportOffset + UDP_CHECKSUM;
+        } else {
+            return NONE;
+        }
+        return frame.limit() >= checksumOffset + 2 ? checksumOffset : NONE;
+    }
+
+    private static void setIpAddress(ByteBuffer frame, int fieldOffset, int ip) {
+        int ipOffset = ipOffset(frame);
+        if (ipOffset == NONE) {
+            return;
+        }
+        int transportOffset = transportOffset(frame, ipOffset);
+        int checksumOffset = transportChecksumOffset(frame, ipOffset, transportOffset);
+        boolean udp = protocol(frame, ipOffset) == PROTOCOL_UDP;
+
+        //The address is part of the TCP/UDP pseudo header, so both checksums change with each half
+        int field = ipOffset + fieldOffset;
+        replaceAddressWord(frame, field, ipOffset, checksumOffset, ip >>> 16, udp);
+        replaceAddressWord(frame, field + 2, ipOffset, checksumOffset, ip & 0xFFFF, udp);
+    }
+
+    private static void replaceAddressWord(ByteBuffer frame, int wordOffset, int ipOffset, int checksumOffset,
+                                           int newWord, boolean udp) {
+        if (checksumOffset != NONE) {
+            updateChecksumAt(frame, checksumOffset, frame.getShort(wordOffset) & 0xFFFF, newWord, udp);
+        }
+        replaceWord(frame, wordOffset, ipOffset + 10, newWord, false);
+    }
+
+    private static void setTransportWord(ByteBuffer frame, int fieldOffset, int value) {
+        int ipOffset = ipOffset(frame);
+        int transportOffset = transportOffset(frame, ipOffset);
+        int checksumOffset = transportChecksumOffset(frame, ipOffset, transportOffset);
+        if (checksumOffset == NONE) {
+            return;
+        }
+        replaceWord(frame, transportOffset + fieldOffset, checksumOffset, value,
+                protocol(frame, ipOffset) == PROTOCOL_UDP);
+    }
+
+    private static void replaceWord(ByteBuffer frame, int fieldOffset, int checksumOffset, int newWord,
+                                    boolean udp) {
+        int oldWord = frame.getShort(fieldOffset) & 0xFFFF;
+        updateChecksumAt(frame, checksumOffset, oldWord, newWord, udp);
+        frame.putShort(fieldOffset, (short) newWord);
+    }
+
+    private static void updateChecksumAt(ByteBuffer frame, int checksumOffset, int oldWord, int newWord,
+                                         boolean udp) {
+        int checksum = frame.getShort(checksumOffset) & 0xFFFF;
+        //A UDP checksum of zero means the sender did not compute one
+        if (udp && checksum == 0) {
+            return;
+        }
+        checksum = updateChecksum(checksum, oldWord, newWord);
+        if (udp && checksum == 0) {
+            checksum = 0xFFFF;
+        }
+        frame.putShort(checksumOffset, (short) checksum);
+    }
+
+    private static void putMac(ByteBuffer frame, int offset, long mac) {
+        for (int i = 0; i < 6; i++) {
+            frame.put(offset + i, (byte) (mac >>> (8 * (5 - i))));
+        }
+    }
+}
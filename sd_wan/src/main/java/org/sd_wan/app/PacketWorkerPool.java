@@ -0,0 +1,119 @@
+package org.sd_wan.app;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.onlab.util.Tools.groupedThreads;
+
+/**
+ * Runs packet-in processing on a set of single threaded lanes. Packets are hashed onto a lane by a flow key,
+ * so packets of the same flow are processed in order while different flows are spread across lanes.
+ * Each lane has a bounded queue, packets arriving at a full lane are dropped and counted.
+ */
+public class PacketWorkerPool {
+
+    public static final int DEFAULT_QUEUE_SIZE = 1024;
+
+    //Log a warning every time this many more packets have been dropped
+    private static final long DROP_LOG_INTERVAL = 1000;
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final ThreadPoolExecutor[] lanes;
+    private final AtomicLong dispatched = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    public PacketWorkerPool(int laneCount) {
+        this(laneCount, DEFAULT_QUEUE_SIZE);
+    }
+
+    public PacketWorkerPool(int laneCount, int queueSize) {
+        if (laneCount < 1 || queueSize < 1) {
+            throw new IllegalArgumentException("Invalid packet worker pool: " + laneCount + " lanes, queue size "
+                    + queueSize);
+        }
+        lanes = new ThreadPoolExecutor[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(queueSize),
+                    groupedThreads("sdwan", "packet-lane-" + i, log),
+                    new ThreadPoolExecutor.AbortPolicy());
+        }
+    }
+
+    /**
+     * Queues a packet for processing on the lane of its flow
+     * @param flowKey Key identifying the packet's flow, e.g. its source IP and port
+     * @param task The processing of the packet
+     * @return false if the lane's queue was full or the pool has been shut down, and the packet was dropped
+     */
+    public boolean dispatch(long flowKey, Runnable task) {
+        ThreadPoolExecutor lane = lanes[Math.floorMod(LongIntHashMap.mix(flowKey), lanes.length)];
+        if (lane.isShutdown()) {
+            return false;
+        }
+        try {
+            lane.execute(task);
+            dispatched.incrementAndGet();
+            return true;
+        } catch (RejectedExecutionException ex) {
+            long drops = dropped.incrementAndGet();
+            if (drops % DROP_LOG_INTERVAL == 1) {
+                log.warn("Packet worker lane full, " + drops + " packet-ins dropped so far");
+            }
+            return false;
+        }
+    }
+
+    public int getLaneCount() {
+        return lanes.length;
+    }
+
+    public long getDispatchedCount() {
+        return dispatched.get();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return The number of packets waiting in all lanes
+     */
+    public int getQueuedCount() {
+        int queued = 0;
+        for (ThreadPoolExecutor lane : lanes) {
+            queued += lane.getQueue().size();
+        }
+        return queued;
+    }
+
+    /**
+     * Stops accepting packets, packets already queued are still processed
+     */
+    public void shutdown() {
+        for (ThreadPoolExecutor lane : lanes) {
+            lane.shutdown();
+        }
+    }
+
+    /**
+     * Waits for the packets queued before shutdown() to be processed
+     * @return false if the timeout passed first
+     */
+    public boolean awaitTermination(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        for (ThreadPoolExecutor lane : lanes) {
+            if (!lane.awaitTermination(Math.max(deadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,37 @@
+package org.sd_wan.app;
+
+import org.onosproject.net.PortNumber;
+
+import java.util.Map;
+
+/**
+ * Chooses the WAN interface a new flow leaves the gateway through.
+ * The gateway calls update() whenever its interfaces, their state, weights or quality change, so that the
+ * per flow select() only works on tables prepared in advance.
+ */
+public interface PathSelector {
+
+    /**
+     * Rebuilds the selection tables
+     * @param interfaces The gateway's interfaces
+     * @param weights The current weight of each interface
+     * @param quality The latest round trip time, jitter and loss measured on each interface's path
+     */
+    void update(Map<PortNumber, WanInterface> interfaces, Map<PortNumber, Long> weights,
+                Map<PortNumber, LinkQuality> quality);
+
+    /**
+     * @param flowHash Hash of the new flow's 5-tuple, see flowHash()
+     * @return The port of the interface to use for a new flow, or null if no interface is up
+     */
+    PortNumber select(long flowHash);
+
+    /**
+     * Hashes the 5-tuple of a flow for use by select()
+     */
+    static long flowHash(int srcIp, int srcPort, int destIp, int destPort, byte protocol) {
+        long source = NatSessionTable.key(srcIp, srcPort, protocol);
+        long destination = ((destIp & 0xFFFFFFFFL) << 16) | (destPort & 0xFFFFL);
+        return LongIntHashMap.mix64(LongIntHashMap.mix64(source) ^ destination);
+    }
+}
@@ -0,0 +1,181 @@
+package org.sd_wan.app;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Connections whose NAT rules are being installed, keyed by 5-tuple. Packet-ins of a connection which arrive
+ * before its rules are confirmed are queued onto the setup in progress and released with the translation of the
+ * connection's first packet once it completes, rather than making and installing the same rules again.
+ *
+ * @param <T> The translation of a connection, passed to the queued packets of its setup
+ */
+public class PendingFlowTable<T> {
+
+    public static final int DEFAULT_MAX_QUEUED = 32;
+    //Setups older than this are assumed to have lost their completion and are replaced
+    public static final long DEFAULT_TIMEOUT_MILLIS = 2000;
+
+    private final ConcurrentHashMap<Key, Setup<T>> setups = new ConcurrentHashMap<>();
+    private final int maxQueued;
+    private final long timeoutMillis;
+
+    private final AtomicLong coalescedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    public PendingFlowTable() {
+        this(DEFAULT_MAX_QUEUED, DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param maxQueued Packets held per setup, further packets of the connection are dropped until it completes
+     * @param timeoutMillis Time after which a setup which has not completed is replaced
+     */
+    public PendingFlowTable(int maxQueued, long timeoutMillis) {
+        this.maxQueued = maxQueued;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Joins a packet onto the setup of its connection, or starts a new setup if there is none in progress
+     * @param release Releases the packet with the connection's translation once the setup completes
+     * @return The new setup, which the caller must complete or abort, or null if the packet was coalesced onto
+     *          the setup in progress
+     */
+    public Setup<T> join(Key key, Consumer<T> release, long nowMillis) {
+        while (true) {
+            Setup<T> existing = setups.get(key);
+            if (existing == null) {
+                Setup<T> setup = new Setup<>(key, nowMillis);
+                if (setups.putIfAbsent(key, setup) == null) {
+                    return setup;
+                }
+            } else if (nowMillis - existing.startedMillis > timeoutMillis) {
+                Setup<T> setup = new Setup<>(key, nowMillis);
+                if (setups.replace(key, existing, setup)) {
+                    droppedCount.addAndGet(existing.finish().size());
+                    return setup;
+                }
+            } else if (existing.add(release, maxQueued)) {
+                coalescedCount.incrementAndGet();
+                return null;
+            } else if (existing.isFinished()) {
+                //Completed since it was looked up, remove it in case its owner has not yet done so
+                setups.remove(key, existing);
+            } else {
+                droppedCount.incrementAndGet();
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Ends a setup once its rules are installed, releasing its queued packets with the translation
+     */
+    public void complete(Setup<T> setup, T translation) {
+        setups.remove(setup.key, setup);
+        for (Consumer<T> release : setup.finish()) {
+            release.accept(translation);
+        }
+    }
+
+    /**
+     * Ends a setup which failed, dropping its queued packets
+     */
+    public void abort(Setup<T> setup) {
+        setups.remove(setup.key, setup);
+        droppedCount.addAndGet(setup.finish().size());
+    }
+
+    public int size() {
+        return setups.size();
+    }
+
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * The setup of a single connection, holding the packets queued onto it
+     */
+    public static final class Setup<T> {
+        private final Key key;
+        private final long startedMillis;
+        private List<Consumer<T>> queued = new ArrayList<>();
+        private boolean finished = false;
+
+        private Setup(Key key, long startedMillis) {
+            this.key = key;
+            this.startedMillis = startedMillis;
+        }
+
+        /**
+         * @return false if the setup has finished or its queue is full
+         */
+        private synchronized boolean add(Consumer<T> release, int maxQueued) {
+            if (finished || queued.size() >= maxQueued) {
+                return false;
+            }
+            queued.add(release);
+            return true;
+        }
+
+        private synchronized boolean isFinished() {
+            return finished;
+        }
+
+        /**
+         * @return The packets queued onto the setup, after which no more are accepted
+         */
+        private synchronized List<Consumer<T>> finish() {
+            List<Consumer<T>> releases = queued;
+            queued = new ArrayList<>(0);
+            finished = true;
+            return releases;
+        }
+    }
+
+    /**
+     * The 5-tuple of a connection
+     */
+    public static final class Key {
+        private final int srcIp;
+        private final int destIp;
+        private final int srcPort;
+        private final int destPort;
+        private final byte protocol;
+
+        public Key(int srcIp, int srcPort, int destIp, int destPort, byte protocol) {
+            this.srcIp = srcIp;
+            this.destIp = destIp;
+            this.srcPort = srcPort;
+            this.destPort = destPort;
+            this.protocol = protocol;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return srcIp == other.srcIp && destIp == other.destIp && srcPort == other.srcPort
+                    && destPort == other.destPort && protocol == other.protocol;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) PathSelector.flowHash(srcIp, srcPort, destIp, destPort, protocol);
+        }
+    }
+}
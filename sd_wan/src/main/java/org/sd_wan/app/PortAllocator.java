@@ -0,0 +1,177 @@
+package org.sd_wan.app;
+
+/**
+ * Bitmap backed allocator for the translated transport ports of a single interface and protocol.
+ * Every port of the 16 bit port space is represented by one bit, ports are handed out from a rotating
+ * cursor inside the configured range and wrap around to the start of the range when the top is reached.
+ */
+public class PortAllocator {
+
+    //Returned by allocate() when every port in the range is in use
+    public static final int EXHAUSTED = -1;
+
+    private static final int PORT_SPACE = 65536;
+
+    private final long[] bitmap = new long[PORT_SPACE / Long.SIZE];
+
+    private int minPort;
+    private int maxPort;
+    private int cursor;
+    private int allocatedInRange;
+
+    public PortAllocator(int minPort, int maxPort) {
+        setRange(minPort, maxPort);
+    }
+
+    /**
+     * Changes the range ports are allocated from. Ports already allocated stay allocated
+     * until they are released, even if they fall outside of the new range.
+     * @param minPort The lowest port that may be allocated
+     * @param maxPort The highest port that may be allocated
+     */
+    public void setRange(int minPort, int maxPort) {
+        if (minPort < 0 || maxPort >= PORT_SPACE || minPort > maxPort) {
+            throw new IllegalArgumentException("Invalid port range: " + minPort + "-" + maxPort);
+        }
+        this.minPort = minPort;
+        this.maxPort = maxPort;
+        this.cursor = minPort;
+
+        allocatedInRange = 0;
+        for (int port = minPort; port <= maxPort; port++) {
+            if (isAllocated(port)) {
+                allocatedInRange++;
+            }
+        }
+    }
+
+    /**
+     * Allocates the next free port at or after the cursor, wrapping around to the start of the range
+     * @return The allocated port, or EXHAUSTED if there are no free ports left in the range
+     */
+    public int allocate() {
+        if (allocatedInRange >= getCapacity()) {
+            return EXHAUSTED;
+        }
+
+        int port = nextFreePort(cursor, maxPort);
+        if (port == EXHAUSTED) {
+            port = nextFreePort(minPort, cursor - 1);
+        }
+        if (port == EXHAUSTED) {
+            return EXHAUSTED;
+        }
+
+        setBit(port);
+        allocatedInRange++;
+        cursor = (port == maxPort) ? minPort : port + 1;
+        return port;
+    }
+
+    /**
+     * Allocates the next free port of a block at or after a cursor inside it, wrapping around to the start of the
+     * block. Used by port-block NAT, where each host allocates from its own block of the range.
+     * @param blockStart The first port of the block
+     * @param blockEnd The last port of the block
+     * @param cursor The port to start searching from
+     * @return The allocated port, or EXHAUSTED if there are no free ports left in the block
+     */
+    public int allocateInBlock(int blockStart, int blockEnd, int cursor) {
+        int port = nextFreePort(cursor, blockEnd);
+        if (port == EXHAUSTED) {
+            port = nextFreePort(blockStart, cursor - 1);
+        }
+        if (port == EXHAUSTED) {
+            return EXHAUSTED;
+        }
+
+        setBit(port);
+        if (inRange(port)) {
+            allocatedInRange++;
+        }
+        return port;
+    }
+
+    /**
+     * Marks a specific port as allocated
+     * @param port The port to reserve
+     * @return false if the port was already allocated
+     */
+    public boolean reserve(int port) {
+        if (port < 0 || port >= PORT_SPACE || isAllocated(port)) {
+            return false;
+        }
+        setBit(port);
+        if (inRange(port)) {
+            allocatedInRange++;
+        }
+        return true;
+    }
+
+    /**
+     * Returns a port to the pool so that it can be allocated again
+     * @param port The port to release
+     * @return false if the port was not allocated
+     */
+    public boolean release(int port) {
+        if (port < 0 || port >= PORT_SPACE || !isAllocated(port)) {
+            return false;
+        }
+        bitmap[port >>> 6] &= ~(1L << port);
+        if (inRange(port)) {
+            allocatedInRange--;
+        }
+        return true;
+    }
+
+    public boolean isAllocated(int port) {
+        return (bitmap[port >>> 6] & (1L << port)) != 0;
+    }
+
+    public int getAllocatedCount() {
+        return allocatedInRange;
+    }
+
+    public int getCapacity() {
+        return maxPort - minPort + 1;
+    }
+
+    public int getMinPort() {
+        return minPort;
+    }
+
+    public int getMaxPort() {
+        return maxPort;
+    }
+
+    private boolean inRange(int port) {
+        return port >= minPort && port <= maxPort;
+    }
+
+    private void setBit(int port) {
+        bitmap[port >>> 6] |= 1L << port;
+    }
+
+    /**
+     * Scans the bitmap a word at a time for the first clear bit between from and to (inclusive)
+     */
+    private int nextFreePort(int from, int to) {
+        if (from > to) {
+            return EXHAUSTED;
+        }
+
+        int wordIndex = from >>> 6;
+        long freeBits = ~bitmap[wordIndex] & (-1L << from);
+        while (true) {
+            if (freeBits != 0) {
+                int port = (wordIndex << 6) + Long.numberOfTrailingZeros(freeBits);
+                return port <= to ? port : EXHAUSTED;
+            }
+            wordIndex++;
+            if ((wordIndex << 6) > to) {
+                return EXHAUSTED;
+            }
+            freeBits = ~bitmap[wordIndex];
+        }
+    }
+}
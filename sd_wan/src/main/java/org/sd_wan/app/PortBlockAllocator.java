@@ -0,0 +1,115 @@
+package org.sd_wan.app;
+
+/**
+ * Deterministic port-block allocation for the translated ports of a single interface and protocol.
+ * Every address of the local prefix owns a fixed, contiguous block of the port range, in address order, so a
+ * host's ports are allocated by bumping a cursor inside its own block and the host behind a translated port is
+ * found arithmetically, without a table lookup. As the layout never changes, NAT logs only need one record per
+ * block instead of one per session.
+ *
+ * The bitmap of ports in use is shared with the interface's PortAllocator, so ports released or reserved through
+ * it stay consistent with the blocks.
+ */
+public class PortBlockAllocator {
+
+    //Returned when a host or port has no block
+    public static final int NONE = -1;
+
+    private final int baseAddress;
+    private final int hostCount;
+    private final int minPort;
+    private final int blockSize;
+
+    //Next port to try in each host's block, as an offset from the start of the block
+    private final int[] cursors;
+
+    /**
+     * @param baseAddress The first address of the local prefix
+     * @param prefixLength The length of the local prefix
+     * @param minPort The first port of the translated port range
+     * @param maxPort The last port of the translated port range
+     * @param blockSize The number of ports in each host's block
+     */
+    public PortBlockAllocator(int baseAddress, int prefixLength, int minPort, int maxPort, int blockSize) {
+        if (prefixLength < 16 || prefixLength > 32) {
+            throw new IllegalArgumentException("Local prefix too large for port blocks: /" + prefixLength);
+        }
+        this.hostCount = 1 << (32 - prefixLength);
+        if (blockSize < 1 || (long) hostCount * blockSize > maxPort - minPort + 1) {
+            throw new IllegalArgumentException("Port range " + minPort + "-" + maxPort + " cannot hold " + hostCount
+                    + " blocks of " + blockSize + " ports");
+        }
+        this.baseAddress = baseAddress & (int) (0xFFFFFFFFL << (32 - prefixLength));
+        this.minPort = minPort;
+        this.blockSize = blockSize;
+        this.cursors = new int[hostCount];
+    }
+
+    /**
+     * Creates an allocator with the same block layout as another, with its own cursors
+     */
+    public PortBlockAllocator(PortBlockAllocator layout) {
+        this.baseAddress = layout.baseAddress;
+        this.hostCount = layout.hostCount;
+        this.minPort = layout.minPort;
+        this.blockSize = layout.blockSize;
+        this.cursors = new int[hostCount];
+    }
+
+    /**
+     * Allocates the next free port of a host's block
+     * @param ports The allocator holding the ports in use on the interface
+     * @return The port, or PortAllocator.EXHAUSTED if the host's block is full or the host has no block
+     */
+    public int allocate(PortAllocator ports, int hostIp) {
+        int host = getHostIndex(hostIp);
+        if (host == NONE) {
+            return PortAllocator.EXHAUSTED;
+        }
+        int blockStart = minPort + host * blockSize;
+        int port = ports.allocateInBlock(blockStart, blockStart + blockSize - 1, blockStart + cursors[host]);
+        if (port != PortAllocator.EXHAUSTED) {
+            cursors[host] = (port - blockStart + 1) % blockSize;
+        }
+        return port;
+    }
+
+    /**
+     * @return The index of a host's block, or NONE if the host is outside of the local prefix
+     */
+    public int getHostIndex(int hostIp) {
+        long host = (hostIp & 0xFFFFFFFFL) - (baseAddress & 0xFFFFFFFFL);
+        return host >= 0 && host < hostCount ? (int) host : NONE;
+    }
+
+    /**
+     * @return The index of the block holding a translated port, or NONE if the port is outside of every block
+     */
+    public int getBlockIndex(int port) {
+        int offset = port - minPort;
+        return offset >= 0 && offset < hostCount * blockSize ? offset / blockSize : NONE;
+    }
+
+    /**
+     * @return The address of the host owning a block
+     */
+    public int getHostIp(int blockIndex) {
+        return baseAddress + blockIndex;
+    }
+
+    public int getBlockStart(int blockIndex) {
+        return minPort + blockIndex * blockSize;
+    }
+
+    public int getBlockEnd(int blockIndex) {
+        return getBlockStart(blockIndex) + blockSize - 1;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getBlockCount() {
+        return hostCount;
+    }
+}
@@ -0,0 +1,48 @@
+package org.sd_wan.app;
+
+/**
+ * Exponentially weighted moving average of the bit rate of one direction of a link.
+ * Each sample is weighted by the time it covers, so that a sample's influence halves every half-life whatever
+ * the polling interval: alpha = 1 - 2^(-duration / halfLife). A half-life of 0 turns smoothing off.
+ */
+public class RateEstimator {
+
+    public static final long DEFAULT_HALF_LIFE_MILLIS = 10000;
+
+    private double rate;
+    private boolean initialized = false;
+
+    /**
+     * Adds the bytes counted over an interval to the estimate
+     * @param bytes The bytes counted during the interval
+     * @param durationMillis The length of the interval, samples of no duration are ignored
+     * @param halfLifeMillis The time after which a sample's weight has halved
+     * @return The smoothed rate in bits per second
+     */
+    public long update(long bytes, long durationMillis, long halfLifeMillis) {
+        if (durationMillis <= 0 || bytes < 0) {
+            return getRate();
+        }
+        double sample = bytes * 8000.0 / durationMillis;
+        if (!initialized || halfLifeMillis <= 0) {
+            rate = sample;
+            initialized = true;
+        } else {
+            double alpha = 1 - Math.pow(2, -(double) durationMillis / halfLifeMillis);
+            rate += alpha * (sample - rate);
+        }
+        return getRate();
+    }
+
+    /**
+     * @return The smoothed rate in bits per second
+     */
+    public long getRate() {
+        return Math.round(rate);
+    }
+
+    public void reset() {
+        rate = 0;
+        initialized = false;
+    }
+}
@@ -0,0 +1,77 @@
+package org.sd_wan.app;
+
+import org.onosproject.net.PortNumber;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps each flow deterministically to an interface using weighted rendezvous hashing over its 5-tuple.
+ * Every interface that is up scores the flow as -bandwidth / ln(hash(flow, interface)) and the highest score
+ * wins, so interfaces receive flows in proportion to their bandwidth and adding or removing an interface only
+ * moves the flows that it gains or loses. The configured bandwidth is used rather than the measured spare
+ * capacity so that the mapping does not change every time statistics are gathered.
+ */
+public class RendezvousPathSelector implements PathSelector {
+
+    private volatile Table table = new Table(new PortNumber[0], new long[0], new double[0]);
+
+    @Override
+    public void update(Map<PortNumber, WanInterface> interfaces, Map<PortNumber, Long> weights,
+                       Map<PortNumber, LinkQuality> quality) {
+        List<PortNumber> ports = new ArrayList<>();
+        List<WanInterface> upInterfaces = new ArrayList<>();
+        for (Map.Entry<PortNumber, WanInterface> entry : interfaces.entrySet()) {
+            if (entry.getValue().getState()) {
+                ports.add(entry.getKey());
+                upInterfaces.add(entry.getValue());
+            }
+        }
+
+        long[] seeds = new long[ports.size()];
+        double[] bandwidths = new double[ports.size()];
+        for (int i = 0; i < seeds.length; i++) {
+            seeds[i] = LongIntHashMap.mix64(ports.get(i).toLong());
+            bandwidths[i] = Math.max(upInterfaces.get(i).getUplinkBandwidth(), 1);
+        }
+        table = new Table(ports.toArray(new PortNumber[0]), seeds, bandwidths);
+    }
+
+    @Override
+    public PortNumber select(long flowHash) {
+        Table current = table;
+        PortNumber best = null;
+        double bestScore = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < current.ports.length; i++) {
+            double score = -current.bandwidths[i] / Math.log(unitInterval(flowHash ^ current.seeds[i]));
+            if (score > bestScore) {
+                bestScore = score;
+                best = current.ports[i];
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Maps a hash onto the open interval (0, 1)
+     */
+    private static double unitInterval(long hash) {
+        return ((LongIntHashMap.mix64(hash) >>> 11) + 0.5) / (double) (1L << 53);
+    }
+
+    /**
+     * Interfaces that are up, their hash seeds and bandwidths, replaced as a whole on every update
+     */
+    private static final class Table {
+        final PortNumber[] ports;
+        final long[] seeds;
+        final double[] bandwidths;
+
+        Table(PortNumber[] ports, long[] seeds, double[] bandwidths) {
+            this.ports = ports;
+            this.seeds = seeds;
+            this.bandwidths = bandwidths;
+        }
+    }
+}
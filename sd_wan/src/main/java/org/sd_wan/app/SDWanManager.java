@@ -25,7 +25,10 @@ import org.onosproject.net.device.DeviceEvent;
 import org.onosproject.net.device.DeviceListener;
 import org.onosproject.net.device.DeviceService;
 import org.onosproject.net.device.PortStatistics;
+import org.onosproject.net.driver.DriverService;
 import org.onosproject.net.flow.*;
+import org.onosproject.net.group.GroupDescription;
+import org.onosproject.net.group.GroupService;
 import org.onosproject.net.host.HostEvent;
 import org.onosproject.net.host.HostListener;
 import org.onosproject.net.host.HostService;
@@ -35,6 +38,7 @@ import org.onosproject.net.link.LinkEvent;
 import org.onosproject.net.link.LinkListener;
 import org.onosproject.net.link.LinkService;
 import org.onosproject.net.intf.Interface;
+import org.onosproject.net.meter.MeterService;
 import org.onosproject.net.packet.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -42,6 +46,9 @@ import org.slf4j.LoggerFactory;
 import javax.validation.constraints.Null;
 import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Supplier;
 
 @Component(immediate = true)
 @Service
@@ -67,25 +74,31 @@ public class SDWanManager implements SDWANService {
     @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
     private FlowRuleService flowRuleService;
 
+    @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
+    private GroupService groupService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
+    private MeterService meterService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
+    private DriverService driverService;
+
     //  PacketProcessor pktprocess; // To process incoming packets and use methods
     //  of PacketProcess such as addProcessor and removeProcessor
     private PacketProcessor pktprocessor = new WanProcessor();
 
     final private IpPrefix localIP = IpPrefix.valueOf("10.0.0.0/24");
 
-    private Map<DeviceId, WanGateway> gateways = new TreeMap<>(new Comparator<DeviceId>() {
+    //Gateway and host state is shared by the packet processor, worker lanes, listeners and the UI
+    private Map<DeviceId, WanGateway> gateways = new ConcurrentSkipListMap<>(new Comparator<DeviceId>() {
         @Override
         public int compare(DeviceId o1, DeviceId o2) {
             return o1.toString().compareTo(o2.toString());
         }
     });
 
-    private Map<Ip4Address, MacAddress> WanInterfaceArpAddresses = new TreeMap<>(new Comparator<Ip4Address>() {
-        @Override
-        public int compare(Ip4Address o1, Ip4Address o2) {
-            return o1.toString().compareTo(o2.toString());
-        }
-    });
+    //MAC addresses of the WAN interfaces by IPv4 address, answered by the proxy ARP
+    private Map<Integer, MacAddress> wanInterfaceArpAddresses = new ConcurrentHashMap<>();
 
     //Nat
     private NatFlowListener natFlowListener = new NatFlowListener();
@@ -94,8 +107,48 @@ public class SDWanManager implements SDWANService {
 
     private ApplicationId appId;
 
-    //List of hosts and host details gathered through HostService
-    private HashMap<HostId, Host> hosts = new HashMap<>();
+    //Groups the NAT rules of new connections into flow rule batches
+    private FlowRuleBatcher flowRuleBatcher;
+
+    //Moves the NAT sessions of interfaces which go down
+    private FailoverEngine failoverEngine;
+
+    //Expires NAT sessions whose rules are no longer installed
+    private SessionExpiryEngine expiryEngine;
+    private volatile long sessionTimeoutMillis = NatSessionTable.DEFAULT_SESSION_TIMEOUT_MILLIS;
+
+    //Idle and hard timeouts of the NAT rules by protocol and destination port
+    private final TimeoutPolicy timeoutPolicy = new TimeoutPolicy();
+
+    //OpenFlow groups of the gateways' interfaces, used in place of single interface outputs when enabled
+    private WanGroupHandler groupHandler;
+
+    //Meters limiting the rate of traffic classes on the gateways' interfaces
+    private WanMeterHandler meterHandler;
+
+    //Rules answering ARP for the interfaces in the switch, when enabled and the gateways run Open vSwitch
+    private WanArpResponder arpResponder;
+
+    //Smoothed receive and transmit rates of the gateways' interfaces, from which their weights are computed
+    private final LinkTelemetry telemetry = new LinkTelemetry();
+
+    //Lanes used to process packet-ins off the packet processor thread, null when packets are processed inline
+    private volatile PacketWorkerPool workerPool;
+    //Longest time deactivation waits for the packets queued on the lanes
+    private static final long PACKET_DRAIN_MILLIS = 1000;
+
+    //Whether the first packet of a new NAT session is released through its packet context once the rules are
+    //installed, rather than translated and emitted by the controller
+    private volatile boolean bufferedPacketOut = false;
+
+    //Hosts and host details gathered through HostService, indexed by IP address
+    private final HostIndex hosts = new HostIndex();
+
+    //Traffic classes and the rules steering new flows of each class to an interface meeting its SLA
+    private volatile TrafficPolicy trafficPolicy = TrafficPolicy.EMPTY;
+
+    //Measures the round trip time, jitter and loss of the gateways' interfaces, off until given a probe target
+    private LinkProber linkProber;
 
     /**
      * Initializes the application, as well as stores hard-coded IP, MAC and Pyhsical PortNumbers in lists used for processing.
@@ -107,11 +160,20 @@ public class SDWanManager implements SDWANService {
         //Regsiter the app with ONOS Core service
         appId = coreService.registerApplication("org.sd_wan.app");
 
+        flowRuleBatcher = new FlowRuleBatcher(flowRuleService);
+        failoverEngine = new FailoverEngine(flowRuleService);
+        groupHandler = new WanGroupHandler(groupService, appId);
+        meterHandler = new WanMeterHandler(meterService, appId);
+        arpResponder = new WanArpResponder(flowRuleService, driverService, appId);
+        expiryEngine = new SessionExpiryEngine(flowRuleService, appId, gateways, meterHandler);
+        expiryEngine.start(SessionExpiryEngine.DEFAULT_INTERVAL_SECONDS);
+        linkProber = new LinkProber(packetService, gateways);
+
         packetService.addProcessor(pktprocessor, PacketProcessor.director(50000));
 
         //Register Hosts discovered by Host Service
         for (Host h : hostService.getHosts()) {
-            hosts.put(h.id(), h);
+            hosts.add(h);
         }
 
         //Add network listeners to respective services
@@ -127,7 +189,23 @@ public class SDWanManager implements SDWANService {
     protected void deactivate() {
 
         packetService.removeProcessor(pktprocessor);
+        PacketWorkerPool pool = workerPool;
+        setPacketWorkerLanes(0);
+        if (pool != null) {
+            try {
+                pool.awaitTermination(PACKET_DRAIN_MILLIS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flowRuleBatcher.shutdown();
+        failoverEngine.shutdown();
+        expiryEngine.shutdown();
+        linkProber.shutdown();
         flowRuleService.removeFlowRulesById(appId);
+        groupHandler.removeAll();
+        meterHandler.removeAll();
+        arpResponder.removeAll();
         flowRuleService.removeListener(natFlowListener);
         hostService.removeListener(hostListener);
         deviceService.removeListener(deviceListener);
@@ -141,7 +219,13 @@ public class SDWanManager implements SDWANService {
 
     @Override
     public void addGateway(DeviceId deviceId) {
-        gateways.put(deviceId, new WanGateway(new NatHandler(appId, deviceId)));
+        WanGateway gateway = new WanGateway(new NatHandler(appId, deviceId, timeoutPolicy));
+        gateway.setSessionTimeout(sessionTimeoutMillis);
+        gateway.setTrafficPolicy(trafficPolicy);
+        if (gateways.putIfAbsent(deviceId, gateway) != null) {
+            log.info("Gateway already added: " + deviceId.toString());
+            return;
+        }
 
         TrafficSelector.Builder selector = DefaultTrafficSelector.builder();
         selector.matchEthType(Ethernet.TYPE_IPV4);
@@ -156,12 +240,15 @@ public class SDWanManager implements SDWANService {
         WanGateway gateway = gateways.get(deviceId);
 
         Port intfPort = deviceService.getPort(deviceId, port);
-        if (intfPort != null) {
+        if (gateway != null && intfPort != null) {
             gateway.addInterface(port, intf);
             gateway.updateInterfaceState(port, intfPort.isEnabled());
-            gateways.replace(deviceId, gateway);
+            groupHandler.refresh(deviceId, gateway);
+            meterHandler.refresh(deviceId, gateway, trafficPolicy);
             log.info("Added interface: " + intf.getName() + " to gateway: " + deviceId.toString());
-            WanInterfaceArpAddresses.put(intf.getIp4Address(), intf.getMacAddress());
+            wanInterfaceArpAddresses.put(intf.getIp4Address().toInt(), intf.getMacAddress());
+            packetService.requestPackets(arpSelector(intf), PacketPriority.CONTROL, appId, Optional.of(deviceId));
+            arpResponder.addInterface(deviceId, port, intf);
             return;
         }
 
@@ -169,22 +256,254 @@ public class SDWanManager implements SDWANService {
         log.info("Unable to add interface: " + intf.getName() + " to gateway: " + deviceId.toString());
     }
 
+    @Override
+    public void setFlowRuleBatching(int maxBatchSize, int flushDelayMillis) {
+        flowRuleBatcher.setBatching(maxBatchSize, flushDelayMillis);
+        log.info("NAT flow rule batching set to " + maxBatchSize + " rules / " + flushDelayMillis + " ms");
+    }
+
+    @Override
+    public void setTelemetryHalfLife(long halfLifeMillis) {
+        telemetry.setHalfLife(halfLifeMillis);
+        log.info("Interface rates smoothed with a half-life of " + halfLifeMillis + " ms");
+    }
+
+    @Override
+    public void setBufferedPacketOut(boolean enabled) {
+        bufferedPacketOut = enabled;
+        log.info("First packets of NAT sessions " + (enabled ? "released through the switch's flow table" :
+                "translated and emitted by the controller"));
+    }
+
+    @Override
+    public void setArpResponder(boolean enabled) {
+        arpResponder.setEnabled(enabled, gateways);
+        log.info("ARP for the interfaces answered by " + (enabled ? "the gateways where supported" :
+                "the controller"));
+    }
+
+    @Override
+    public void setPacketWorkerLanes(int lanes) {
+        PacketWorkerPool oldPool = workerPool;
+        workerPool = lanes > 0 ? new PacketWorkerPool(lanes) : null;
+        if (oldPool != null) {
+            oldPool.shutdown();
+            log.info("Packet worker pool stopped after " + oldPool.getDispatchedCount() + " packet-ins, "
+                    + oldPool.getDroppedCount() + " dropped");
+        }
+        log.info(lanes > 0 ? "Processing packet-ins on " + lanes + " worker lanes" : "Processing packet-ins inline");
+    }
+
+    @Override
+    public void setFlowAffinity(DeviceId deviceId, boolean enabled) {
+        setPathSelection(deviceId, enabled, RendezvousPathSelector.class, RendezvousPathSelector::new,
+                "flow affinity");
+    }
+
+    @Override
+    public void setLatencyPathSelection(DeviceId deviceId, boolean enabled) {
+        setPathSelection(deviceId, enabled, LatencyPathSelector.class, LatencyPathSelector::new, "lowest delay");
+    }
+
+    /**
+     * Switches one of a gateway's load balancing modes on or off. The gateway's path selector is its mode, so
+     * the modes exclude each other: a mode is only enabled from weighted random, and disabling a mode the gateway
+     * is not in leaves its selector alone.
+     */
+    private synchronized void setPathSelection(DeviceId deviceId, boolean enabled,
+                                               Class<? extends PathSelector> modeSelector,
+                                               Supplier<PathSelector> newSelector, String mode) {
+        WanGateway gateway = gateways.get(deviceId);
+        if (gateway == null) {
+            log.info("Gateway: " + deviceId.toString() + " not found, unable to change load balancing mode");
+            return;
+        }
+        PathSelector current = gateway.getPathSelector();
+        if (modeSelector.isInstance(current) == enabled) {
+            log.info("Gateway: " + deviceId.toString() + " load balancing mode " + mode + " already " +
+                    (enabled ? "enabled" : "disabled"));
+            return;
+        }
+        if (enabled && !(current instanceof WeightedPathSelector)) {
+            log.warn("Gateway: " + deviceId.toString() + " load balancing mode not set to " + mode +
+                    ", another mode is enabled and must be disabled first");
+            return;
+        }
+        gateway.setPathSelector(enabled ? newSelector.get() : new WeightedPathSelector());
+        log.info("Gateway: " + deviceId.toString() + " load balancing mode set to " +
+                (enabled ? mode : "weighted random"));
+    }
+
+    @Override
+    public void setLinkProbing(Ip4Address target, int intervalMillis) {
+        if (target == null) {
+            linkProber.stop();
+            log.info("Link probing stopped");
+            return;
+        }
+        try {
+            linkProber.start(target, intervalMillis);
+        } catch (IllegalArgumentException e) {
+            log.warn("Link probing not started: " + e.getMessage());
+            return;
+        }
+        log.info("Probing interface paths to " + target + " every " + intervalMillis + " ms");
+    }
+
+    @Override
+    public void setTrafficPolicy(TrafficPolicy policy) {
+        trafficPolicy = policy;
+        for (Map.Entry<DeviceId, WanGateway> entry : gateways.entrySet()) {
+            entry.getValue().setTrafficPolicy(policy);
+            meterHandler.refresh(entry.getKey(), entry.getValue(), policy);
+        }
+        log.info("Traffic policy set to " + policy.getClasses().size() + " classes and " +
+                policy.getRules().size() + " rules");
+    }
+
+    @Override
+    public void setInterfaceBandwidth(DeviceId deviceId, PortNumber port, int uplinkBandwidth, int downlinkBandwidth) {
+        WanGateway gateway = gateways.get(deviceId);
+        WanInterface intf = gateway != null ? gateway.getInterface(port) : null;
+        if (intf == null) {
+            log.info("Interface: " + port + " could not be found on gateway: " + deviceId.toString());
+            return;
+        }
+        intf.setUplinkBandwidth(uplinkBandwidth);
+        intf.setDownlinkBandwidth(downlinkBandwidth);
+        //Rate limits are shares of the uplink bandwidth
+        meterHandler.refresh(deviceId, gateway, trafficPolicy);
+        log.info("Interface: " + intf.getName() + " bandwidth set to " + uplinkBandwidth + "/" + downlinkBandwidth);
+    }
+
+    @Override
+    public void setInterfaceNextHop(DeviceId deviceId, PortNumber port, Ip4Address nextHop) {
+        WanGateway gateway = gateways.get(deviceId);
+        WanInterface intf = gateway != null ? gateway.getInterface(port) : null;
+        if (intf == null) {
+            log.info("Interface: " + port + " could not be found on gateway: " + deviceId.toString());
+            return;
+        }
+        intf.setNextHop(nextHop);
+        linkProber.forgetNextHop(deviceId, port);
+        log.info("Interface: " + intf.getName() + " next hop set to " + (nextHop != null ? nextHop : "learned"));
+    }
+
+    @Override
+    public void setRateLimit(String trafficClass, double uplinkShare) {
+        try {
+            meterHandler.setRateLimit(trafficClass, uplinkShare);
+        } catch (IllegalArgumentException e) {
+            log.warn("Rate limit not changed: " + e.getMessage());
+            return;
+        }
+        for (Map.Entry<DeviceId, WanGateway> entry : gateways.entrySet()) {
+            meterHandler.refresh(entry.getKey(), entry.getValue(), trafficPolicy);
+        }
+    }
+
+    @Override
+    public TrafficPolicy getTrafficPolicy() {
+        return trafficPolicy;
+    }
+
+    @Override
+    public void setInterfaceGroup(DeviceId deviceId, GroupDescription.Type type) {
+        WanGateway gateway = gateways.get(deviceId);
+        if (gateway == null) {
+            log.info("Gateway: " + deviceId.toString() + " not found, unable to change interface group");
+            return;
+        }
+        groupHandler.setGroupType(deviceId, gateway, type);
+    }
+
+    @Override
+    public void setAggregateRules(DeviceId deviceId, boolean enabled) {
+        WanGateway gateway = gateways.get(deviceId);
+        if (gateway == null) {
+            log.info("Gateway: " + deviceId.toString() + " not found, unable to change NAT rule mode");
+            return;
+        }
+        gateway.setAggregateRules(enabled);
+        log.info("Gateway: " + deviceId.toString() + " NAT rules set to " +
+                (enabled ? "one pair per host mapping" : "one pair per session"));
+    }
+
+    @Override
+    public void setPortBlocks(DeviceId deviceId, int blockSize) {
+        WanGateway gateway = gateways.get(deviceId);
+        if (gateway == null) {
+            log.info("Gateway: " + deviceId.toString() + " not found, unable to change port blocks");
+            return;
+        }
+        try {
+            gateway.setPortBlocks(localIP, blockSize);
+        } catch (IllegalArgumentException e) {
+            log.warn("Gateway: " + deviceId.toString() + " port blocks not changed: " + e.getMessage());
+            return;
+        }
+        if (blockSize == 0) {
+            log.info("Gateway: " + deviceId.toString() + " port blocks turned off");
+        }
+    }
+
+    @Override
+    public IpAddress getPortBlockHost(DeviceId deviceId, int translatedPort) {
+        WanGateway gateway = gateways.get(deviceId);
+        return gateway != null ? gateway.getPortBlockHost(translatedPort) : null;
+    }
+
+    @Override
+    public void setSessionExpiry(long sessionTimeoutMillis, int reconcileIntervalSeconds) {
+        this.sessionTimeoutMillis = sessionTimeoutMillis;
+        for (WanGateway gateway : gateways.values()) {
+            gateway.setSessionTimeout(sessionTimeoutMillis);
+        }
+        expiryEngine.start(reconcileIntervalSeconds);
+        log.info("NAT sessions expire after " + sessionTimeoutMillis + " ms unseen, reconciled every " +
+                reconcileIntervalSeconds + " s");
+    }
+
+    @Override
+    public TimeoutPolicy getTimeoutPolicy() {
+        return timeoutPolicy;
+    }
+
+    @Override
+    public PacketWorkerPool getPacketWorkerPool() {
+        return workerPool;
+    }
+
     @Override
     public WanGateway getGateway(DeviceId deviceId) {
         return gateways.get(deviceId);
     }
 
+    /**
+     * Selects the ARP packets for an interface's address, which the gateway sends to the controller: requests
+     * for the proxy ARP to answer, and replies resolving the next hop of the link probes
+     */
+    private TrafficSelector arpSelector(WanInterface intf) {
+        return DefaultTrafficSelector.builder()
+                .matchEthType(Ethernet.TYPE_ARP)
+                .matchArpTpa(intf.getIp4Address())
+                .build();
+    }
+
     @Override
     public void removeInterface(DeviceId deviceId, PortNumber port, String name) {
         WanGateway gateway = gateways.get(deviceId);
-        WanInterface intf = gateway.removeInterface(port);
+        WanInterface intf = gateway != null ? gateway.removeInterface(port) : null;
         if (intf != null) {
-            WanInterfaceArpAddresses.remove(intf.getIp4Address());
+            groupHandler.refresh(deviceId, gateway);
+            meterHandler.refresh(deviceId, gateway, trafficPolicy);
+            wanInterfaceArpAddresses.remove(intf.getIp4Address().toInt());
+            arpResponder.removeInterface(deviceId, port);
+            packetService.cancelPackets(arpSelector(intf), PacketPriority.CONTROL, appId, Optional.of(deviceId));
             log.info("Removing interface: " + name + " from gateway: " + deviceId.toString());
         } else {
             log.info("Interface: " + name + " could not be found on gateway: " + deviceId.toString());
         }
-        gateways.replace(deviceId, gateway);
     }
 
     /**
@@ -195,30 +514,115 @@ public class SDWanManager implements SDWANService {
     private class WanProcessor implements PacketProcessor {
         @Override
         public void process(PacketContext pktIn) {
+            if (pktIn.isHandled()) {
+                return;
+            }
+
+            //Packets this app does not act on are left to the other processors
+            Ethernet pkt = pktIn.inPacket().parsed();
+            if (pkt == null || !isHandledHere(pktIn.inPacket().receivedFrom().deviceId(), pkt)) {
+                return;
+            }
+
+            PacketWorkerPool pool = workerPool;
+            if (pool == null) {
+                handlePacket(pktIn, pkt, pktIn.inPacket().unparsed());
+                return;
+            }
+
+            //Hand the packet to the lane of its flow so that the packet processor thread is not held up. The
+            //context is blocked first so later processors leave it alone, and the lane works on its own copy
+            //of the frame, as the parsed packet and frame of the context are shared with them.
+            long flowKey = flowKey(pkt);
+            ByteBuffer unparsed = pktIn.inPacket().unparsed().duplicate();
+            byte[] frame = new byte[unparsed.remaining()];
+            unparsed.get(frame);
+            pktIn.block();
+            pool.dispatch(flowKey, () -> {
+                try {
+                    handlePacket(pktIn, Ethernet.deserializer().deserialize(frame, 0, frame.length),
+                            ByteBuffer.wrap(frame));
+                } catch (DeserializationException ex) {
+                    log.warn("Unable to parse packet-in: " + ex.getMessage());
+                }
+            });
+        }
+
+        /**
+         * @return true if the packet is one handlePacket() acts on: an ARP request for a WAN interface address,
+         *          an ARP reply to a WAN interface at a gateway, or IPv4 traffic at a gateway
+         */
+        private boolean isHandledHere(DeviceId deviceId, Ethernet pkt) {
+            if (pkt.getEtherType() == Ethernet.TYPE_ARP) {
+                ARP arpPacket = (ARP) pkt.getPayload();
+                boolean forInterface = wanInterfaceArpAddresses.containsKey(
+                        ByteBuffer.wrap(arpPacket.getTargetProtocolAddress()).getInt());
+                if (arpPacket.getOpCode() == ARP.OP_REPLY) {
+                    return forInterface && gateways.containsKey(deviceId);
+                }
+                return arpPacket.getOpCode() == ARP.OP_REQUEST && forInterface;
+            }
+            return pkt.getEtherType() == Ethernet.TYPE_IPV4 && gateways.containsKey(deviceId);
+        }
+
+        /**
+         * Key used to keep the packets of a flow on the same worker lane, made from the source IP and
+         * the TCP/UDP source port. ARP is keyed by its sender so that hosts' requests are spread over the lanes.
+         */
+        private long flowKey(Ethernet pkt) {
+            if (pkt.getEtherType() == Ethernet.TYPE_ARP) {
+                return ByteBuffer.wrap(((ARP) pkt.getPayload()).getSenderProtocolAddress()).getInt() & 0xFFFFFFFFL;
+            }
+            if (pkt.getEtherType() != Ethernet.TYPE_IPV4) {
+                return pkt.getSourceMAC().toLong();
+            }
+            IPv4 ipPacket = (IPv4) pkt.getPayload();
+            int srcPort = 0;
+            if (ipPacket.getProtocol() == IPv4.PROTOCOL_TCP) {
+                srcPort = ((TCP) ipPacket.getPayload()).getSourcePort();
+            } else if (ipPacket.getProtocol() == IPv4.PROTOCOL_UDP) {
+                srcPort = ((UDP) ipPacket.getPayload()).getSourcePort();
+            }
+            return NatSessionTable.key(ipPacket.getSourceAddress(), srcPort, ipPacket.getProtocol());
+        }
+
+        /**
+         * @param pkt The parsed packet
+         * @param unparsed The raw frame of the packet
+         */
+        private void handlePacket(PacketContext pktIn, Ethernet pkt, ByteBuffer unparsed) {
 
             DeviceId deviceId = pktIn.inPacket().receivedFrom().deviceId();
             PortNumber ingressPortNumber = pktIn.inPacket().receivedFrom().port();
-            Ethernet pkt = pktIn.inPacket().parsed();
 
 
             if (pkt.getEtherType() == Ethernet.TYPE_ARP){
 
                 ARP arpPacket = (ARP) pkt.getPayload();
+                if (arpPacket.getOpCode() == ARP.OP_REPLY) {
+                    //Replies to the link prober's requests for an interface's next hop
+                    linkProber.handleArpReply(deviceId, ingressPortNumber, arpPacket);
+                    pktIn.block();
+                    return;
+                }
+                if (arpPacket.getOpCode() != ARP.OP_REQUEST) {
+                    return;
+                }
 
-                Ip4Address targetAddr = Ip4Address.valueOf(arpPacket.getTargetProtocolAddress());
-
-                MacAddress macAddress = WanInterfaceArpAddresses.get(targetAddr);
+                MacAddress macAddress = wanInterfaceArpAddresses.get(
+                        ByteBuffer.wrap(arpPacket.getTargetProtocolAddress()).getInt());
 
-                //Run a proxy ARP, replying to arp requests for the network interfaces
+                //Run a proxy ARP, replying to arp requests for the network interfaces out of the port they came in
                 if (macAddress != null) {
-                    Ethernet arpReply = ARP.buildArpReply(targetAddr.getIp4Address(),
-                            macAddress, pkt);
+                    Ethernet arpReply = ARP.buildArpReply(
+                            Ip4Address.valueOf(arpPacket.getTargetProtocolAddress()), macAddress, pkt);
 
                     packetService.emit(
                             new DefaultOutboundPacket(
                                     deviceId,
-                                    DefaultTrafficTreatment.builder().setOutput(PortNumber.FLOOD).build(),
+                                    DefaultTrafficTreatment.builder().setOutput(ingressPortNumber).build(),
                                     ByteBuffer.wrap(arpReply.serialize())));
+                    pktIn.block();
                 }
 
             } else if(pkt.getEtherType() == Ethernet.TYPE_IPV4) {
@@ -232,7 +636,7 @@ public class SDWanManager implements SDWANService {
 
                 //Handle ICMP packet individually
                 if (ipPacket.getProtocol() == IPv4.PROTOCOL_ICMP) {
-                    handleICMP(deviceId, ingressPortNumber, pkt);
+                    handleICMP(deviceId, ingressPortNumber, pkt, unparsed);
                     return;
                 }
 
@@ -245,111 +649,206 @@ public class SDWanManager implements SDWANService {
 
                     } else {
                         FlowRule[] natRules;
-                        PortNumber outPort = nextOutPort(deviceId);
+                        int srcPort;
+                        int destPort;
+
+                        if (ipPacket.getProtocol() == IPv4.PROTOCOL_TCP) {
+                            TCP tcpPacket = (TCP) ipPacket.getPayload();
+                            srcPort = tcpPacket.getSourcePort();
+                            destPort = tcpPacket.getDestinationPort();
+                        } else if (ipPacket.getProtocol() == IPv4.PROTOCOL_UDP) {
+                            UDP udpPacket = (UDP) ipPacket.getPayload();
+                            srcPort = udpPacket.getSourcePort();
+                            destPort = udpPacket.getDestinationPort();
+                        } else {
+                            return;
+                        }
 
-                        if (ipPacket.getProtocol() == IPv4.PROTOCOL_TCP || ipPacket.getProtocol() == IPv4.PROTOCOL_UDP) {
+                        //Packets arriving while the connection's rules are being installed wait for them, and are
+                        //then sent on with the same translation
+                        PendingFlowTable<OutboundPacket> pendingFlows = gateways.get(deviceId).getPendingFlows();
+                        PendingFlowTable.Setup<OutboundPacket> setup = pendingFlows.join(
+                                new PendingFlowTable.Key(ipPacket.getSourceAddress(), srcPort,
+                                        ipPacket.getDestinationAddress(), destPort, ipPacket.getProtocol()),
+                                translation -> releasePending(pktIn, unparsed, translation),
+                                System.currentTimeMillis());
+                        if (setup == null) {
+                            return;
+                        }
 
-                            natRules = gateways.get(deviceId).makeNatRules(ingressPortNumber, pkt,
-                                    ipPacket.getProtocol(), outPort);
+                        //Flows of a traffic class go out of the interface meeting the class's SLA
+                        int trafficClass = gateways.get(deviceId).classify(ipPacket.getSourceAddress(), srcPort,
+                                ipPacket.getDestinationAddress(), destPort, ipPacket.getProtocol(), ipPacket.getDscp());
+                        PortNumber outPort = nextOutPort(deviceId, PathSelector.flowHash(ipPacket.getSourceAddress(),
+                                srcPort, ipPacket.getDestinationAddress(), destPort, ipPacket.getProtocol()),
+                                trafficClass);
+                        if (outPort == null) {
+                            pendingFlows.abort(setup);
+                            return;
+                        }
 
-                        } else {
+                        //The raw frame is translated in place and sent on, rather than re-serializing the packet.
+                        //Buffered packets are translated by the switch instead, as are those of gateways using an
+                        //interface group: the group's bucket hash, not the selector, picks the interface of the
+                        //flow's later packets, so the first is left for the group to translate as well.
+                        boolean buffered = bufferedPacketOut || gateways.get(deviceId).getInterfaceGroup() != null;
+                        ByteBuffer frame = buffered ? null : PacketRewriter.writableFrame(unparsed);
+                        natRules = gateways.get(deviceId).makeNatRules(ingressPortNumber, pkt, frame,
+                                ipPacket.getProtocol(), outPort, trafficClass);
+
+                        //No translation could be made, e.g. the interface has run out of ports
+                        if (natRules == null) {
+                            pendingFlows.abort(setup);
                             return;
                         }
 
-                        FlowRule inFlowRule = natRules[0];
-                        FlowRule outFlowRule = natRules[1];
+                        if (buffered) {
+                            //Once the rules are installed the switch passes the packet through its flow table,
+                            //so the outgoing rule translates it. Only the buffer id is sent back if the switch
+                            //buffered the packet-in. Sending also marks the context handled.
+                            flowRuleBatcher.submit(natRules, () -> {
+                                sendToTable(pktIn, unparsed);
+                                pendingFlows.complete(setup, null);
+                            }, () -> abortNatRules(deviceId, natRules, setup));
+                            return;
+                        }
 
-                        flowRuleService.applyFlowRules(outFlowRule);
-                        flowRuleService.applyFlowRules(inFlowRule);
+                        FlowRule outFlowRule = natRules[1];
 
-                        TrafficTreatment treatment = DefaultTrafficTreatment.builder().setOutput(outPort).build();
-                        packetService.emit(
-                                new DefaultOutboundPacket(
-                                        deviceId,
-                                        treatment,
-                                        ByteBuffer.wrap(pkt.serialize())));
+                        //An existing mapping may have moved the flow to another interface, so send it out of
+                        //the interface chosen by the outgoing rule
+                        OutboundPacket outPacket = new DefaultOutboundPacket(
+                                deviceId,
+                                outFlowRule.treatment(),
+                                frame);
+
+                        //Hold the packet until both directions of the translation are installed
+                        flowRuleBatcher.submit(natRules, () -> {
+                            packetService.emit(outPacket);
+                            pendingFlows.complete(setup, outPacket);
+                        }, () -> abortNatRules(deviceId, natRules, setup));
                     }
                 }
             }
         }
 
-        private PortNumber nextOutPort(DeviceId deviceId) {
+        /**
+         * Undoes a connection whose rules failed to install: its session is rolled back, releasing the translated
+         * port, any of its rules the switch did install are removed, and the packets waiting for it are dropped
+         */
+        private void abortNatRules(DeviceId deviceId, FlowRule[] natRules,
+                                   PendingFlowTable.Setup<OutboundPacket> setup) {
             WanGateway gateway = gateways.get(deviceId);
-            Map<PortNumber, Integer> weights = gateway.getInterfaceWeights();
-            int totalUnusedCapacity = gateway.getTotalUnusedCapacity();
-            if (totalUnusedCapacity <= 0) {
-                log.info("Total unused capacity = " +totalUnusedCapacity);
-                totalUnusedCapacity = 1;
+            if (gateway == null) {
+                return;
+            }
+            gateway.abortNatRules(natRules);
+            flowRuleService.removeFlowRules(natRules);
+            gateway.getPendingFlows().abort(setup);
+        }
+
+        /**
+         * Sends on a packet which arrived while its connection's rules were being installed
+         * @param translation The first packet of the connection as it was sent, or null if it was released
+         *                    through the switch's flow table
+         */
+        private void releasePending(PacketContext pktIn, ByteBuffer unparsed, OutboundPacket translation) {
+            if (translation == null) {
+                sendToTable(pktIn, unparsed);
+                return;
             }
-            Random rand = new Random();
+            ByteBuffer frame = PacketRewriter.writableFrame(unparsed);
+            PacketRewriter.copySource(translation.data(), frame);
+            packetService.emit(new DefaultOutboundPacket(translation.sendThrough(), translation.treatment(), frame));
+        }
 
-            int randomNumber = rand.nextInt((int) Math.round(totalUnusedCapacity));
-            for (PortNumber port : weights.keySet()) {
-                if (weights.get(port) > randomNumber) {
-                    if (gateway.getInterface(port).getState()) {
-                        return port;
-                    } else {
-                        randomNumber -= weights.get(port);
-                    }
-                } else {
-                    randomNumber -= weights.get(port);
-                }
+        /**
+         * Passes a packet through the switch's flow table. A context blocked before being handed to a worker lane
+         * can no longer be sent, so its frame is emitted instead.
+         */
+        private void sendToTable(PacketContext pktIn, ByteBuffer unparsed) {
+            if (pktIn.isHandled()) {
+                packetService.emit(new DefaultOutboundPacket(pktIn.inPacket().receivedFrom().deviceId(),
+                        DefaultTrafficTreatment.builder().setOutput(PortNumber.TABLE).build(), unparsed));
+                return;
             }
-            //Should not reach here
-            return null;
+            pktIn.treatmentBuilder().setOutput(PortNumber.TABLE);
+            pktIn.send();
         }
 
-        private void handleICMP(DeviceId deviceId, PortNumber ingressPortNumber, Ethernet pktIn) {
+        private PortNumber nextOutPort(DeviceId deviceId, long flowHash, int trafficClass) {
+            PortNumber port = gateways.get(deviceId).selectOutPort(flowHash, trafficClass);
+            if (port == null) {
+                log.info("No interface is up on gateway: " + deviceId.toString());
+            }
+            return port;
+        }
+
+        private void handleICMP(DeviceId deviceId, PortNumber ingressPortNumber, Ethernet pktIn,
+                                ByteBuffer unparsed) {
             IPv4 ipPacketIn = (IPv4) pktIn.getPayload();
-            IPv4 ipPacketOut;
             ICMP icmpPacketIn = (ICMP) ipPacketIn.getPayload();
 
             if (icmpPacketIn.getIcmpCode() == 0 && icmpPacketIn.getIcmpType() == 8) {
-                PortNumber outgoingPortNumber = nextOutPort(deviceId);
+                ICMPEcho echo = (ICMPEcho) icmpPacketIn.getPayload();
                 WanGateway gateway = gateways.get(deviceId);
-                WanInterface intf = gateway.getInterface(outgoingPortNumber);
+                int trafficClass = gateway.classify(ipPacketIn.getSourceAddress(), 0,
+                        ipPacketIn.getDestinationAddress(), 0, IPv4.PROTOCOL_ICMP, ipPacketIn.getDscp());
+                PortNumber outgoingPortNumber = nextOutPort(deviceId, PathSelector.flowHash(
+                        ipPacketIn.getSourceAddress(), echo.getIdentifier() & 0xFFFF,
+                        ipPacketIn.getDestinationAddress(), 0, IPv4.PROTOCOL_ICMP), trafficClass);
+                if (outgoingPortNumber == null) {
+                    return;
+                }
 
                 //log.info("outgoing ICMP");
-                ipPacketOut = gateway.handleICMPOut(ipPacketIn, outgoingPortNumber);
-
-                ipPacketOut.setTtl(ipPacketIn.getTtl());
-                ipPacketOut.setChecksum((short) 0);
-
-                pktIn.setSourceMACAddress(intf.getMacAddress());
-                pktIn.setPayload(ipPacketOut);
+                ByteBuffer frame = PacketRewriter.writableFrame(unparsed);
+                if (!gateway.handleICMPOut(ipPacketIn, frame, outgoingPortNumber)) {
+                    return;
+                }
 
                 packetService.emit(new DefaultOutboundPacket(deviceId,
                         DefaultTrafficTreatment.builder().setOutput(outgoingPortNumber).build(),
-                        ByteBuffer.wrap(pktIn.serialize())));
+                        frame));
 
             } else if (icmpPacketIn.getIcmpCode() == 0 && icmpPacketIn.getIcmpType() == 0) {
                 //log.info("Incoming ICMP");
-                ipPacketOut = gateways.get(deviceId).handleICMPIn(ipPacketIn, ingressPortNumber);
+                if (linkProber.handleReply(deviceId, ingressPortNumber, pktIn)) {
+                    return;
+                }
 
-                ipPacketOut.setTtl(ipPacketIn.getTtl());
-                ipPacketOut.setChecksum((short) 0);
+                ByteBuffer frame = PacketRewriter.writableFrame(unparsed);
+                Ip4Address hostAddress = gateways.get(deviceId).handleICMPIn(ipPacketIn, frame, ingressPortNumber);
+                if (hostAddress == null) {
+                    //No echo request was translated for this reply, or it has expired
+                    return;
+                }
 
                 MacAddress hostMacAddress = MacAddress.ZERO;
                 PortNumber hostPortNumber = PortNumber.FLOOD;
 
-                for (Host h : hosts.values()) {
-                    if (h.ipAddresses().contains(IpAddress.valueOf(ipPacketOut.getDestinationAddress()))) {
-                        hostMacAddress = h.mac();
-                        hostPortNumber = h.location().port();
-                    }
+                Host host = findHost(hostAddress);
+                if (host != null) {
+                    hostMacAddress = host.mac();
+                    hostPortNumber = host.location().port();
                 }
 
-                Ethernet pktOut = pktIn;
-                pktOut.setDestinationMACAddress(hostMacAddress);
-                pktOut.setPayload(ipPacketOut);
+                PacketRewriter.setEthDst(frame, hostMacAddress.toLong());
 
                 packetService.emit(new DefaultOutboundPacket(deviceId,
                         DefaultTrafficTreatment.builder().setOutput(hostPortNumber).build(),
-                        ByteBuffer.wrap(pktOut.serialize())));
+                        frame));
             } else {
                 log.info("Unhandled ICMP packet: " + icmpPacketIn.toString());
             }
         }
+
+        /**
+         * Looks a host up in the index, asking HostService only if the index does not know the address
+         */
+        private Host findHost(IpAddress ipAddress) {
+            return hosts.find(ipAddress, hostService);
+        }
     }
 
     /**
@@ -363,7 +862,10 @@ public class SDWanManager implements SDWANService {
             DeviceId deviceId = flowRule.deviceId();
 
             if (e.type() == FlowRuleEvent.Type.RULE_REMOVED && flowRule.appId() == appId.id()) {
-               gateways.get(deviceId).removeRule(flowRule);
+                WanGateway gateway = gateways.get(deviceId);
+                if (gateway != null) {
+                    gateway.removeRule(flowRule);
+                }
             }
         }
     }
@@ -377,20 +879,22 @@ public class SDWanManager implements SDWANService {
 
             if (e.type() == HostEvent.Type.HOST_ADDED) {
                 //Add new host to list
-                hosts.put(e.subject().id(), e.subject());
+                hosts.add(e.subject());
 
             } else if (e.type() == HostEvent.Type.HOST_UPDATED) {
-                //Update Host in list
-                hosts.remove(e.prevSubject().id());
-                hosts.put(e.subject().id(), e.subject());
+                //Update Host in list, its addresses may have changed
+                if (e.prevSubject() != null && !e.prevSubject().id().equals(e.subject().id())) {
+                    hosts.remove(e.prevSubject().id());
+                }
+                hosts.add(e.subject());
 
             } else if (e.type() == HostEvent.Type.HOST_REMOVED) {
                 //Remove host from list
                 hosts.remove(e.subject().id());
 
             } else if (e.type() == HostEvent.Type.HOST_MOVED) {
-                //TODO: handle Host Moved event
-                //log.info("HOST MOVED EVENT, CURRENTLY NOT HANDLED BY CONTROLLER\n");
+                //Replace the host with its new location
+                hosts.add(e.subject());
             }
         }
     }
@@ -407,44 +911,37 @@ public class SDWanManager implements SDWANService {
                 Device device = e.subject();
 
                 //If the device is a Gateway device
-                if (gateways.keySet().contains(device.id())) {
+                WanGateway gateway = gateways.get(device.id());
+                if (gateway != null) {
 
-                    WanGateway gateway = gateways.get(device.id());
-                    for (PortNumber port : gateway.getInterfaces().keySet()) {
+                    //Work from a single snapshot of the interfaces, as the UI may change them meanwhile
+                    for (Map.Entry<PortNumber, WanInterface> entry : gateway.getInterfaces().entrySet()) {
+                        PortNumber port = entry.getKey();
                         CurrentPortStatistics currentPortStatistics = new CurrentPortStatistics();
-                        if (!gateway.getInterface(port).getState()) {
-                            currentPortStatistics.bitsPerSecond = 0;
-                            currentPortStatistics.totalBytes = 0;
-                            currentPortStatistics.packetErrors = 0;
-                            currentPortStatistics.packetsDropped = 0;
+                        PortStatistics deltaPortStats = deviceService.getDeltaStatisticsForPort(device.id(), port);
+                        PortStatistics portStats = deviceService.getStatisticsForPort(device.id(), port);
+                        if (!entry.getValue().getState() || deltaPortStats == null || portStats == null) {
+                            //Rates start afresh once the interface is back up
+                            telemetry.reset(device.id(), port);
                         } else {
-                            PortStatistics deltaPortStats = deviceService.getDeltaStatisticsForPort(device.id(), port);
-                            PortStatistics portStats = deviceService.getStatisticsForPort(device.id(), port);
-
-                            int newTraffic = (int) (deltaPortStats.bytesReceived() + deltaPortStats.bytesSent());
-
-                            currentPortStatistics.bitsPerSecond = ((newTraffic / 5) * 8);
-                            currentPortStatistics.totalBytes = portStats.bytesReceived() + portStats.bytesSent();
-                            currentPortStatistics.packetErrors = portStats.packetsRxErrors() + portStats.packetsTxErrors();
-                            currentPortStatistics.packetsDropped = portStats.packetsRxDropped() + portStats.packetsTxDropped();
-
-                            //TODO: Check the delay of the link
-                            //int delay = generate_ping(i);
-
+                            currentPortStatistics = telemetry.update(device.id(), port, deltaPortStats, portStats,
+                                    System.currentTimeMillis());
                         }
                         gateway.updateInterfaceStatistics(port, currentPortStatistics);
                     }
-
-                    gateways.replace(device.id(), gateway);
+                    groupHandler.refresh(device.id(), gateway);
                 }
 
             } else if (e.type() == DeviceEvent.Type.PORT_UPDATED || e.type() == DeviceEvent.Type.PORT_ADDED  ||
                     e.type() == DeviceEvent.Type.PORT_REMOVED ) {
                 WanGateway gateway = gateways.get(e.subject().id());
                 Port intfPort = e.port();
-                WanInterface intf = gateway.getInterface(intfPort.number());
-                if (intf != null) {
-                    intf.setState(intfPort.isEnabled());
+                WanInterface intf = gateway != null ? gateway.getInterface(intfPort.number()) : null;
+                if (intf != null && gateway.updateInterfaceState(intfPort.number(), intfPort.isEnabled())) {
+                    groupHandler.refresh(e.subject().id(), gateway);
+                    if (!intfPort.isEnabled()) {
+                        failoverEngine.interfaceDown(gateway, intfPort.number());
+                    }
                 }
             }
         }
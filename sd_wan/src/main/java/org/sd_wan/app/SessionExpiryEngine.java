@@ -0,0 +1,121 @@
+package org.sd_wan.app;
+
+import org.onosproject.core.ApplicationId;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.flow.FlowEntry;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleOperations;
+import org.onosproject.net.flow.FlowRuleService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static org.onlab.util.Tools.groupedThreads;
+
+/**
+ * Periodically reconciles the gateways' NAT state with the flow rules actually installed, so that ports and
+ * identifiers are reclaimed even when rule removal events are lost. The app's flow entries are read in bulk and
+ * every session whose rules are still installed has its expiry pushed back to their last seen time, then the
+ * sessions and ICMP translations which have timed out are expired and any of their rules left are removed.
+ * The same flow entries tell the meter handler which of its retired meters no session uses any more.
+ */
+public class SessionExpiryEngine {
+
+    public static final int DEFAULT_INTERVAL_SECONDS = 5;
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final FlowRuleService flowRuleService;
+    private final ApplicationId appId;
+    private final Map<DeviceId, WanGateway> gateways;
+    private final WanMeterHandler meterHandler;
+    private final ScheduledExecutorService expiryExecutor =
+            newSingleThreadScheduledExecutor(groupedThreads("sdwan", "session-expiry", log));
+
+    private ScheduledFuture<?> reconcileTask;
+
+    public SessionExpiryEngine(FlowRuleService flowRuleService, ApplicationId appId,
+                               Map<DeviceId, WanGateway> gateways, WanMeterHandler meterHandler) {
+        this.flowRuleService = flowRuleService;
+        this.appId = appId;
+        this.gateways = gateways;
+        this.meterHandler = meterHandler;
+    }
+
+    /**
+     * Starts reconciling at a fixed interval, replacing any previous interval
+     */
+    public synchronized void start(int intervalSeconds) {
+        if (intervalSeconds < 1) {
+            throw new IllegalArgumentException("Invalid session expiry interval: " + intervalSeconds + " s");
+        }
+        if (reconcileTask != null) {
+            reconcileTask.cancel(false);
+        }
+        reconcileTask = expiryExecutor.scheduleWithFixedDelay(this::reconcile, intervalSeconds, intervalSeconds,
+                TimeUnit.SECONDS);
+    }
+
+    public synchronized void shutdown() {
+        expiryExecutor.shutdownNow();
+    }
+
+    private void reconcile() {
+        //An exception would cancel all further runs of the task
+        try {
+            reconcile(System.currentTimeMillis());
+        } catch (Exception ex) {
+            log.warn("NAT session reconciliation failed: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Reconciles the gateways once, as the task does
+     */
+    void reconcile(long now) {
+        Map<DeviceId, List<FlowEntry>> flowEntries = new HashMap<>();
+        for (FlowEntry flowEntry : flowRuleService.getFlowEntriesById(appId)) {
+            if (flowEntry.state() == FlowEntry.FlowEntryState.ADDED ||
+                    flowEntry.state() == FlowEntry.FlowEntryState.PENDING_ADD) {
+                flowEntries.computeIfAbsent(flowEntry.deviceId(), id -> new ArrayList<>()).add(flowEntry);
+            }
+        }
+
+        int expiredSessions = 0;
+        int expiredIcmpSessions = 0;
+        //Expired sessions may own any number of their rules, or none once both have been removed
+        List<FlowRule> expiredRules = new ArrayList<>();
+        for (Map.Entry<DeviceId, WanGateway> entry : gateways.entrySet()) {
+            WanGateway gateway = entry.getValue();
+            List<FlowEntry> gatewayEntries = flowEntries.getOrDefault(entry.getKey(), Collections.emptyList());
+            gateway.recordFlowStats(gatewayEntries);
+            meterHandler.releaseRetired(entry.getKey(), gatewayEntries, now);
+
+            expiredSessions += gateway.expireSessions(now, expiredRules);
+            expiredIcmpSessions += gateway.expireIcmpSessions();
+        }
+
+        if (!expiredRules.isEmpty()) {
+            FlowRuleOperations.Builder ops = FlowRuleOperations.builder();
+            for (FlowRule rule : expiredRules) {
+                ops.remove(rule);
+            }
+            flowRuleService.apply(ops.build());
+        }
+        if (expiredSessions > 0) {
+            log.info("Expired " + expiredSessions + " NAT sessions missing from the flow statistics");
+        }
+        if (expiredIcmpSessions > 0) {
+            log.debug("Expired " + expiredIcmpSessions + " ICMP echo translations");
+        }
+    }
+}
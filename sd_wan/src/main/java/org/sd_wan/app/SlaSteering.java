@@ -0,0 +1,75 @@
+package org.sd_wan.app;
+
+import org.onosproject.net.PortNumber;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The interface each traffic class of a policy is steered to on one gateway. Like the path selectors, the choice
+ * is remade whenever the gateway's interfaces, weights or path quality change, so new flows only look up their
+ * class's entry.
+ */
+public class SlaSteering {
+
+    private final TrafficPolicy policy;
+    //Interface of each class, null where no interface meets the class's thresholds
+    private volatile PortNumber[] classPorts;
+
+    public SlaSteering(TrafficPolicy policy) {
+        this.policy = policy;
+        this.classPorts = new PortNumber[policy.getClasses().size()];
+    }
+
+    public TrafficPolicy getPolicy() {
+        return policy;
+    }
+
+    public void update(Map<PortNumber, WanInterface> interfaces, Map<PortNumber, Long> weights,
+                       Map<PortNumber, LinkQuality> quality) {
+        List<TrafficClass> classes = policy.getClasses();
+        PortNumber[] ports = new PortNumber[classes.size()];
+        for (int i = 0; i < ports.length; i++) {
+            TrafficClass trafficClass = classes.get(i);
+            for (PortNumber port : candidates(trafficClass, interfaces, weights, quality)) {
+                WanInterface intf = interfaces.get(port);
+                if (intf != null && intf.getState() &&
+                        trafficClass.isMetBy(quality.get(port), weights.getOrDefault(port, 0L))) {
+                    ports[i] = port;
+                    break;
+                }
+            }
+        }
+        classPorts = ports;
+    }
+
+    /**
+     * @param trafficClass Index of the class in the policy, or TrafficPolicy.NONE
+     * @return The interface for a new flow of the class, or null if it has none and the gateway's path selector
+     *          is to choose
+     */
+    public PortNumber select(int trafficClass) {
+        PortNumber[] ports = classPorts;
+        return trafficClass >= 0 && trafficClass < ports.length ? ports[trafficClass] : null;
+    }
+
+    /**
+     * @return The interfaces to try for a class, in order
+     */
+    private List<PortNumber> candidates(TrafficClass trafficClass, Map<PortNumber, WanInterface> interfaces,
+                                        Map<PortNumber, Long> weights, Map<PortNumber, LinkQuality> quality) {
+        if (!trafficClass.getPreferredPorts().isEmpty()) {
+            return trafficClass.getPreferredPorts();
+        }
+        List<PortNumber> ports = new ArrayList<>(interfaces.keySet());
+        if (trafficClass.isLatencySensitive()) {
+            ports.sort(Comparator.comparingDouble(port -> quality.getOrDefault(port, LinkQuality.UNKNOWN)
+                    .getDelayScore()));
+        } else {
+            ports.sort(Comparator.comparingLong((PortNumber port) -> weights.getOrDefault(port, 0L)).reversed());
+        }
+        return ports;
+    }
+}
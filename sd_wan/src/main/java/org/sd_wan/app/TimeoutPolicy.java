@@ -0,0 +1,233 @@
+package org.sd_wan.app;
+
+import org.onlab.packet.IPv4;
+
+import java.util.Arrays;
+
+/**
+ * Chooses the idle and hard timeouts of NAT rules by protocol and destination port, so that short lived flows
+ * such as DNS leave the flow table quickly while long lived TCP sessions are not re-punted to the controller.
+ * TCP packets carrying FIN or RST get the short closing timeout, so the rules of a closing connection are removed
+ * soon after its last packet.
+ *
+ * Every destination port of each protocol maps to a timeout class, held in an immutable table which is replaced
+ * whenever the policy changes, so lookups are two array reads and never lock.
+ */
+public class TimeoutPolicy {
+
+    public static final int DEFAULT_TCP_IDLE_TIMEOUT = 60;
+    public static final int DEFAULT_UDP_IDLE_TIMEOUT = 20;
+    public static final int DEFAULT_DNS_IDLE_TIMEOUT = 5;
+    public static final int DEFAULT_CLOSING_IDLE_TIMEOUT = 2;
+
+    public static final int DNS_PORT = 53;
+
+    //TCP flags which end a connection
+    private static final short FIN = 0x01;
+    private static final short RST = 0x04;
+
+    private static final int PORT_SPACE = 65536;
+    private static final int MAX_CLASSES = 256;
+
+    private volatile Table table;
+    private volatile int closingIdleTimeout = DEFAULT_CLOSING_IDLE_TIMEOUT;
+
+    public TimeoutPolicy() {
+        publish(new Table(DEFAULT_TCP_IDLE_TIMEOUT, DEFAULT_UDP_IDLE_TIMEOUT));
+        setPortTimeout(IPv4.PROTOCOL_UDP, DNS_PORT, DNS_PORT, DEFAULT_DNS_IDLE_TIMEOUT, 0);
+        setPortTimeout(IPv4.PROTOCOL_TCP, DNS_PORT, DNS_PORT, DEFAULT_DNS_IDLE_TIMEOUT, 0);
+    }
+
+    /**
+     * @return The idle timeout in seconds of a rule for a session to a destination port
+     */
+    public int getIdleTimeout(byte protocol, int destPort) {
+        Table current = table;
+        return current.idleTimeouts[current.classOf(protocol, destPort)];
+    }
+
+    /**
+     * @return The hard timeout in seconds of a rule for a session to a destination port, 0 for none
+     */
+    public int getHardTimeout(byte protocol, int destPort) {
+        Table current = table;
+        return current.hardTimeouts[current.classOf(protocol, destPort)];
+    }
+
+    /**
+     * @return The idle timeout in seconds of the destination ports of a protocol without a port range of their
+     *          own, used for rules covering every destination
+     */
+    public int getDefaultIdleTimeout(byte protocol) {
+        return table.idleTimeouts[protocol == IPv4.PROTOCOL_TCP ? Table.TCP_DEFAULT : Table.UDP_DEFAULT];
+    }
+
+    /**
+     * @return The hard timeout in seconds of the destination ports of a protocol without a port range of their
+     *          own, 0 for none
+     */
+    public int getDefaultHardTimeout(byte protocol) {
+        return table.hardTimeouts[protocol == IPv4.PROTOCOL_TCP ? Table.TCP_DEFAULT : Table.UDP_DEFAULT];
+    }
+
+    /**
+     * @return The idle timeout of a rule installed for a packet, which is shortened if the packet closes
+     *          its TCP connection
+     */
+    public int getIdleTimeout(byte protocol, int destPort, short tcpFlags) {
+        if (protocol == IPv4.PROTOCOL_TCP && (tcpFlags & (FIN | RST)) != 0) {
+            return closingIdleTimeout;
+        }
+        return getIdleTimeout(protocol, destPort);
+    }
+
+    /**
+     * @return The longest idle timeout in seconds any rule can be given, which bounds how long a session's rules
+     *          may stay installed without traffic
+     */
+    public int getMaxIdleTimeout() {
+        return Math.max(table.maxIdleTimeout, closingIdleTimeout);
+    }
+
+    /**
+     * Sets the timeouts of every destination port of a protocol without a port range of its own
+     */
+    public synchronized void setDefaultTimeout(byte protocol, int idleTimeout, int hardTimeout) {
+        checkTimeouts(idleTimeout, hardTimeout);
+        Table newTable = table.copy();
+        int index = protocol == IPv4.PROTOCOL_TCP ? Table.TCP_DEFAULT : Table.UDP_DEFAULT;
+        newTable.idleTimeouts[index] = idleTimeout;
+        newTable.hardTimeouts[index] = hardTimeout;
+        publish(newTable);
+    }
+
+    /**
+     * Sets the timeouts of a range of destination ports, replacing the timeouts of any ports already set
+     * @param idleTimeout Idle timeout in seconds
+     * @param hardTimeout Hard timeout in seconds, 0 for none
+     */
+    public synchronized void setPortTimeout(byte protocol, int minPort, int maxPort, int idleTimeout,
+                                            int hardTimeout) {
+        checkTimeouts(idleTimeout, hardTimeout);
+        checkPorts(minPort, maxPort);
+        Table newTable = table.copy();
+        int timeoutClass = newTable.findOrAddClass(idleTimeout, hardTimeout);
+        Arrays.fill(newTable.portClasses(protocol), minPort, maxPort + 1, (byte) timeoutClass);
+        publish(newTable);
+    }
+
+    /**
+     * Returns a range of destination ports to the protocol's default timeouts
+     */
+    public synchronized void clearPortTimeout(byte protocol, int minPort, int maxPort) {
+        checkPorts(minPort, maxPort);
+        Table newTable = table.copy();
+        int defaultClass = protocol == IPv4.PROTOCOL_TCP ? Table.TCP_DEFAULT : Table.UDP_DEFAULT;
+        Arrays.fill(newTable.portClasses(protocol), minPort, maxPort + 1, (byte) defaultClass);
+        publish(newTable);
+    }
+
+    public int getClosingIdleTimeout() {
+        return closingIdleTimeout;
+    }
+
+    /**
+     * Sets the idle timeout of rules installed for TCP packets carrying FIN or RST
+     */
+    public void setClosingIdleTimeout(int closingIdleTimeout) {
+        checkTimeouts(closingIdleTimeout, 0);
+        this.closingIdleTimeout = closingIdleTimeout;
+    }
+
+    /**
+     * Replaces the table once the longest idle timeout of the classes some port still uses is known
+     */
+    private void publish(Table newTable) {
+        int maxIdleTimeout = Math.max(newTable.idleTimeouts[Table.TCP_DEFAULT],
+                newTable.idleTimeouts[Table.UDP_DEFAULT]);
+        for (int port = 0; port < PORT_SPACE; port++) {
+            maxIdleTimeout = Math.max(maxIdleTimeout, newTable.idleTimeouts[newTable.tcpClasses[port] & 0xFF]);
+            maxIdleTimeout = Math.max(maxIdleTimeout, newTable.idleTimeouts[newTable.udpClasses[port] & 0xFF]);
+        }
+        newTable.maxIdleTimeout = maxIdleTimeout;
+        table = newTable;
+    }
+
+    private static void checkTimeouts(int idleTimeout, int hardTimeout) {
+        //OpenFlow timeouts are 16 bit, and an idle timeout of 0 would make the rules permanent
+        if (idleTimeout < 1 || idleTimeout > 65535 || hardTimeout < 0 || hardTimeout > 65535) {
+            throw new IllegalArgumentException("Invalid rule timeouts: idle " + idleTimeout + " s, hard "
+                    + hardTimeout + " s");
+        }
+    }
+
+    private static void checkPorts(int minPort, int maxPort) {
+        if (minPort < 0 || maxPort >= PORT_SPACE || minPort > maxPort) {
+            throw new IllegalArgumentException("Invalid destination port range: " + minPort + "-" + maxPort);
+        }
+    }
+
+    /**
+     * Timeout class of every destination port of TCP and UDP, and the timeouts of each class
+     */
+    private static final class Table {
+        static final int TCP_DEFAULT = 0;
+        static final int UDP_DEFAULT = 1;
+
+        final byte[] tcpClasses;
+        final byte[] udpClasses;
+        final int[] idleTimeouts;
+        final int[] hardTimeouts;
+        int classCount;
+        //Longest idle timeout of any class in use, set before the table is published
+        int maxIdleTimeout;
+
+        Table(int tcpIdleTimeout, int udpIdleTimeout) {
+            tcpClasses = new byte[PORT_SPACE];
+            udpClasses = new byte[PORT_SPACE];
+            Arrays.fill(udpClasses, (byte) UDP_DEFAULT);
+            idleTimeouts = new int[MAX_CLASSES];
+            hardTimeouts = new int[MAX_CLASSES];
+            idleTimeouts[TCP_DEFAULT] = tcpIdleTimeout;
+            idleTimeouts[UDP_DEFAULT] = udpIdleTimeout;
+            classCount = 2;
+        }
+
+        Table(Table other) {
+            tcpClasses = other.tcpClasses.clone();
+            udpClasses = other.udpClasses.clone();
+            idleTimeouts = other.idleTimeouts.clone();
+            hardTimeouts = other.hardTimeouts.clone();
+            classCount = other.classCount;
+        }
+
+        Table copy() {
+            return new Table(this);
+        }
+
+        byte[] portClasses(byte protocol) {
+            return protocol == IPv4.PROTOCOL_TCP ? tcpClasses : udpClasses;
+        }
+
+        int classOf(byte protocol, int destPort) {
+            return portClasses(protocol)[destPort & 0xFFFF] & 0xFF;
+        }
+
+        /**
+         * Port range classes with the same timeouts are shared, the default classes are never reused for ranges
+         */
+        int findOrAddClass(int idleTimeout, int hardTimeout) {
+            for (int i = UDP_DEFAULT + 1; i < classCount; i++) {
+                if (idleTimeouts[i] == idleTimeout && hardTimeouts[i] == hardTimeout) {
+                    return i;
+                }
+            }
+            if (classCount == MAX_CLASSES) {
+                throw new IllegalStateException("Too many distinct rule timeouts");
+            }
+            idleTimeouts[classCount] = idleTimeout;
+            hardTimeouts[classCount] = hardTimeout;
+            return classCount++;
+        }
+    }
+}
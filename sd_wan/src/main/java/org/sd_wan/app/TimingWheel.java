@@ -0,0 +1,185 @@
+package org.sd_wan.app;
+
+import java.util.Arrays;
+
+/**
+ * Hierarchical timing wheel of int handles, used to expire NAT state without scanning the tables.
+ * The lowest level has one slot per tick, each higher level has slots covering a full turn of the level below.
+ * A handle is linked into the slot of its deadline on the lowest level that can reach it, and is cascaded down a
+ * level each time the level below completes a turn, so scheduling, cancelling and expiring are all O(1).
+ *
+ * Handles are kept in doubly linked slot lists held in arrays indexed by the handle, which grow as needed.
+ * Not thread safe, the owning table synchronizes access.
+ */
+public class TimingWheel {
+
+    /**
+     * Receives the handles whose deadline has passed
+     */
+    public interface ExpiryHandler {
+        void expired(int handle);
+    }
+
+    private static final int NONE = -1;
+    private static final int LEVEL_BITS = 6;
+    private static final int SLOTS = 1 << LEVEL_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+    //Deadlines further away than the wheel can reach are parked in the last slot and rescheduled when reached
+    private static final long MAX_DELTA = (1L << (LEVEL_BITS * LEVELS)) - 1;
+
+    private final long tickMillis;
+    private long currentTick;
+
+    private final int[] heads = new int[SLOTS * LEVELS];
+    private long[] deadline = new long[0];
+    private int[] next = new int[0];
+    private int[] prev = new int[0];
+    // Slot the handle is linked into, or NONE if it is not scheduled
+    private int[] slotOf = new int[0];
+    private int size = 0;
+
+    /**
+     * @param tickMillis The resolution of the wheel
+     * @param startMillis The current time
+     */
+    public TimingWheel(long tickMillis, long startMillis) {
+        this.tickMillis = tickMillis;
+        this.currentTick = startMillis / tickMillis;
+        Arrays.fill(heads, NONE);
+    }
+
+    /**
+     * Schedules a handle to expire at a time, replacing any earlier deadline of the handle.
+     * Deadlines which have already passed expire on the next tick.
+     */
+    public void schedule(int handle, long deadlineMillis) {
+        if (handle >= slotOf.length) {
+            grow(Math.max(handle + 1, slotOf.length << 1));
+        }
+        if (slotOf[handle] != NONE) {
+            unlink(handle);
+        } else {
+            size++;
+        }
+        deadline[handle] = Math.max(deadlineMillis / tickMillis, currentTick + 1);
+        link(handle);
+    }
+
+    public void cancel(int handle) {
+        if (isScheduled(handle)) {
+            unlink(handle);
+            size--;
+        }
+    }
+
+    public boolean isScheduled(int handle) {
+        return handle >= 0 && handle < slotOf.length && slotOf[handle] != NONE;
+    }
+
+    /**
+     * @return The deadline of a scheduled handle, rounded down to the tick
+     */
+    public long getDeadline(int handle) {
+        return deadline[handle] * tickMillis;
+    }
+
+    /**
+     * Moves the wheel on to the current time, passing every handle whose deadline has been reached to the handler.
+     * The handler may schedule or cancel handles.
+     * @return The number of handles expired
+     */
+    public int advance(long nowMillis, ExpiryHandler handler) {
+        long tick = nowMillis / tickMillis;
+        int expired = 0;
+        while (currentTick < tick) {
+            currentTick++;
+
+            //Bring down the entries of each higher level whose turn below has just completed
+            int level = 1;
+            while (level < LEVELS && (currentTick & ((1L << (LEVEL_BITS * level)) - 1)) == 0) {
+                level++;
+            }
+            for (level--; level > 0; level--) {
+                cascade(level * SLOTS + (int) ((currentTick >>> (LEVEL_BITS * level)) & SLOT_MASK));
+            }
+
+            //Handles are taken off one at a time, as the handler may cancel others in the same slot.
+            //Handles relinked or scheduled now always land in another slot, so the loop ends.
+            int slot = (int) (currentTick & SLOT_MASK);
+            int handle;
+            while ((handle = heads[slot]) != NONE) {
+                unlink(handle);
+                if (deadline[handle] <= currentTick) {
+                    size--;
+                    expired++;
+                    handler.expired(handle);
+                } else {
+                    link(handle);
+                }
+            }
+        }
+        return expired;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return The approximate heap in bytes used by the wheel
+     */
+    public long memoryFootprint() {
+        return (long) slotOf.length * (8 + 4 + 4 + 4) + heads.length * 4;
+    }
+
+    private void cascade(int slot) {
+        int handle = heads[slot];
+        heads[slot] = NONE;
+        while (handle != NONE) {
+            int following = next[handle];
+            link(handle);
+            handle = following;
+        }
+    }
+
+    private void link(int handle) {
+        long delta = Math.min(deadline[handle] - currentTick, MAX_DELTA);
+        long target = currentTick + delta;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= (1L << (LEVEL_BITS * (level + 1)))) {
+            level++;
+        }
+        int slot = level * SLOTS + (int) ((target >>> (LEVEL_BITS * level)) & SLOT_MASK);
+
+        slotOf[handle] = slot;
+        prev[handle] = NONE;
+        next[handle] = heads[slot];
+        if (heads[slot] != NONE) {
+            prev[heads[slot]] = handle;
+        }
+        heads[slot] = handle;
+    }
+
+    private void unlink(int handle) {
+        int slot = slotOf[handle];
+        if (prev[handle] != NONE) {
+            next[prev[handle]] = next[handle];
+        } else {
+            heads[slot] = next[handle];
+        }
+        if (next[handle] != NONE) {
+            prev[next[handle]] = prev[handle];
+        }
+        slotOf[handle] = NONE;
+    }
+
+    private void grow(int capacity) {
+        int oldCapacity = slotOf.length;
+        deadline = Arrays.copyOf(deadline, capacity);
+        next = Arrays.copyOf(next, capacity);
+        prev = Arrays.copyOf(prev, capacity);
+        slotOf = Arrays.copyOf(slotOf, capacity);
+        Arrays.fill(slotOf, oldCapacity, capacity, NONE);
+    }
+}
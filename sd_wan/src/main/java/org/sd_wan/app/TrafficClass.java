@@ -0,0 +1,86 @@
+package org.sd_wan.app;
+
+import org.onosproject.net.PortNumber;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A class of traffic and the service level its flows need from a WAN interface. New flows of the class are sent
+ * out of the first interface in its preference order that is up and meets every threshold. Without a preference
+ * order, interfaces are tried from the lowest delay when the class has a latency threshold, and from the most
+ * spare uplink capacity otherwise.
+ * Thresholds on delay and loss are only checked once the interface's path has been measured by link probing,
+ * so without probing only the bandwidth threshold applies.
+ */
+public final class TrafficClass {
+
+    public static final double NO_MAX_LATENCY = Double.POSITIVE_INFINITY;
+    public static final double NO_MAX_LOSS = 1;
+    public static final long NO_MIN_BANDWIDTH = 0;
+
+    private final String name;
+    private final double maxLatencyMillis;
+    private final double maxLossRatio;
+    private final long minBandwidth;
+    private final List<PortNumber> preferredPorts;
+
+    /**
+     * @param maxLatencyMillis Highest acceptable smoothed round trip time
+     * @param maxLossRatio Highest acceptable share of lost probes, from 0 to 1
+     * @param minBandwidth Lowest acceptable spare uplink capacity in bits per second
+     * @param preferredPorts Interfaces in order of preference, empty to rank them by their measurements
+     */
+    public TrafficClass(String name, double maxLatencyMillis, double maxLossRatio, long minBandwidth,
+                        List<PortNumber> preferredPorts) {
+        this.name = name;
+        this.maxLatencyMillis = maxLatencyMillis;
+        this.maxLossRatio = maxLossRatio;
+        this.minBandwidth = minBandwidth;
+        this.preferredPorts = Collections.unmodifiableList(preferredPorts);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public double getMaxLatencyMillis() {
+        return maxLatencyMillis;
+    }
+
+    public double getMaxLossRatio() {
+        return maxLossRatio;
+    }
+
+    public long getMinBandwidth() {
+        return minBandwidth;
+    }
+
+    public List<PortNumber> getPreferredPorts() {
+        return preferredPorts;
+    }
+
+    public boolean isLatencySensitive() {
+        return maxLatencyMillis != NO_MAX_LATENCY;
+    }
+
+    /**
+     * @param quality The interface's measured path quality
+     * @param spareBandwidth The interface's spare uplink capacity in bits per second
+     */
+    public boolean isMetBy(LinkQuality quality, long spareBandwidth) {
+        if (spareBandwidth < minBandwidth) {
+            return false;
+        }
+        if (quality == null) {
+            return true;
+        }
+        //Measurements not yet made are NaN, which fails neither comparison
+        return !(quality.getRttMillis() > maxLatencyMillis) && !(quality.getLossRatio() > maxLossRatio);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,163 @@
+package org.sd_wan.app;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Traffic classes and the rules which classify new flows into them, where the first rule a flow matches wins.
+ *
+ * The rules are compiled into one index per field as in bit vector packet classification: each field's value
+ * space is cut into the elementary ranges between rule boundaries, and each range holds a bit mask of the rules
+ * matching it. A flow is classified by looking up each of its fields, a binary search for addresses and ports
+ * and a table lookup for the protocol and DSCP, and ANDing the masks, so the cost is O(log n) in the number of
+ * rules whatever their order. The lowest bit left is the first matching rule.
+ * Policies are immutable, changing the rules means compiling a new policy.
+ */
+public final class TrafficPolicy {
+
+    //Returned when a flow matches no rule
+    public static final int NONE = -1;
+
+    //Rules are bits of a long
+    public static final int MAX_RULES = 64;
+
+    public static final TrafficPolicy EMPTY = new TrafficPolicy(new ArrayList<>(), new ArrayList<>());
+
+    private final List<TrafficClass> classes;
+    private final List<TrafficRule> rules;
+
+    //Class index of each rule
+    private final int[] ruleClasses;
+    private final RangeIndex srcIps;
+    private final RangeIndex destIps;
+    private final RangeIndex srcPorts;
+    private final RangeIndex destPorts;
+    private final long[] protocols = new long[256];
+    private final long[] dscps = new long[64];
+
+    /**
+     * @throws IllegalArgumentException if a rule names a class which is not given, or there are too many rules
+     */
+    public TrafficPolicy(List<TrafficClass> classes, List<TrafficRule> rules) {
+        if (rules.size() > MAX_RULES) {
+            throw new IllegalArgumentException("Too many traffic rules: " + rules.size() + ", at most " + MAX_RULES);
+        }
+        this.classes = new ArrayList<>(classes);
+        this.rules = new ArrayList<>(rules);
+
+        Map<String, Integer> classIndexes = new HashMap<>();
+        for (int i = 0; i < classes.size(); i++) {
+            if (classIndexes.put(classes.get(i).getName(), i) != null) {
+                throw new IllegalArgumentException("Duplicate traffic class: " + classes.get(i).getName());
+            }
+        }
+
+        ruleClasses = new int[rules.size()];
+        long[] srcIpRanges = new long[rules.size() * 2];
+        long[] destIpRanges = new long[rules.size() * 2];
+        long[] srcPortRanges = new long[rules.size() * 2];
+        long[] destPortRanges = new long[rules.size() * 2];
+        for (int i = 0; i < rules.size(); i++) {
+            TrafficRule rule = rules.get(i);
+            Integer classIndex = classIndexes.get(rule.getTrafficClass());
+            if (classIndex == null) {
+                throw new IllegalArgumentException("Unknown traffic class: " + rule.getTrafficClass());
+            }
+            ruleClasses[i] = classIndex;
+
+            srcIpRanges[2 * i] = rule.srcIpMin;
+            srcIpRanges[2 * i + 1] = rule.srcIpMax;
+            destIpRanges[2 * i] = rule.destIpMin;
+            destIpRanges[2 * i + 1] = rule.destIpMax;
+            srcPortRanges[2 * i] = rule.srcPortMin;
+            srcPortRanges[2 * i + 1] = rule.srcPortMax;
+            destPortRanges[2 * i] = rule.destPortMin;
+            destPortRanges[2 * i + 1] = rule.destPortMax;
+
+            long bit = 1L << i;
+            for (int protocol = 0; protocol < protocols.length; protocol++) {
+                if (rule.protocol == TrafficRule.ANY_PROTOCOL || rule.protocol == protocol) {
+                    protocols[protocol] |= bit;
+                }
+            }
+            for (int dscp = 0; dscp < dscps.length; dscp++) {
+                if (rule.dscp == TrafficRule.ANY_DSCP || rule.dscp == dscp) {
+                    dscps[dscp] |= bit;
+                }
+            }
+        }
+        srcIps = new RangeIndex(srcIpRanges);
+        destIps = new RangeIndex(destIpRanges);
+        srcPorts = new RangeIndex(srcPortRanges);
+        destPorts = new RangeIndex(destPortRanges);
+    }
+
+    public List<TrafficClass> getClasses() {
+        return classes;
+    }
+
+    public List<TrafficRule> getRules() {
+        return rules;
+    }
+
+    /**
+     * @param dscp The DSCP of the flow's first packet
+     * @return The index of the flow's class in getClasses(), or NONE if it matches no rule
+     */
+    public int classify(int srcIp, int srcPort, int destIp, int destPort, byte protocol, int dscp) {
+        if (ruleClasses.length == 0) {
+            return NONE;
+        }
+        long matches = protocols[protocol & 0xFF] & dscps[dscp & 0x3F];
+        if (matches != 0) {
+            matches &= srcPorts.lookup(srcPort) & destPorts.lookup(destPort);
+        }
+        if (matches != 0) {
+            matches &= srcIps.lookup(srcIp & 0xFFFFFFFFL) & destIps.lookup(destIp & 0xFFFFFFFFL);
+        }
+        return matches != 0 ? ruleClasses[Long.numberOfTrailingZeros(matches)] : NONE;
+    }
+
+    /**
+     * The rules matching each elementary range of one field
+     */
+    private static final class RangeIndex {
+        //Start of each elementary range, in increasing order from 0
+        private final long[] starts;
+        private final long[] masks;
+
+        /**
+         * @param ranges Inclusive minimum and maximum of each rule's range, rule i at 2i and 2i + 1
+         */
+        RangeIndex(long[] ranges) {
+            TreeSet<Long> boundaries = new TreeSet<>();
+            boundaries.add(0L);
+            for (int i = 0; i < ranges.length; i += 2) {
+                boundaries.add(ranges[i]);
+                boundaries.add(ranges[i + 1] + 1);
+            }
+
+            starts = new long[boundaries.size()];
+            masks = new long[boundaries.size()];
+            int index = 0;
+            for (long start : boundaries) {
+                starts[index] = start;
+                for (int i = 0; i < ranges.length; i += 2) {
+                    if (ranges[i] <= start && start <= ranges[i + 1]) {
+                        masks[index] |= 1L << (i / 2);
+                    }
+                }
+                index++;
+            }
+        }
+
+        long lookup(long value) {
+            int index = Arrays.binarySearch(starts, value);
+            return masks[index >= 0 ? index : -index - 2];
+        }
+    }
+}
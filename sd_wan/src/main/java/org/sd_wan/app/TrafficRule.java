@@ -0,0 +1,142 @@
+package org.sd_wan.app;
+
+import org.onlab.packet.Ip4Prefix;
+
+/**
+ * Matches new flows to a traffic class by their 5-tuple and DSCP. Fields left unset match any value.
+ * Port ranges and the DSCP only apply to the protocols that have them, e.g. ICMP flows have ports 0.
+ */
+public final class TrafficRule {
+
+    public static final int ANY_PROTOCOL = -1;
+    public static final int ANY_DSCP = -1;
+
+    final String trafficClass;
+    final long srcIpMin;
+    final long srcIpMax;
+    final long destIpMin;
+    final long destIpMax;
+    final int srcPortMin;
+    final int srcPortMax;
+    final int destPortMin;
+    final int destPortMax;
+    final int protocol;
+    final int dscp;
+
+    private TrafficRule(Builder builder) {
+        this.trafficClass = builder.trafficClass;
+        this.srcIpMin = builder.srcIpMin;
+        this.srcIpMax = builder.srcIpMax;
+        this.destIpMin = builder.destIpMin;
+        this.destIpMax = builder.destIpMax;
+        this.srcPortMin = builder.srcPortMin;
+        this.srcPortMax = builder.srcPortMax;
+        this.destPortMin = builder.destPortMin;
+        this.destPortMax = builder.destPortMax;
+        this.protocol = builder.protocol;
+        this.dscp = builder.dscp;
+    }
+
+    public String getTrafficClass() {
+        return trafficClass;
+    }
+
+    /**
+     * @param trafficClass The name of the class the rule's flows belong to
+     */
+    public static Builder builder(String trafficClass) {
+        return new Builder(trafficClass);
+    }
+
+    public static final class Builder {
+        private final String trafficClass;
+        private long srcIpMin = 0;
+        private long srcIpMax = 0xFFFFFFFFL;
+        private long destIpMin = 0;
+        private long destIpMax = 0xFFFFFFFFL;
+        private int srcPortMin = 0;
+        private int srcPortMax = 65535;
+        private int destPortMin = 0;
+        private int destPortMax = 65535;
+        private int protocol = ANY_PROTOCOL;
+        private int dscp = ANY_DSCP;
+
+        private Builder(String trafficClass) {
+            if (trafficClass == null) {
+                throw new IllegalArgumentException("Traffic rule without a class");
+            }
+            this.trafficClass = trafficClass;
+        }
+
+        public Builder matchSrcPrefix(Ip4Prefix prefix) {
+            return matchSrcPrefix(prefix.address().toInt(), prefix.prefixLength());
+        }
+
+        public Builder matchSrcPrefix(int address, int prefixLength) {
+            long[] range = range(address, prefixLength);
+            srcIpMin = range[0];
+            srcIpMax = range[1];
+            return this;
+        }
+
+        public Builder matchDestPrefix(Ip4Prefix prefix) {
+            return matchDestPrefix(prefix.address().toInt(), prefix.prefixLength());
+        }
+
+        public Builder matchDestPrefix(int address, int prefixLength) {
+            long[] range = range(address, prefixLength);
+            destIpMin = range[0];
+            destIpMax = range[1];
+            return this;
+        }
+
+        /**
+         * @param protocol IP protocol number, e.g. IPv4.PROTOCOL_UDP
+         */
+        public Builder matchProtocol(byte protocol) {
+            this.protocol = protocol & 0xFF;
+            return this;
+        }
+
+        public Builder matchSrcPorts(int min, int max) {
+            checkPorts(min, max);
+            srcPortMin = min;
+            srcPortMax = max;
+            return this;
+        }
+
+        public Builder matchDestPorts(int min, int max) {
+            checkPorts(min, max);
+            destPortMin = min;
+            destPortMax = max;
+            return this;
+        }
+
+        public Builder matchDscp(int dscp) {
+            if (dscp < 0 || dscp > 63) {
+                throw new IllegalArgumentException("Invalid DSCP: " + dscp);
+            }
+            this.dscp = dscp;
+            return this;
+        }
+
+        public TrafficRule build() {
+            return new TrafficRule(this);
+        }
+
+        private static long[] range(int address, int prefixLength) {
+            if (prefixLength < 0 || prefixLength > 32) {
+                throw new IllegalArgumentException("Invalid prefix length: " + prefixLength);
+            }
+            long hostMask = (1L << (32 - prefixLength)) - 1;
+            long min = (address & 0xFFFFFFFFL) & ~hostMask;
+            return new long[] {min, min | hostMask};
+        }
+
+        private static void checkPorts(int min, int max) {
+            if (min < 0 || max > 65535 || min > max) {
+                throw new IllegalArgumentException("Invalid port range: " + min + "-" + max);
+            }
+        }
+    }
+}
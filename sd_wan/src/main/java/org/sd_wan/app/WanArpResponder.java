@@ -0,0 +1,161 @@
+package org.sd_wan.app;
+
+import org.onlab.packet.ARP;
+import org.onlab.packet.Ethernet;
+import org.onlab.util.ItemNotFoundException;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.behaviour.ExtensionTreatmentResolver;
+import org.onosproject.net.driver.DriverHandler;
+import org.onosproject.net.driver.DriverService;
+import org.onosproject.net.flow.DefaultFlowRule;
+import org.onosproject.net.flow.DefaultTrafficSelector;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleService;
+import org.onosproject.net.flow.instructions.ExtensionTreatment;
+import org.onosproject.net.flow.instructions.ExtensionTreatmentType.ExtensionTreatmentTypes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Answers the ARP requests for the gateways' WAN interface addresses in the switch, for gateways running Open
+ * vSwitch. Each interface gets a rule which turns a request for its address into the reply and sends it back out
+ * of the port it arrived on. The requester's addresses are copied into the reply with the Nicira move actions,
+ * which plain OpenFlow set-field actions cannot do. Gateways whose driver lacks the Nicira extensions keep
+ * sending the requests to the controller's proxy ARP.
+ */
+public class WanArpResponder {
+
+    //Above the rules punting ARP requests to the controller, so the switch answers first
+    private static final int RESPONDER_PRIORITY = 45000;
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final FlowRuleService flowRuleService;
+    private final DriverService driverService;
+    private final ApplicationId appId;
+
+    private boolean enabled = false;
+    //Responder rule of each interface of each gateway
+    private final Map<DeviceId, Map<PortNumber, FlowRule>> installedRules = new HashMap<>();
+
+    public WanArpResponder(FlowRuleService flowRuleService, DriverService driverService, ApplicationId appId) {
+        this.flowRuleService = flowRuleService;
+        this.driverService = driverService;
+        this.appId = appId;
+    }
+
+    /**
+     * Installs or removes the responder rules of every interface of the gateways
+     */
+    public synchronized void setEnabled(boolean enabled, Map<DeviceId, WanGateway> gateways) {
+        if (this.enabled == enabled) {
+            return;
+        }
+        this.enabled = enabled;
+        if (!enabled) {
+            removeAll();
+            return;
+        }
+        for (Map.Entry<DeviceId, WanGateway> gateway : gateways.entrySet()) {
+            for (Map.Entry<PortNumber, WanInterface> entry : gateway.getValue().getInterfaces().entrySet()) {
+                addInterface(gateway.getKey(), entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    public synchronized boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Installs the responder rule of an interface, if enabled and the gateway supports it
+     */
+    public synchronized void addInterface(DeviceId deviceId, PortNumber port, WanInterface intf) {
+        if (!enabled) {
+            return;
+        }
+        FlowRule rule = buildRule(deviceId, intf);
+        if (rule == null) {
+            log.info("Gateway: " + deviceId.toString() + " has no Nicira extensions, ARP for interface " +
+                    intf.getName() + " is answered by the controller");
+            return;
+        }
+        FlowRule oldRule = installedRules.computeIfAbsent(deviceId, id -> new HashMap<>()).put(port, rule);
+        if (oldRule != null && !oldRule.equals(rule)) {
+            flowRuleService.removeFlowRules(oldRule);
+        }
+        flowRuleService.applyFlowRules(rule);
+    }
+
+    public synchronized void removeInterface(DeviceId deviceId, PortNumber port) {
+        Map<PortNumber, FlowRule> rules = installedRules.get(deviceId);
+        FlowRule rule = rules != null ? rules.remove(port) : null;
+        if (rule != null) {
+            flowRuleService.removeFlowRules(rule);
+        }
+    }
+
+    /**
+     * Removes the responder rules of every gateway
+     */
+    public synchronized void removeAll() {
+        for (Map<PortNumber, FlowRule> rules : installedRules.values()) {
+            flowRuleService.removeFlowRules(rules.values().toArray(new FlowRule[0]));
+        }
+        installedRules.clear();
+    }
+
+    /**
+     * @return The rule answering the ARP requests for an interface's address, or null if the gateway's driver
+     *          cannot resolve the Nicira move actions
+     */
+    private FlowRule buildRule(DeviceId deviceId, WanInterface intf) {
+        ExtensionTreatment ethSrcToDst;
+        ExtensionTreatment shaToTha;
+        ExtensionTreatment spaToTpa;
+        try {
+            DriverHandler handler = driverService.createHandler(deviceId);
+            if (!handler.hasBehaviour(ExtensionTreatmentResolver.class)) {
+                return null;
+            }
+            ExtensionTreatmentResolver resolver = handler.behaviour(ExtensionTreatmentResolver.class);
+            ethSrcToDst = resolver.getExtensionInstruction(ExtensionTreatmentTypes.NICIRA_MOV_ETH_SRC_TO_DST.type());
+            shaToTha = resolver.getExtensionInstruction(ExtensionTreatmentTypes.NICIRA_MOV_ARP_SHA_TO_THA.type());
+            spaToTpa = resolver.getExtensionInstruction(ExtensionTreatmentTypes.NICIRA_MOV_ARP_SPA_TO_TPA.type());
+        } catch (ItemNotFoundException | UnsupportedOperationException ex) {
+            return null;
+        }
+        if (ethSrcToDst == null || shaToTha == null || spaToTpa == null) {
+            return null;
+        }
+
+        //The requester's addresses are moved to the target fields before the sender fields are overwritten
+        return DefaultFlowRule.builder()
+                .forDevice(deviceId)
+                .fromApp(appId)
+                .withSelector(DefaultTrafficSelector.builder()
+                        .matchEthType(Ethernet.TYPE_ARP)
+                        .matchArpOp(ARP.OP_REQUEST)
+                        .matchArpTpa(intf.getIp4Address())
+                        .build())
+                .withTreatment(DefaultTrafficTreatment.builder()
+                        .extension(ethSrcToDst, deviceId)
+                        .setEthSrc(intf.getMacAddress())
+                        .setArpOp(ARP.OP_REPLY)
+                        .extension(shaToTha, deviceId)
+                        .extension(spaToTpa, deviceId)
+                        .setArpSha(intf.getMacAddress())
+                        .setArpSpa(intf.getIp4Address())
+                        .setOutput(PortNumber.IN_PORT)
+                        .build())
+                .withPriority(RESPONDER_PRIORITY)
+                .makePermanent()
+                .build();
+    }
+}
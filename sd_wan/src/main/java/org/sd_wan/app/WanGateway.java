@@ -1,72 +1,87 @@
 package org.sd_wan.app;
 
 import org.onlab.packet.*;
+import org.onosproject.core.GroupId;
 import org.onosproject.net.Link;
 import org.onosproject.net.Port;
 import org.onosproject.net.PortNumber;
+import org.onosproject.net.flow.FlowEntry;
 import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.meter.MeterId;
+import org.onosproject.net.packet.OutboundPacket;
 
+import java.nio.ByteBuffer;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * A gateway switch and its WAN interfaces.
+ * The interface configuration, weights and statistics are held in an immutable snapshot which writers replace
+ * as a whole, so the packet path reads a consistent view without locking while listeners and the UI update it.
+ */
 public class WanGateway {
+
+    private static final Comparator<PortNumber> PORT_ORDER = new Comparator<PortNumber>() {
+        @Override
+        public int compare(PortNumber o1, PortNumber o2) {
+            return o1.toString().compareTo(o2.toString());
+        }
+    };
+
     private NatHandler natHandler;
-    private Map<PortNumber, WanInterface> interfaceMap;
-    private int totalUnusedCapacity;
-    private Map<PortNumber, Integer> interfaceWeights;
-    private Map<PortNumber, CurrentPortStatistics> interfaceStatistics;
+    private volatile InterfaceSnapshot snapshot;
+    private volatile PathSelector pathSelector = new WeightedPathSelector();
+    //Interfaces of the traffic classes of the gateway's SLA policy
+    private volatile SlaSteering steering = new SlaSteering(TrafficPolicy.EMPTY);
     private Map<Ip4Address, MacAddress> interfaceMacAddresses;
 
+    //Outcome and duration of the most recent interface failover
+    private volatile NatMigration lastFailover;
+    private volatile long lastFailoverMillis;
+
+
+    //Connections whose NAT rules are being installed, with the first packet of each as it was sent
+    private final PendingFlowTable<OutboundPacket> pendingFlows = new PendingFlowTable<>();
 
     public WanGateway(NatHandler natHandler) {
         this.natHandler = natHandler;
-        this.interfaceMap = new TreeMap<>(new Comparator<PortNumber>() {
-            @Override
-            public int compare(PortNumber o1, PortNumber o2) {
-                return o1.toString().compareTo(o2.toString());
-            }
-        });
-
-        this.interfaceWeights = new TreeMap<>(new Comparator<PortNumber>() {
-            @Override
-            public int compare(PortNumber o1, PortNumber o2) {
-                return o1.toString().compareTo(o2.toString());
-            }
-        });
-
-        this.interfaceStatistics = new TreeMap<>(new Comparator<PortNumber>() {
-            @Override
-            public int compare(PortNumber o1, PortNumber o2) {
-                return o1.toString().compareTo(o2.toString());
-            }
-        });
-
-        this.interfaceMacAddresses = new TreeMap<>(new Comparator<Ip4Address>() {
-            @Override
-            public int compare(Ip4Address o1, Ip4Address o2) {
-                return o1.toString().compareTo(o2.toString());
-            }
-        });
-        this.totalUnusedCapacity = 0;
+        this.snapshot = new InterfaceSnapshot(new TreeMap<>(PORT_ORDER), new TreeMap<>(PORT_ORDER),
+                new TreeMap<>(PORT_ORDER), new TreeMap<>(PORT_ORDER), 0);
+        this.interfaceMacAddresses = new ConcurrentHashMap<>();
     }
 
     public WanInterface getInterface(PortNumber port) {
-        return interfaceMap.get(port);
+        return snapshot.interfaceMap.get(port);
     }
 
     public Map<PortNumber, WanInterface> getInterfaces() {
-        return interfaceMap;
+        return snapshot.interfaceMap;
     }
 
-    public WanInterface removeInterface(PortNumber port) {
-        WanInterface intf = interfaceMap.remove(port);
+    public synchronized WanInterface removeInterface(PortNumber port) {
+        InterfaceSnapshot current = snapshot;
+        WanInterface intf = current.interfaceMap.get(port);
         if (intf != null) {
-            interfaceMacAddresses.remove(intf.getIp4Address());
-            totalUnusedCapacity -= interfaceWeights.get(port);
-            interfaceWeights.remove(port);
+            Map<PortNumber, WanInterface> interfaceMap = copy(current.interfaceMap);
+            Map<PortNumber, Long> interfaceWeights = copy(current.interfaceWeights);
+            Map<PortNumber, CurrentPortStatistics> interfaceStatistics = copy(current.interfaceStatistics);
+            Map<PortNumber, LinkQuality> interfaceQuality = copy(current.interfaceQuality);
+
+            interfaceMap.remove(port);
+            Long weight = interfaceWeights.remove(port);
             interfaceStatistics.remove(port);
+            interfaceQuality.remove(port);
+            snapshot = new InterfaceSnapshot(interfaceMap, interfaceWeights, interfaceStatistics, interfaceQuality,
+                    current.totalUnusedCapacity - (weight != null ? weight : 0));
+
+            updateSelectors(interfaceMap, interfaceWeights, interfaceQuality);
+
+            interfaceMacAddresses.remove(intf.getIp4Address());
             natHandler.removeInterfaceTable(port);
             return intf;
         } else {
@@ -74,63 +89,330 @@ public class WanGateway {
         }
     }
 
-    public void addInterface(PortNumber port, WanInterface wanInterface) {
+    public synchronized void addInterface(PortNumber port, WanInterface wanInterface) {
+        natHandler.addInterfaceTable(port, wanInterface);
+
+        InterfaceSnapshot current = snapshot;
+        Map<PortNumber, WanInterface> interfaceMap = copy(current.interfaceMap);
+        Map<PortNumber, Long> interfaceWeights = copy(current.interfaceWeights);
+        Map<PortNumber, CurrentPortStatistics> interfaceStatistics = copy(current.interfaceStatistics);
+        Map<PortNumber, LinkQuality> interfaceQuality = copy(current.interfaceQuality);
+
         interfaceMap.put(port, wanInterface);
-        interfaceWeights.put(port, 0);
+        Long oldWeight = interfaceWeights.put(port, 0L);
         interfaceStatistics.put(port, new CurrentPortStatistics());
-        natHandler.addInterfaceTable(port, wanInterface);
+        interfaceQuality.put(port, LinkQuality.UNKNOWN);
+        snapshot = new InterfaceSnapshot(interfaceMap, interfaceWeights, interfaceStatistics, interfaceQuality,
+                current.totalUnusedCapacity - (oldWeight != null ? oldWeight : 0));
+        updateSelectors(interfaceMap, interfaceWeights, interfaceQuality);
+    }
+
+    public FlowRule[] makeNatRules (PortNumber ingressPortNumber, Ethernet pkt, ByteBuffer frame, byte ipProtocol,
+                                    PortNumber interfacePort, int trafficClass) {
+        return natHandler.makeNATRules(ingressPortNumber, pkt, frame, ipProtocol, interfacePort, trafficClass);
+    }
+
+    /**
+     * Sets the meters of an interface by traffic class, see NatHandler.setInterfaceMeters()
+     */
+    public void setInterfaceMeters(PortNumber port, MeterId[] meters) {
+        natHandler.setInterfaceMeters(port, meters);
+    }
+
+    public PendingFlowTable<OutboundPacket> getPendingFlows() {
+        return pendingFlows;
+    }
+
+    public int getNatSessionCount(PortNumber port) {
+        return natHandler.getNumberFlows(port);
+    }
+
+    /**
+     * Reports the number of NAT sessions and the heap used to store them, used to size the controller's heap
+     */
+    public String getNatMemoryReport() {
+        int sessionCount = natHandler.getNumberFlows();
+        long footprint = natHandler.getMemoryFootprint();
+        return "NAT sessions: " + sessionCount + ", memory: " + (footprint / 1024) + " KB" +
+                (sessionCount > 0 ? ", bytes/session: " + (footprint / sessionCount) : "");
+    }
+
+    public long getNatMemoryFootprint() {
+        return natHandler.getMemoryFootprint();
+    }
+
+    public void setNatPortRange(int minPort, int maxPort) {
+        natHandler.setPortRange(minPort, maxPort);
+    }
+
+    /**
+     * Sends the outgoing rules of new sessions to a group of the interfaces, or to a single interface if null
+     */
+    public void setInterfaceGroup(GroupId group) {
+        natHandler.setInterfaceGroup(group);
+    }
+
+    /**
+     * Switches between a pair of rules per session and a pair of rules per host IP/port mapping
+     */
+    public void setAggregateRules(boolean aggregateRules) {
+        natHandler.setAggregateRules(aggregateRules);
+    }
+
+    /**
+     * Gives every host of the local prefix a fixed block of translated ports on each interface, 0 to turn off
+     */
+    public void setPortBlocks(IpPrefix localPrefix, int blockSize) {
+        natHandler.setPortBlocks(localPrefix, blockSize);
+    }
+
+    /**
+     * @return The host owning a translated port in port-block mode, or null
+     */
+    public Ip4Address getPortBlockHost(int translatedPort) {
+        return natHandler.getPortBlockHost(translatedPort);
+    }
+
+    public GroupId getInterfaceGroup() {
+        return natHandler.getInterfaceGroup();
+    }
+
+    public Map<PortNumber, Long> getInterfaceWeights() {
+        return snapshot.interfaceWeights;
+    }
+
+    public long getTotalUnusedCapacity() {
+        return snapshot.totalUnusedCapacity;
+    }
+
+    public boolean handleICMPOut(IPv4 ipPacketIn, ByteBuffer frame, PortNumber outgoingPortNumber) {
+        return natHandler.handleICMPOut(ipPacketIn, frame, outgoingPortNumber);
     }
 
-    public FlowRule[] makeNatRules (PortNumber ingressPortNumber, Ethernet pkt, byte ipProtocol, PortNumber interfacePort) {
-        return natHandler.makeNATRules(ingressPortNumber, pkt, ipProtocol, interfacePort);
+    public Ip4Address handleICMPIn(IPv4 ipPacketIn, ByteBuffer frame, PortNumber ingressPortNumber) {
+        return natHandler.handleICMPIn(ipPacketIn, frame, ingressPortNumber);
     }
 
-    public Map<PortNumber, Integer> getInterfaceWeights() {
-        return interfaceWeights;
+    public void recordFlowStats(Iterable<FlowEntry> flowEntries) {
+        natHandler.recordFlowStats(flowEntries);
     }
 
-    public int getTotalUnusedCapacity() {
-        return totalUnusedCapacity;
+    /**
+     * Expires the NAT sessions not seen in the flow statistics within the session timeout
+     * @param expiredRules Filled with the rules of the expired sessions, to remove from the gateway
+     * @return The number of sessions expired
+     */
+    public int expireSessions(long nowMillis, List<FlowRule> expiredRules) {
+        return natHandler.expireSessions(nowMillis, expiredRules);
     }
 
-    public IPv4 handleICMPOut(IPv4 ipPacketIn, PortNumber outgoingPortNumber) {
-        return natHandler.handleICMPOut(ipPacketIn.getDestinationAddress(),
-                interfaceMap.get(outgoingPortNumber).getIp4Address().toInt(), ipPacketIn,
-                outgoingPortNumber, ipPacketIn.getSourceAddress());
+    public void setSessionTimeout(long sessionTimeoutMillis) {
+        natHandler.setSessionTimeout(sessionTimeoutMillis);
     }
 
-    public IPv4 handleICMPIn(IPv4 ipPacketIn, PortNumber ingressPortNumber) {
-        return natHandler.handleICMPIn(ipPacketIn.getSourceAddress(), ipPacketIn, ingressPortNumber);
+    /**
+     * Removes the ICMP echo translations which have timed out
+     */
+    public int expireIcmpSessions() {
+        return natHandler.expireIcmpSessions();
     }
 
     public void removeRule(FlowRule flowRule) {
         natHandler.removeRule(flowRule);
     }
 
-    public void updateInterfaceStatistics(PortNumber port, CurrentPortStatistics stats) {
-        totalUnusedCapacity -= interfaceWeights.get(port);
+    /**
+     * Rolls back the session of NAT rules which failed to install
+     */
+    public void abortNatRules(FlowRule[] rules) {
+        natHandler.abortNATRules(rules);
+    }
 
-        interfaceStatistics.replace(port, stats);
-        Integer newWeight = interfaceMap.get(port).getBandwidth() * 1000000 - stats.bitsPerSecond;
-        if (newWeight < 0) {
-            newWeight = 0;
+    public synchronized void updateInterfaceStatistics(PortNumber port, CurrentPortStatistics stats) {
+        InterfaceSnapshot current = snapshot;
+        WanInterface intf = current.interfaceMap.get(port);
+        if (intf == null) {
+            //Interface was removed while its statistics were being gathered
+            return;
         }
-        interfaceWeights.replace(port,  newWeight);
-        totalUnusedCapacity += newWeight;
+
+        Map<PortNumber, Long> interfaceWeights = copy(current.interfaceWeights);
+        Map<PortNumber, CurrentPortStatistics> interfaceStatistics = copy(current.interfaceStatistics);
+
+        //Traffic transmitted by the interface goes up to the WAN, new outbound flows are weighted by the
+        //headroom left on the uplink
+        long uplinkCapacity = intf.getUplinkBandwidth() * 1000000L;
+        long downlinkCapacity = intf.getDownlinkBandwidth() * 1000000L;
+        stats.uplinkUtilisation = uplinkCapacity > 0 ? (double) stats.txBitsPerSecond / uplinkCapacity : 0;
+        stats.downlinkUtilisation = downlinkCapacity > 0 ? (double) stats.rxBitsPerSecond / downlinkCapacity : 0;
+        interfaceStatistics.put(port, stats);
+        long newWeight = Math.max(uplinkCapacity - stats.txBitsPerSecond, 0);
+        Long oldWeight = interfaceWeights.put(port, newWeight);
+        snapshot = new InterfaceSnapshot(current.interfaceMap, interfaceWeights, interfaceStatistics,
+                current.interfaceQuality,
+                current.totalUnusedCapacity - (oldWeight != null ? oldWeight : 0) + newWeight);
+        updateSelectors(current.interfaceMap, interfaceWeights, current.interfaceQuality);
     }
 
     public Map<PortNumber, CurrentPortStatistics> getInterfaceStatistics() {
-        return interfaceStatistics;
+        return snapshot.interfaceStatistics;
     }
 
-    public void updateInterfaceState(PortNumber port, boolean state) {
+    /**
+     * Records the latest round trip time, jitter and loss measured on an interface's path
+     */
+    public synchronized void updateInterfaceQuality(PortNumber port, LinkQuality quality) {
+        InterfaceSnapshot current = snapshot;
+        if (!current.interfaceMap.containsKey(port)) {
+            return;
+        }
+
+        Map<PortNumber, LinkQuality> interfaceQuality = copy(current.interfaceQuality);
+        interfaceQuality.put(port, quality);
+        snapshot = new InterfaceSnapshot(current.interfaceMap, current.interfaceWeights, current.interfaceStatistics,
+                interfaceQuality, current.totalUnusedCapacity);
+        updateSelectors(current.interfaceMap, current.interfaceWeights, interfaceQuality);
+    }
 
-        WanInterface intf = interfaceMap.get(port);
-        intf.setState(state);
-        interfaceMap.replace(port, intf);
+    public Map<PortNumber, LinkQuality> getInterfaceQuality() {
+        return snapshot.interfaceQuality;
+    }
+
+    /**
+     * @return true if the state of the interface changed
+     */
+    public synchronized boolean updateInterfaceState(PortNumber port, boolean state) {
+        InterfaceSnapshot current = snapshot;
+        WanInterface intf = current.interfaceMap.get(port);
+        if (intf != null && intf.getState() != state) {
+            intf.setState(state);
+            updateSelectors(current.interfaceMap, current.interfaceWeights, current.interfaceQuality);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Moves the NAT sessions of an interface which has gone down to the interfaces chosen by the path selector
+     */
+    public NatMigration migrateInterface(PortNumber port) {
+        return natHandler.migrateInterface(port, pathSelector, steering.getPolicy());
+    }
+
+    public void recordFailover(NatMigration migration, long millis) {
+        lastFailover = migration;
+        lastFailoverMillis = millis;
+    }
+
+    /**
+     * Reports the most recent failover and how long it took for its rules to be installed
+     */
+    public String getFailoverReport() {
+        NatMigration migration = lastFailover;
+        return migration == null ? "No failovers" :
+                "Last failover: " + migration + ", time: " + lastFailoverMillis + " ms";
+    }
+
+    /**
+     * Chooses the interface for a new flow
+     * @param flowHash Hash of the flow's 5-tuple, from PathSelector.flowHash()
+     * @return The port of the interface, or null if no interface is up
+     */
+    public PortNumber selectOutPort(long flowHash) {
+        return pathSelector.select(flowHash);
+    }
+
+    /**
+     * Chooses the interface for a new flow of a traffic class, falling back to the path selector if the flow has
+     * no class or no interface meets its class's thresholds
+     * @param trafficClass The flow's class from classify()
+     */
+    public PortNumber selectOutPort(long flowHash, int trafficClass) {
+        PortNumber port = steering.select(trafficClass);
+        return port != null ? port : pathSelector.select(flowHash);
+    }
+
+    /**
+     * Classifies a new flow by the gateway's SLA policy
+     * @return The index of the flow's traffic class, or TrafficPolicy.NONE
+     */
+    public int classify(int srcIp, int srcPort, int destIp, int destPort, byte protocol, int dscp) {
+        return steering.getPolicy().classify(srcIp, srcPort, destIp, destPort, protocol, dscp);
+    }
+
+    /**
+     * Replaces the traffic classes and rules used to steer new flows
+     */
+    public synchronized void setTrafficPolicy(TrafficPolicy policy) {
+        InterfaceSnapshot current = snapshot;
+        SlaSteering newSteering = new SlaSteering(policy);
+        newSteering.update(current.interfaceMap, current.interfaceWeights, current.interfaceQuality);
+        steering = newSteering;
+    }
+
+    /**
+     * @return The interface each traffic class is currently steered to, null where none meets its thresholds
+     */
+    public Map<String, PortNumber> getClassInterfaces() {
+        SlaSteering current = steering;
+        List<TrafficClass> classes = current.getPolicy().getClasses();
+        Map<String, PortNumber> classInterfaces = new LinkedHashMap<>();
+        for (int i = 0; i < classes.size(); i++) {
+            classInterfaces.put(classes.get(i).getName(), current.select(i));
+        }
+        return classInterfaces;
+    }
+
+    /**
+     * Replaces the algorithm used to choose interfaces for new flows
+     */
+    public synchronized void setPathSelector(PathSelector pathSelector) {
+        InterfaceSnapshot current = snapshot;
+        pathSelector.update(current.interfaceMap, current.interfaceWeights, current.interfaceQuality);
+        this.pathSelector = pathSelector;
+    }
+
+    public PathSelector getPathSelector() {
+        return pathSelector;
     }
 
     public Map<Ip4Address, MacAddress> getInterfaceMacAddresses() {
         return interfaceMacAddresses;
     }
+
+    /**
+     * Remakes the path selector's and SLA steering's choices, called with the gateway's lock held
+     */
+    private void updateSelectors(Map<PortNumber, WanInterface> interfaceMap, Map<PortNumber, Long> interfaceWeights,
+                                 Map<PortNumber, LinkQuality> interfaceQuality) {
+        pathSelector.update(interfaceMap, interfaceWeights, interfaceQuality);
+        steering.update(interfaceMap, interfaceWeights, interfaceQuality);
+    }
+
+    private static <V> Map<PortNumber, V> copy(Map<PortNumber, V> map) {
+        Map<PortNumber, V> copy = new TreeMap<>(PORT_ORDER);
+        copy.putAll(map);
+        return copy;
+    }
+
+    /**
+     * Immutable view of the gateway's interfaces, their weights and their latest statistics and path quality
+     */
+    private static final class InterfaceSnapshot {
+        final Map<PortNumber, WanInterface> interfaceMap;
+        final Map<PortNumber, Long> interfaceWeights;
+        final Map<PortNumber, CurrentPortStatistics> interfaceStatistics;
+        final Map<PortNumber, LinkQuality> interfaceQuality;
+        final long totalUnusedCapacity;
+
+        InterfaceSnapshot(Map<PortNumber, WanInterface> interfaceMap, Map<PortNumber, Long> interfaceWeights,
+                          Map<PortNumber, CurrentPortStatistics> interfaceStatistics,
+                          Map<PortNumber, LinkQuality> interfaceQuality, long totalUnusedCapacity) {
+            this.interfaceMap = Collections.unmodifiableMap(interfaceMap);
+            this.interfaceWeights = Collections.unmodifiableMap(interfaceWeights);
+            this.interfaceStatistics = Collections.unmodifiableMap(interfaceStatistics);
+            this.interfaceQuality = Collections.unmodifiableMap(interfaceQuality);
+            this.totalUnusedCapacity = totalUnusedCapacity;
+        }
+    }
 }
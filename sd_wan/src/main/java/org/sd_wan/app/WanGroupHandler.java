@@ -0,0 +1,237 @@
+package org.sd_wan.app;
+
+import org.onosproject.core.ApplicationId;
+import org.onosproject.core.GroupId;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.TrafficTreatment;
+import org.onosproject.net.group.DefaultGroupBucket;
+import org.onosproject.net.group.DefaultGroupDescription;
+import org.onosproject.net.group.DefaultGroupKey;
+import org.onosproject.net.group.GroupBucket;
+import org.onosproject.net.group.GroupBuckets;
+import org.onosproject.net.group.GroupDescription;
+import org.onosproject.net.group.GroupKey;
+import org.onosproject.net.group.GroupService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps an OpenFlow group of each gateway's WAN interfaces, which the outgoing NAT rules of new sessions point
+ * at instead of a single interface. Each bucket rewrites the source address to its interface and outputs on it.
+ * SELECT groups spread flows over the interfaces in proportion to their weights, FAILOVER groups send traffic to
+ * the highest weighted interface whose port is live, so the switch moves traffic off a failed link by itself.
+ *
+ * Changing the buckets of a group makes the switch rehash the flows already spread over it, moving established
+ * sessions to another interface and source address. The buckets are therefore rewritten at once only when an
+ * interface is added or removed or, for SELECT groups, goes up or down. Weights only follow the interfaces' load
+ * when it has shifted a long way and the buckets have been left alone for a while.
+ */
+public class WanGroupHandler {
+
+    //Bucket weights are scaled so that the interface with the most unused capacity has this weight
+    public static final int MAX_BUCKET_WEIGHT = 100;
+
+    //Change in a SELECT bucket's weight, out of MAX_BUCKET_WEIGHT, which makes the weights worth rewriting
+    static final int WEIGHT_HYSTERESIS = MAX_BUCKET_WEIGHT / 2;
+    //Time the buckets are left alone before their weights are rewritten
+    static final long MIN_REWEIGHT_INTERVAL_MILLIS = 10 * 60 * 1000;
+
+    private static final int SELECT_GROUP_ID = 0x5d000001;
+    private static final int FAILOVER_GROUP_ID = 0x5d000002;
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final GroupService groupService;
+    private final ApplicationId appId;
+
+    //Type of each gateway's group and the buckets last installed in it
+    private final Map<DeviceId, GroupDescription.Type> groupTypes = new HashMap<>();
+    private final Map<DeviceId, InstalledBuckets> installedBuckets = new HashMap<>();
+
+    public WanGroupHandler(GroupService groupService, ApplicationId appId) {
+        this.groupService = groupService;
+        this.appId = appId;
+    }
+
+    /**
+     * Installs or removes the interface group of a gateway. Sessions already using a removed group end with it.
+     * @param type SELECT or FAILOVER, or null to send each new session out of a single interface
+     */
+    public synchronized void setGroupType(DeviceId deviceId, WanGateway gateway, GroupDescription.Type type) {
+        if (type != null && type != GroupDescription.Type.SELECT && type != GroupDescription.Type.FAILOVER) {
+            throw new IllegalArgumentException("Unsupported interface group type: " + type);
+        }
+        GroupDescription.Type oldType = groupTypes.get(deviceId);
+        if (oldType == type) {
+            return;
+        }
+
+        //New sessions stop using the old group before it is removed
+        gateway.setInterfaceGroup(null);
+        if (oldType != null) {
+            groupService.removeGroup(deviceId, groupKey(deviceId, oldType), appId);
+            groupTypes.remove(deviceId);
+            installedBuckets.remove(deviceId);
+        }
+
+        if (type != null) {
+            InstalledBuckets buckets = new InstalledBuckets(gateway, type, System.currentTimeMillis());
+            groupService.addGroup(new DefaultGroupDescription(deviceId, type,
+                    new GroupBuckets(buildBuckets(gateway, buckets)), groupKey(deviceId, type), groupId(type), appId));
+            groupTypes.put(deviceId, type);
+            installedBuckets.put(deviceId, buckets);
+            gateway.setInterfaceGroup(GroupId.valueOf(groupId(type)));
+        }
+        log.info("Gateway: " + deviceId.toString() + " interface group set to " + (type != null ? type : "none"));
+    }
+
+    public synchronized GroupDescription.Type getGroupType(DeviceId deviceId) {
+        return groupTypes.get(deviceId);
+    }
+
+    /**
+     * Updates the buckets of a gateway's group after its interfaces, their state or their weights have changed.
+     * The group is only modified when the interfaces in it have changed or, for a SELECT group, the weights have
+     * drifted past the hysteresis.
+     */
+    public void refresh(DeviceId deviceId, WanGateway gateway) {
+        refresh(deviceId, gateway, System.currentTimeMillis());
+    }
+
+    synchronized void refresh(DeviceId deviceId, WanGateway gateway, long nowMillis) {
+        GroupDescription.Type type = groupTypes.get(deviceId);
+        if (type == null) {
+            return;
+        }
+
+        InstalledBuckets installed = installedBuckets.get(deviceId);
+        InstalledBuckets buckets = new InstalledBuckets(gateway, type, nowMillis);
+        if (installed.hasMembers(buckets)) {
+            if (type == GroupDescription.Type.FAILOVER ||
+                    nowMillis - installed.installedMillis < MIN_REWEIGHT_INTERVAL_MILLIS ||
+                    installed.maxWeightChange(buckets) < WEIGHT_HYSTERESIS) {
+                return;
+            }
+        }
+
+        GroupKey key = groupKey(deviceId, type);
+        groupService.setBucketsForGroup(deviceId, key, new GroupBuckets(buildBuckets(gateway, buckets)), key, appId);
+        installedBuckets.put(deviceId, buckets);
+    }
+
+    /**
+     * Removes the groups of every gateway
+     */
+    public synchronized void removeAll() {
+        for (Map.Entry<DeviceId, GroupDescription.Type> entry : groupTypes.entrySet()) {
+            groupService.removeGroup(entry.getKey(), groupKey(entry.getKey(), entry.getValue()), appId);
+        }
+        groupTypes.clear();
+        installedBuckets.clear();
+    }
+
+    private List<GroupBucket> buildBuckets(WanGateway gateway, InstalledBuckets installed) {
+        List<GroupBucket> buckets = new ArrayList<>();
+        for (int i = 0; i < installed.ports.size(); i++) {
+            PortNumber port = installed.ports.get(i);
+            WanInterface intf = gateway.getInterface(port);
+            TrafficTreatment treatment = DefaultTrafficTreatment.builder()
+                    .setEthSrc(intf.getMacAddress())
+                    .setIpSrc(intf.getIp4Address())
+                    .setOutput(port)
+                    .build();
+            if (installed.type == GroupDescription.Type.SELECT) {
+                buckets.add(DefaultGroupBucket.createSelectGroupBucket(treatment, (short) installed.weights[i]));
+            } else {
+                buckets.add(DefaultGroupBucket.createFailoverGroupBucket(treatment, port, null));
+            }
+        }
+        return buckets;
+    }
+
+    /**
+     * SELECT groups hold the interfaces which are up, FAILOVER groups hold every interface by descending weight
+     * and leave it to the switch to skip those whose port is down
+     */
+    private List<PortNumber> bucketPorts(WanGateway gateway, GroupDescription.Type type) {
+        List<PortNumber> ports = new ArrayList<>();
+        for (Map.Entry<PortNumber, WanInterface> entry : gateway.getInterfaces().entrySet()) {
+            if (type == GroupDescription.Type.FAILOVER || entry.getValue().getState()) {
+                ports.add(entry.getKey());
+            }
+        }
+        if (type == GroupDescription.Type.FAILOVER) {
+            Map<PortNumber, Long> weights = gateway.getInterfaceWeights();
+            ports.sort((a, b) -> Long.compare(weight(weights, b), weight(weights, a)));
+        }
+        return ports;
+    }
+
+    private int bucketWeight(WanGateway gateway, PortNumber port) {
+        Map<PortNumber, Long> weights = gateway.getInterfaceWeights();
+        long maxWeight = 0;
+        for (PortNumber other : weights.keySet()) {
+            maxWeight = Math.max(maxWeight, weight(weights, other));
+        }
+        if (maxWeight == 0) {
+            return 1;
+        }
+        return (int) Math.max(1, weight(weights, port) * MAX_BUCKET_WEIGHT / maxWeight);
+    }
+
+    private static long weight(Map<PortNumber, Long> weights, PortNumber port) {
+        Long weight = weights.get(port);
+        return weight != null ? weight : 0;
+    }
+
+    private static int groupId(GroupDescription.Type type) {
+        return type == GroupDescription.Type.SELECT ? SELECT_GROUP_ID : FAILOVER_GROUP_ID;
+    }
+
+    private static GroupKey groupKey(DeviceId deviceId, GroupDescription.Type type) {
+        return new DefaultGroupKey(("sdwan-" + type + "-" + deviceId).getBytes());
+    }
+
+    /**
+     * The interfaces and weights of the buckets installed in a group, and when they were installed
+     */
+    private final class InstalledBuckets {
+        final GroupDescription.Type type;
+        final List<PortNumber> ports;
+        final int[] weights;
+        final long installedMillis;
+
+        InstalledBuckets(WanGateway gateway, GroupDescription.Type type, long installedMillis) {
+            this.type = type;
+            this.ports = bucketPorts(gateway, type);
+            this.weights = new int[ports.size()];
+            for (int i = 0; i < weights.length; i++) {
+                weights[i] = bucketWeight(gateway, ports.get(i));
+            }
+            this.installedMillis = installedMillis;
+        }
+
+        /**
+         * @return true if the buckets are of the same interfaces, in whatever order
+         */
+        boolean hasMembers(InstalledBuckets other) {
+            return ports.size() == other.ports.size() && ports.containsAll(other.ports);
+        }
+
+        int maxWeightChange(InstalledBuckets other) {
+            int change = 0;
+            for (int i = 0; i < ports.size(); i++) {
+                int index = other.ports.indexOf(ports.get(i));
+                change = Math.max(change, Math.abs(weights[i] - other.weights[index]));
+            }
+            return change;
+        }
+    }
+}
@@ -7,16 +7,26 @@ public class WanInterface {
     private String name;
     private MacAddress macAddress;
     private Ip4Address ip4Address;
-    private int bandwidth;
-    private boolean state;
+    //Capacity in Mbps towards the WAN (uplink) and from it (downlink), which differ on DSL and LTE links
+    private int uplinkBandwidth;
+    private int downlinkBandwidth;
+    //Written by the device listener and read on the packet path
+    private volatile boolean state;
+    //Address of the router the interface reaches the WAN through, resolved by ARP for the link probes. May be null
+    private volatile Ip4Address nextHop;
 
 
     public WanInterface(String name, MacAddress mac, Ip4Address ip, int bandwidth) {
+        this(name, mac, ip, bandwidth, bandwidth);
+    }
+
+    public WanInterface(String name, MacAddress mac, Ip4Address ip, int uplinkBandwidth, int downlinkBandwidth) {
         this.name = name;
         this.macAddress = mac;
         this.ip4Address = ip;
         this.state = false;
-        this.bandwidth = bandwidth;
+        this.uplinkBandwidth = uplinkBandwidth;
+        this.downlinkBandwidth = downlinkBandwidth;
     }
 
     public MacAddress getMacAddress() {
@@ -35,12 +45,20 @@ public class WanInterface {
         this.ip4Address = ip4Address;
     }
 
-    public int getBandwidth() {
-        return bandwidth;
+    public int getUplinkBandwidth() {
+        return uplinkBandwidth;
+    }
+
+    public void setUplinkBandwidth(int uplinkBandwidth) {
+        this.uplinkBandwidth = uplinkBandwidth;
+    }
+
+    public int getDownlinkBandwidth() {
+        return downlinkBandwidth;
     }
 
-    public void setBandwidth(int bandwidth) {
-        this.bandwidth = bandwidth;
+    public void setDownlinkBandwidth(int downlinkBandwidth) {
+        this.downlinkBandwidth = downlinkBandwidth;
     }
 
     public boolean getState() {
@@ -51,6 +69,14 @@ public class WanInterface {
         this.state = state;
     }
 
+    public Ip4Address getNextHop() {
+        return nextHop;
+    }
+
+    public void setNextHop(Ip4Address nextHop) {
+        this.nextHop = nextHop;
+    }
+
     public String getName() {
         return name;
     }
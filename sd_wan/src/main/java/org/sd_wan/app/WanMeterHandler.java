@@ -0,0 +1,241 @@
+package org.sd_wan.app;
+
+import org.onosproject.core.ApplicationId;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.flow.FlowEntry;
+import org.onosproject.net.flow.instructions.Instructions;
+import org.onosproject.net.meter.Band;
+import org.onosproject.net.meter.DefaultBand;
+import org.onosproject.net.meter.DefaultMeterRequest;
+import org.onosproject.net.meter.Meter;
+import org.onosproject.net.meter.MeterId;
+import org.onosproject.net.meter.MeterRequest;
+import org.onosproject.net.meter.MeterService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps a meter on each gateway interface for every traffic class whose rate is limited, which the outgoing NAT
+ * rules of the class's new sessions on the interface point at. Limits are set as a share of the interface's
+ * uplink bandwidth, so bulk classes can be held below the capacity the interface weights assume and leave room
+ * for latency sensitive traffic. Sessions using the interface group are not metered, as their interface is only
+ * chosen by the switch.
+ *
+ * Deleting a meter makes the switch remove the flow rules using it, so when a class's rate changes or its limit
+ * is lifted, new sessions get the new meter while the old one is retired: it is kept until none of the app's
+ * flow entries use it any more, and only then withdrawn. Until its sessions end they are limited at the old rate.
+ * The meters of a removed interface are withdrawn at once, as its sessions went with it.
+ */
+public class WanMeterHandler {
+
+    //Key of the flows which match no traffic class
+    private static final String UNCLASSIFIED = "";
+
+    //Time a retired meter is kept even if unused, for rules built with it which were still being batched
+    static final long RETIRE_GRACE_MILLIS = 10000;
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final MeterService meterService;
+    private final ApplicationId appId;
+
+    //Share of the uplink bandwidth each class is limited to
+    private final Map<String, Double> uplinkShares = new HashMap<>();
+    //Meters installed on each gateway interface by class
+    private final Map<DeviceId, Map<PortNumber, Map<String, InstalledMeter>>> installedMeters = new HashMap<>();
+    //Meters of each gateway which new sessions no longer use, kept until the sessions using them have ended
+    private final Map<DeviceId, List<RetiredMeter>> retiredMeters = new HashMap<>();
+
+    public WanMeterHandler(MeterService meterService, ApplicationId appId) {
+        this.meterService = meterService;
+        this.appId = appId;
+    }
+
+    /**
+     * Sets the rate limit of a traffic class on every interface, taking effect once the gateways are refreshed
+     * @param trafficClass The name of the class, or null for the flows which match no class
+     * @param uplinkShare The share of each interface's uplink bandwidth the class may use, or 0 for no limit
+     */
+    public synchronized void setRateLimit(String trafficClass, double uplinkShare) {
+        if (uplinkShare < 0 || uplinkShare > 1) {
+            throw new IllegalArgumentException("Invalid uplink share: " + uplinkShare);
+        }
+        String key = trafficClass != null ? trafficClass : UNCLASSIFIED;
+        if (uplinkShare == 0) {
+            uplinkShares.remove(key);
+        } else {
+            uplinkShares.put(key, uplinkShare);
+        }
+    }
+
+    /**
+     * Installs, replaces and removes the meters of a gateway after its interfaces, the traffic classes or the
+     * rate limits have changed, and hands the gateway the meters of each interface
+     */
+    public void refresh(DeviceId deviceId, WanGateway gateway, TrafficPolicy policy) {
+        refresh(deviceId, gateway, policy, System.currentTimeMillis());
+    }
+
+    synchronized void refresh(DeviceId deviceId, WanGateway gateway, TrafficPolicy policy, long nowMillis) {
+        Map<PortNumber, Map<String, InstalledMeter>> gatewayMeters =
+                installedMeters.computeIfAbsent(deviceId, id -> new HashMap<>());
+
+        //Interfaces which have been removed
+        Iterator<Map.Entry<PortNumber, Map<String, InstalledMeter>>> removed = gatewayMeters.entrySet().iterator();
+        while (removed.hasNext()) {
+            Map.Entry<PortNumber, Map<String, InstalledMeter>> entry = removed.next();
+            if (gateway.getInterface(entry.getKey()) == null) {
+                withdrawAll(entry.getValue());
+                removed.remove();
+            }
+        }
+
+        List<TrafficClass> classes = policy.getClasses();
+        for (Map.Entry<PortNumber, WanInterface> entry : gateway.getInterfaces().entrySet()) {
+            long uplinkKbps = entry.getValue().getUplinkBandwidth() * 1000L;
+            Map<String, InstalledMeter> oldMeters = gatewayMeters.getOrDefault(entry.getKey(), new HashMap<>());
+            Map<String, InstalledMeter> newMeters = new HashMap<>();
+
+            MeterId[] meterIds = new MeterId[classes.size() + 1];
+            for (int i = 0; i < meterIds.length; i++) {
+                String key = i == 0 ? UNCLASSIFIED : classes.get(i - 1).getName();
+                Double share = uplinkShares.get(key);
+                long rateKbps = share != null ? Math.max(Math.round(share * uplinkKbps), 1) : 0;
+
+                InstalledMeter meter = oldMeters.remove(key);
+                if (meter != null && meter.rateKbps != rateKbps) {
+                    retire(deviceId, meter, nowMillis);
+                    meter = null;
+                }
+                if (meter == null && rateKbps > 0) {
+                    meter = submit(deviceId, rateKbps);
+                    log.info("Gateway: " + deviceId.toString() + " interface " + entry.getKey() + " class " +
+                            (i == 0 ? "none" : key) + " limited to " + rateKbps + " kb/s");
+                }
+                if (meter != null) {
+                    newMeters.put(key, meter);
+                    meterIds[i] = meter.id;
+                }
+            }
+
+            //Classes which are no longer in the policy or limited
+            for (InstalledMeter meter : oldMeters.values()) {
+                retire(deviceId, meter, nowMillis);
+            }
+            gatewayMeters.put(entry.getKey(), newMeters);
+            gateway.setInterfaceMeters(entry.getKey(), meterIds);
+        }
+    }
+
+    /**
+     * Withdraws the retired meters of a gateway which none of its flow entries use any more
+     * @param flowEntries The app's flow entries installed on the gateway
+     */
+    public synchronized void releaseRetired(DeviceId deviceId, Iterable<FlowEntry> flowEntries, long nowMillis) {
+        List<RetiredMeter> retired = retiredMeters.get(deviceId);
+        if (retired == null) {
+            return;
+        }
+
+        Set<MeterId> metersInUse = new HashSet<>();
+        for (FlowEntry flowEntry : flowEntries) {
+            Instructions.MeterInstruction meter = flowEntry.treatment().metered();
+            if (meter != null) {
+                metersInUse.add(meter.meterId());
+            }
+        }
+
+        Iterator<RetiredMeter> drained = retired.iterator();
+        while (drained.hasNext()) {
+            RetiredMeter meter = drained.next();
+            if (nowMillis - meter.retiredMillis >= RETIRE_GRACE_MILLIS && !metersInUse.contains(meter.meter.id)) {
+                meterService.withdraw(meter.meter.request, meter.meter.id);
+                drained.remove();
+            }
+        }
+        if (retired.isEmpty()) {
+            retiredMeters.remove(deviceId);
+        }
+    }
+
+    /**
+     * Removes the meters of every gateway, including those still used by sessions
+     */
+    public synchronized void removeAll() {
+        for (Map<PortNumber, Map<String, InstalledMeter>> gatewayMeters : installedMeters.values()) {
+            for (Map<String, InstalledMeter> meters : gatewayMeters.values()) {
+                withdrawAll(meters);
+            }
+        }
+        installedMeters.clear();
+        for (List<RetiredMeter> retired : retiredMeters.values()) {
+            for (RetiredMeter meter : retired) {
+                meterService.withdraw(meter.meter.request, meter.meter.id);
+            }
+        }
+        retiredMeters.clear();
+    }
+
+    private void retire(DeviceId deviceId, InstalledMeter meter, long nowMillis) {
+        retiredMeters.computeIfAbsent(deviceId, id -> new ArrayList<>()).add(new RetiredMeter(meter, nowMillis));
+    }
+
+    private InstalledMeter submit(DeviceId deviceId, long rateKbps) {
+        Band band = DefaultBand.builder()
+                .ofType(Band.Type.DROP)
+                .withRate(rateKbps)
+                .build();
+        MeterRequest request = DefaultMeterRequest.builder()
+                .forDevice(deviceId)
+                .fromApp(appId)
+                .withUnit(Meter.Unit.KB_PER_SEC)
+                .withBands(Collections.singletonList(band))
+                .add();
+        Meter meter = meterService.submit(request);
+        return new InstalledMeter(meter.id(), request, rateKbps);
+    }
+
+    private void withdrawAll(Map<String, InstalledMeter> meters) {
+        for (InstalledMeter meter : meters.values()) {
+            meterService.withdraw(meter.request, meter.id);
+        }
+    }
+
+    /**
+     * A meter and the request it was installed with, which is needed to withdraw it
+     */
+    private static final class InstalledMeter {
+        final MeterId id;
+        final MeterRequest request;
+        final long rateKbps;
+
+        InstalledMeter(MeterId id, MeterRequest request, long rateKbps) {
+            this.id = id;
+            this.request = request;
+            this.rateKbps = rateKbps;
+        }
+    }
+
+    /**
+     * A meter new sessions no longer use and the time it was retired
+     */
+    private static final class RetiredMeter {
+        final InstalledMeter meter;
+        final long retiredMillis;
+
+        RetiredMeter(InstalledMeter meter, long retiredMillis) {
+            this.meter = meter;
+            this.retiredMillis = retiredMillis;
+        }
+    }
+}
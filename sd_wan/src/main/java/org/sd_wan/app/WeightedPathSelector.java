@@ -0,0 +1,91 @@
+package org.sd_wan.app;
+
+import org.onosproject.net.PortNumber;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Picks an interface at random, weighted by its unused capacity.
+ * The interfaces that are up are kept in a cumulative weight array, so a selection is a single random draw
+ * and a binary search over that array with no allocation. Interfaces that are down are never selected, and
+ * if every interface that is up has no unused capacity left they are picked with equal probability.
+ */
+public class WeightedPathSelector implements PathSelector {
+
+    private volatile Table table = new Table(new PortNumber[0], new long[0]);
+
+    @Override
+    public void update(Map<PortNumber, WanInterface> interfaces, Map<PortNumber, Long> weights,
+                       Map<PortNumber, LinkQuality> quality) {
+        List<PortNumber> upPorts = new ArrayList<>();
+        List<PortNumber> weightedPorts = new ArrayList<>();
+        List<Long> weightedValues = new ArrayList<>();
+
+        for (Map.Entry<PortNumber, WanInterface> entry : interfaces.entrySet()) {
+            if (!entry.getValue().getState()) {
+                continue;
+            }
+            upPorts.add(entry.getKey());
+            Long weight = weights.get(entry.getKey());
+            if (weight != null && weight > 0) {
+                weightedPorts.add(entry.getKey());
+                weightedValues.add(weight);
+            }
+        }
+
+        //Fall back to an even split when no interface that is up has spare capacity
+        if (weightedPorts.isEmpty()) {
+            weightedPorts = upPorts;
+            weightedValues = new ArrayList<>();
+            for (int i = 0; i < upPorts.size(); i++) {
+                weightedValues.add(1L);
+            }
+        }
+
+        long[] cumulativeWeights = new long[weightedPorts.size()];
+        long total = 0;
+        for (int i = 0; i < cumulativeWeights.length; i++) {
+            total += weightedValues.get(i);
+            cumulativeWeights[i] = total;
+        }
+        table = new Table(weightedPorts.toArray(new PortNumber[0]), cumulativeWeights);
+    }
+
+    /**
+     * Each new flow is drawn independently, so the flow hash is not used
+     */
+    @Override
+    public PortNumber select(long flowHash) {
+        Table current = table;
+        int size = current.ports.length;
+        if (size == 0) {
+            return null;
+        } else if (size == 1) {
+            return current.ports[0];
+        }
+
+        long draw = ThreadLocalRandom.current().nextLong(current.cumulativeWeights[size - 1]);
+
+        //Find the first interface whose cumulative weight is above the draw
+        int index = Arrays.binarySearch(current.cumulativeWeights, draw);
+        index = index >= 0 ? index + 1 : -(index + 1);
+        return current.ports[index];
+    }
+
+    /**
+     * Interfaces that are up and their cumulative weights, replaced as a whole on every update
+     */
+    private static final class Table {
+        final PortNumber[] ports;
+        final long[] cumulativeWeights;
+
+        Table(PortNumber[] ports, long[] cumulativeWeights) {
+            this.ports = ports;
+            this.cumulativeWeights = cumulativeWeights;
+        }
+    }
+}
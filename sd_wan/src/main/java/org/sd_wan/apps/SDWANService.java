@@ -4,11 +4,17 @@
   
 package org.sd_wan.apps;
  
+import org.onlab.packet.Ip4Address;
+import org.onlab.packet.IpAddress;
 import org.onosproject.net.Device;
 import org.onosproject.net.DeviceId;
 import org.onosproject.net.PortNumber;
+import org.onosproject.net.group.GroupDescription;
 import org.onosproject.net.intf.Interface;
 import org.sd_wan.app.CurrentPortStatistics;
+import org.sd_wan.app.PacketWorkerPool;
+import org.sd_wan.app.TimeoutPolicy;
+import org.sd_wan.app.TrafficPolicy;
 import org.sd_wan.app.WanGateway;
 import org.sd_wan.app.WanInterface;
 
@@ -32,5 +38,138 @@ public interface SDWANService {
 
     public void removeInterface(DeviceId deviceId, PortNumber port, String name);
 
+    /**
+     * Changes the bandwidth of a gateway interface, resizing the rate limits of its traffic classes
+     */
+    public void setInterfaceBandwidth(DeviceId deviceId, PortNumber port, int uplinkBandwidth, int downlinkBandwidth);
+
+    /**
+     * Sets the address of a gateway interface's next hop router, which the link probes resolve by ARP. Without
+     * it the probes are broadcast until an echo reply arrives on the interface, which only happens when the
+     * probe target is on the interface's link, as routers drop unicast IP sent to the broadcast MAC.
+     * @param nextHop The router's address, or null to learn it from echo replies
+     */
+    public void setInterfaceNextHop(DeviceId deviceId, PortNumber port, Ip4Address nextHop);
+
+    /**
+     * Sets how NAT flow rules of new connections are grouped before being installed
+     * @param maxBatchSize Number of rules at which a batch is installed immediately, 1 disables batching
+     * @param flushDelayMillis Longest time a new connection waits for its batch to be installed
+     */
+    public void setFlowRuleBatching(int maxBatchSize, int flushDelayMillis);
+
+    /**
+     * Sets the number of worker lanes used to process packet-ins, packets of the same flow always use the same lane
+     * @param lanes Number of lanes, 0 processes packets on the ONOS packet processor thread
+     */
+    public void setPacketWorkerLanes(int lanes);
+
+    /**
+     * @return The worker lanes processing packet-ins, including their queue and drop counters, or null if
+     *          packets are processed inline
+     */
+    public PacketWorkerPool getPacketWorkerPool();
+
+    /**
+     * Sets how quickly the interface rates used to weight the interfaces follow changes in traffic
+     * @param halfLifeMillis The time after which a statistics sample's weight in the rates has halved,
+     *                       0 to use each sample as it is
+     */
+    public void setTelemetryHalfLife(long halfLifeMillis);
+
+    /**
+     * Switches between emitting the translated first packet of each new NAT session from the controller, and
+     * releasing it through its packet context to the switch's flow table once the NAT rules are installed.
+     * The latter suits switches configured with a small miss_send_len, which buffer packet-ins so that only
+     * the buffer id is sent back rather than the whole packet.
+     */
+    public void setBufferedPacketOut(boolean enabled);
+
+    /**
+     * Switches between answering ARP requests for the WAN interface addresses with a proxy ARP in the controller,
+     * and with responder rules on gateways running Open vSwitch, which build the reply with Nicira extension
+     * actions and send it back out of the port the request arrived on. Other gateways stay with the controller.
+     */
+    public void setArpResponder(boolean enabled);
+
+    /**
+     * Switches a gateway between weighted random load balancing on spare capacity and flow affinity,
+     * where each flow's 5-tuple is mapped to an interface by rendezvous hashing weighted by bandwidth.
+     * Flow affinity is not enabled while latency path selection is, and disabling it only undoes flow affinity.
+     */
+    public void setFlowAffinity(DeviceId deviceId, boolean enabled);
+
+    /**
+     * Switches a gateway between weighted random load balancing on spare capacity and sending new flows out of
+     * the interface with the lowest delay, jitter and loss measured by link probing. Not enabled while flow
+     * affinity is, and disabling it only undoes latency path selection.
+     */
+    public void setLatencyPathSelection(DeviceId deviceId, boolean enabled);
+
+    /**
+     * Starts sending an ICMP echo probe out of every WAN interface at a fixed interval, from which the round trip
+     * time, jitter and loss of each interface's path are estimated
+     * @param target The address probed, which must answer echo requests, or null to stop probing
+     * @param intervalMillis Time between the probes of an interface
+     */
+    public void setLinkProbing(Ip4Address target, int intervalMillis);
+
+    /**
+     * Replaces the traffic classes and the rules classifying new flows into them by 5-tuple and DSCP. Each new
+     * flow of a class is sent out of the first interface meeting the class's latency, loss and bandwidth
+     * thresholds, while flows matching no rule and classes no interface meets are balanced as before.
+     */
+    public void setTrafficPolicy(TrafficPolicy policy);
+
+    public TrafficPolicy getTrafficPolicy();
+
+    /**
+     * Limits the rate of a traffic class on every WAN interface with a meter, which the outgoing NAT rules of the
+     * class's new sessions use. Sessions started under an old limit keep it until they end.
+     * @param trafficClass The name of the class, or null for the flows which match no class
+     * @param uplinkShare The share of each interface's uplink bandwidth the class may use, or 0 for no limit
+     */
+    public void setRateLimit(String trafficClass, double uplinkShare);
+
+    /**
+     * Sends new sessions of a gateway to an OpenFlow group of its interfaces, so the switch balances and fails
+     * over between the interfaces without the controller
+     * @param type SELECT to balance by interface weight, FAILOVER to use the best live interface,
+     *             or null to send each session out of a single interface
+     */
+    public void setInterfaceGroup(DeviceId deviceId, GroupDescription.Type type);
+
+    /**
+     * Switches a gateway between installing a pair of exact NAT rules per session and a pair of rules per host
+     * IP/port mapping, which covers every destination of the mapping and so cuts rules and packet-ins for hosts
+     * reaching many destinations from one port
+     */
+    public void setAggregateRules(DeviceId deviceId, boolean enabled);
+
+    /**
+     * Switches a gateway to port-block NAT, where every host of the local network owns a fixed, contiguous block of
+     * translated ports on each WAN interface, so NAT can be logged once per block rather than once per session
+     * @param blockSize The number of ports in each host's block, or 0 to allocate ports from the whole range
+     */
+    public void setPortBlocks(DeviceId deviceId, int blockSize);
+
+    /**
+     * @return The host a translated port of a gateway belongs to in port-block mode, or null if there is none
+     */
+    public IpAddress getPortBlockHost(DeviceId deviceId, int translatedPort);
+
+    /**
+     * Sets how NAT sessions are reclaimed when their rule removal events are missed
+     * @param sessionTimeoutMillis How long a session's rules may be missing from the flow statistics, at least
+     *                             the longest idle timeout of the timeout policy
+     * @param reconcileIntervalSeconds How often the sessions are checked against the installed flow rules
+     */
+    public void setSessionExpiry(long sessionTimeoutMillis, int reconcileIntervalSeconds);
+
+    /**
+     * @return The policy choosing the idle and hard timeouts of new NAT rules, which can be changed at runtime
+     */
+    public TimeoutPolicy getTimeoutPolicy();
+
     //public Map<PortNumber, CurrentPortStatistics> getPortStatistics(DeviceId deviceId);
 }
@@ -25,10 +25,11 @@
         var intfPort = document.getElementById("intfPort").value;
         var intfMac = document.getElementById("intfMac").value;
         var intfIp = document.getElementById("intfIp").value;
+        var intfNextHop = document.getElementById("intfNextHop").value;
         var intfBandwidth = document.getElementById("intfBandwidth").value;
 
         var intf = {"intfName":intfName, "intfPort":intfPort, "intfMac":intfMac,
-                "intfIp":intfIp, "intfBandwidth":intfBandwidth};
+                "intfIp":intfIp, "intfNextHop":intfNextHop, "intfBandwidth":intfBandwidth};
 
         var payload = { "addInterface":deviceId, "interface":intf};
 
@@ -65,7 +66,7 @@
         var intfPort = cells[1].innerText;
         var intfMac = cells[2].innerText;
         var intfIp = cells[3].innerText;
-        var intfBandwidth = cells[5].innerText;
+        var intfBandwidth = document.getElementById("bandwidth" + srcId.charAt(4)).value;
 
         var intf = {"intfName":intfName, "intfPort":intfPort, "intfMac":intfMac,
                 "intfIp":intfIp, "intfBandwidth":intfBandwidth};
@@ -77,6 +78,26 @@
         document.getElementById("statisticsTable").deleteRow(index);
     }
 
+    function updateInterface(event) {
+        var srcId = event.srcElement.id;
+
+        //5th char is the interface number
+        var index = Number(srcId.charAt(4)) + 2;
+        var cells = document.getElementById("gatewayTable").rows[index].cells;
+
+        var deviceId = document.getElementById("gatewayList").value;
+        var intfName = cells[0].innerText;
+        var intfPort = cells[1].innerText;
+        var intfNextHop = document.getElementById("nextHop" + srcId.charAt(4)).value;
+        var intfBandwidth = document.getElementById("bandwidth" + srcId.charAt(4)).value;
+
+        var intf = {"intfName":intfName, "intfPort":intfPort, "intfNextHop":intfNextHop,
+                "intfBandwidth":intfBandwidth};
+
+        var payload = { "updateInterface":deviceId, "interface":intf};
+        wss.sendEvent(dataReq, payload);
+    }
+
     function showInterfaces(interfacesSize, interfaces) {
         var table = document.getElementById("gatewayTable");
         table.style.display = "table";
@@ -95,7 +116,9 @@
             htmlString += "<td>" + interfaces[i].portNumber + "</td>";
             htmlString += "<td>" + interfaces[i].mac + "</td>";
             htmlString += "<td>" + interfaces[i].ip + "</td>";
-            htmlString += "<td>" + interfaces[i].bandwidth + "</td>";
+            htmlString += "<td><input type='text' id='nextHop" + i + "' value='" + interfaces[i].nextHop + "'></td>";
+            htmlString += "<td><input type='text' id='bandwidth" + i + "' value='" + interfaces[i].bandwidth + "'></td>";
+            htmlString += "<td><input type='button' id='updt" + i + "' name='update interface' value='Update Interface' ng-click='updateInterface($event)'></td>";
             htmlString += "<td><input type='button' id='intf" + i + "' name='remove interface' value='Remove Interface' ng-click='removeInterface($event)'></td>";
 
             var row;
@@ -115,7 +138,9 @@
 
     }
 
-    function showStatistics(numInterfaces, interfaces) {
+    function showStatistics(numInterfaces, interfaces, natMemoryReport, failoverReport) {
+        document.getElementById("natMemoryReport").innerText = natMemoryReport;
+        document.getElementById("failoverReport").innerText = failoverReport;
         var table = document.getElementById("statisticsTable");
         table.style.display = "table";
         document.getElementById("statisticsHeader").style.display = "block";
@@ -124,9 +149,12 @@
             htmlString += "<td>" + interfaces[i].portNumber + "</td>";
             htmlString += "<td>" + interfaces[i].enabled + "</td>";
             htmlString += "<td>" + interfaces[i].mbps + "</td>";
+            htmlString += "<td>" + interfaces[i].uplinkUse + "/" + interfaces[i].downlinkUse + "</td>";
+            htmlString += "<td>" + interfaces[i].quality + "</td>";
             htmlString += "<td>" + interfaces[i].totalBytes + "</td>";
             htmlString += "<td>" + interfaces[i].errors + "</td>";
             htmlString += "<td>" + interfaces[i].dropped + "</td>";
+            htmlString += "<td>" + interfaces[i].natSessions + "</td>";
 
             var row;
             if (table.rows[i + 1] != null) {
@@ -160,7 +188,7 @@
             for (var i = 0; i < data.interfacesSize; i++) {
                 interfaces.push(data["interface" + i]);
             }
-            showStatistics(data.interfacesSize, interfaces)
+            showStatistics(data.interfacesSize, interfaces, data.natMemoryReport, data.failoverReport)
         }
 
     }
@@ -223,6 +251,7 @@
             $scope.requestInterfaces = requestInterfaces;
             $scope.addInterface = addInterface;
             $scope.removeInterface = removeInterface;
+            $scope.updateInterface = updateInterface;
 
             // get data the first time...
             getData();
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sd_wan.app;
+
+import org.junit.Test;
+import org.onlab.packet.Ethernet;
+import org.onlab.packet.IPv4;
+import org.onlab.packet.Ip4Address;
+import org.onlab.packet.MacAddress;
+import org.onlab.packet.TCP;
+import org.onosproject.core.DefaultApplicationId;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleOperations;
+import org.onosproject.net.flow.FlowRuleServiceAdapter;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Set of tests for the batching of NAT flow rule installation.
+ */
+public class FlowRuleBatcherTest {
+
+    private static final PortNumber WAN = PortNumber.portNumber(1);
+    private static final PortNumber LAN = PortNumber.portNumber(3);
+
+    /**
+     * Flow rule service which completes or fails every batch as soon as it is applied
+     */
+    private static class BatchResultService extends FlowRuleServiceAdapter {
+        private final boolean fail;
+        int batches;
+
+        BatchResultService(boolean fail) {
+            this.fail = fail;
+        }
+
+        @Override
+        public void apply(FlowRuleOperations ops) {
+            batches++;
+            if (fail) {
+                ops.callback().onError(ops);
+            } else {
+                ops.callback().onSuccess(ops);
+            }
+        }
+    }
+
+    @Test
+    public void installsConnectionsInOneBatch() {
+        BatchResultService service = new BatchResultService(false);
+        FlowRuleBatcher batcher = new FlowRuleBatcher(service, 4, 1000);
+        AtomicInteger installed = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        NatHandler nat = natHandler();
+
+        batcher.submit(nat.makeNATRules(LAN, tcpPacket(5000), null, IPv4.PROTOCOL_TCP, WAN, TrafficPolicy.NONE),
+                installed::incrementAndGet, failed::incrementAndGet);
+        assertEquals(0, service.batches);
+        batcher.submit(nat.makeNATRules(LAN, tcpPacket(5001), null, IPv4.PROTOCOL_TCP, WAN, TrafficPolicy.NONE),
+                installed::incrementAndGet, failed::incrementAndGet);
+
+        assertEquals(1, service.batches);
+        assertEquals(2, installed.get());
+        assertEquals(0, failed.get());
+        batcher.shutdown();
+    }
+
+    @Test
+    public void failedBatchRollsBackEveryConnection() {
+        BatchResultService service = new BatchResultService(true);
+        FlowRuleBatcher batcher = new FlowRuleBatcher(service, 8, 1000);
+        AtomicInteger installed = new AtomicInteger();
+        NatHandler nat = natHandler();
+        //Two translated ports, which are only free again if the failed connections give them back
+        nat.setPortRange(2000, 2001);
+
+        for (int hostPort = 5000; hostPort < 5002; hostPort++) {
+            FlowRule[] rules = nat.makeNATRules(LAN, tcpPacket(hostPort), null, IPv4.PROTOCOL_TCP, WAN,
+                    TrafficPolicy.NONE);
+            batcher.submit(rules, installed::incrementAndGet, () -> nat.abortNATRules(rules));
+        }
+        assertNull(nat.makeNATRules(LAN, tcpPacket(5002), null, IPv4.PROTOCOL_TCP, WAN, TrafficPolicy.NONE));
+        batcher.flush();
+
+        assertEquals(1, service.batches);
+        assertEquals(0, installed.get());
+        assertEquals(0, nat.getNumberFlows());
+        assertEquals(0, nat.getNumberFlows(WAN));
+        assertNotNull(nat.makeNATRules(LAN, tcpPacket(5002), null, IPv4.PROTOCOL_TCP, WAN, TrafficPolicy.NONE));
+        assertNotNull(nat.makeNATRules(LAN, tcpPacket(5003), null, IPv4.PROTOCOL_TCP, WAN, TrafficPolicy.NONE));
+        batcher.shutdown();
+    }
+
+    private static NatHandler natHandler() {
+        NatHandler nat = new NatHandler(new DefaultApplicationId(1, "org.sd_wan.app"),
+                DeviceId.deviceId("of:0000000000000001"), new TimeoutPolicy());
+        nat.addInterfaceTable(WAN, new WanInterface("wan1", MacAddress.valueOf("00:00:00:00:01:01"),
+                Ip4Address.valueOf("192.168.1.2"), 100));
+        return nat;
+    }
+
+    private static Ethernet tcpPacket(int hostPort) {
+        TCP tcp = new TCP();
+        tcp.setSourcePort(hostPort);
+        tcp.setDestinationPort(80);
+        IPv4 ip = new IPv4();
+        ip.setSourceAddress("10.0.0.2");
+        ip.setDestinationAddress("8.8.8.8");
+        ip.setProtocol(IPv4.PROTOCOL_TCP);
+        ip.setPayload(tcp);
+        Ethernet eth = new Ethernet();
+        eth.setEtherType(Ethernet.TYPE_IPV4);
+        eth.setSourceMACAddress("00:00:00:00:00:02");
+        eth.setPayload(ip);
+        return eth;
+    }
+}
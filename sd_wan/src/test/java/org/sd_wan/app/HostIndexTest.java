@@ -0,0 +1,134 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sd_wan.app;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.onlab.packet.IpAddress;
+import org.onlab.packet.MacAddress;
+import org.onlab.packet.VlanId;
+import org.onosproject.net.DefaultHost;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Host;
+import org.onosproject.net.HostId;
+import org.onosproject.net.HostLocation;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.host.HostServiceAdapter;
+import org.onosproject.net.provider.ProviderId;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Set of tests for the index of hosts by IP address.
+ */
+public class HostIndexTest {
+
+    private static final ProviderId PROVIDER = new ProviderId("of", "org.sd_wan.app");
+    private static final DeviceId DEVICE = DeviceId.deviceId("of:0000000000000001");
+    private static final MacAddress MAC = MacAddress.valueOf("00:00:00:00:00:02");
+    private static final IpAddress IP = IpAddress.valueOf("10.0.0.2");
+    private static final IpAddress NEW_IP = IpAddress.valueOf("10.0.0.3");
+
+    private HostIndex hosts;
+
+    /**
+     * Knows a single host, and counts the lookups made
+     */
+    private static final class OneHostService extends HostServiceAdapter {
+        private final Host host;
+        int lookups;
+
+        OneHostService(Host host) {
+            this.host = host;
+        }
+
+        @Override
+        public Set<Host> getHostsByIp(IpAddress ipAddress) {
+            lookups++;
+            return host.ipAddresses().contains(ipAddress) ? Collections.singleton(host) : Collections.emptySet();
+        }
+    }
+
+    @Before
+    public void setUp() {
+        hosts = new HostIndex();
+    }
+
+    @Test
+    public void addedHostIsFoundByEachAddress() {
+        Host host = host(MAC, 3, IP, NEW_IP);
+        hosts.add(host);
+        assertSame(host, hosts.getByIp(IP));
+        assertSame(host, hosts.getByIp(NEW_IP));
+        assertEquals(1, hosts.size());
+    }
+
+    @Test
+    public void movedHostReplacesItsOldAddressAndLocation() {
+        hosts.add(host(MAC, 3, IP));
+        Host moved = host(MAC, 4, NEW_IP);
+        hosts.add(moved);
+
+        assertNull(hosts.getByIp(IP));
+        assertSame(moved, hosts.getByIp(NEW_IP));
+        assertEquals(PortNumber.portNumber(4), hosts.getByIp(NEW_IP).location().port());
+        assertEquals(1, hosts.size());
+    }
+
+    @Test
+    public void removedHostIsNoLongerFound() {
+        hosts.add(host(MAC, 3, IP));
+        hosts.remove(HostId.hostId(MAC));
+        assertNull(hosts.getByIp(IP));
+        assertEquals(0, hosts.size());
+    }
+
+    @Test
+    public void addressTakenByAnotherHostIsKeptWhenTheOldHostIsRemoved() {
+        hosts.add(host(MAC, 3, IP));
+        Host other = host(MacAddress.valueOf("00:00:00:00:00:05"), 5, IP);
+        hosts.add(other);
+        hosts.remove(HostId.hostId(MAC));
+        assertSame(other, hosts.getByIp(IP));
+    }
+
+    @Test
+    public void missFallsBackToHostServiceOnce() {
+        Host host = host(MAC, 3, IP);
+        OneHostService hostService = new OneHostService(host);
+
+        assertSame(host, hosts.find(IP, hostService));
+        assertSame(host, hosts.find(IP, hostService));
+        assertEquals(1, hostService.lookups);
+
+        //Addresses no host has are asked for every time
+        assertNull(hosts.find(NEW_IP, hostService));
+        assertEquals(2, hostService.lookups);
+    }
+
+    private static Host host(MacAddress mac, long port, IpAddress... ipAddresses) {
+        Set<IpAddress> ips = new HashSet<>();
+        Collections.addAll(ips, ipAddresses);
+        return new DefaultHost(PROVIDER, HostId.hostId(mac), mac, VlanId.NONE,
+                new HostLocation(DEVICE, PortNumber.portNumber(port), 0), ips);
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sd_wan.app;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+/**
+ * Set of tests for the ICMP echo identifier translation table.
+ */
+public class IcmpSessionTableTest {
+
+    private static final int HOST = 0x0a000002;
+    private static final int REMOTE = 0x08080808;
+
+    @Test
+    public void translatesRepliesBackToTheHost() {
+        IcmpSessionTable table = new IcmpSessionTable();
+        int translated = table.translateOut(HOST, 77, REMOTE, 0);
+        assertNotEquals(IcmpSessionTable.NONE, translated);
+        assertEquals(translated, table.translateOut(HOST, 77, REMOTE, 1000));
+
+        int entry = table.lookupIn(REMOTE, translated, 2000);
+        assertEquals(HOST, table.getHostIp(entry));
+        assertEquals(77, table.getHostId(entry));
+        assertEquals(IcmpSessionTable.NONE, table.lookupIn(REMOTE + 1, translated, 2000));
+    }
+
+    @Test
+    public void expiresIdleTranslations() {
+        IcmpSessionTable table = new IcmpSessionTable(10000);
+        int idle = table.translateOut(HOST, 1, REMOTE, 0);
+        int active = table.translateOut(HOST, 2, REMOTE, 0);
+
+        //Keep the second translation alive with replies
+        for (long now = 1000; now <= 15000; now += 1000) {
+            table.lookupIn(REMOTE, active, now);
+        }
+        assertEquals(IcmpSessionTable.NONE, table.lookupIn(REMOTE, idle, 15000));
+        assertNotEquals(IcmpSessionTable.NONE, table.lookupIn(REMOTE, active, 15000));
+        assertEquals(1, table.size());
+
+        assertEquals(1, table.advance(200000));
+        assertEquals(0, table.size());
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sd_wan.app;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.onlab.packet.ARP;
+import org.onlab.packet.Ethernet;
+import org.onlab.packet.ICMP;
+import org.onlab.packet.ICMPEcho;
+import org.onlab.packet.IPv4;
+import org.onlab.packet.Ip4Address;
+import org.onlab.packet.MacAddress;
+import org.onosproject.core.DefaultApplicationId;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.packet.OutboundPacket;
+import org.onosproject.net.packet.PacketServiceAdapter;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Set of tests for the resolution of the next hop the link probes are sent to.
+ */
+public class LinkProberTest {
+
+    private static final DeviceId DEVICE = DeviceId.deviceId("of:0000000000000001");
+    private static final PortNumber WAN1 = PortNumber.portNumber(1);
+    private static final Ip4Address TARGET = Ip4Address.valueOf("8.8.8.8");
+    private static final Ip4Address NEXT_HOP_IP = Ip4Address.valueOf("192.168.1.1");
+    private static final MacAddress NEXT_HOP_MAC = MacAddress.valueOf("00:00:00:00:01:01");
+
+    private CountingPacketService packetService;
+    private LinkProber prober;
+    private WanGateway gateway;
+    private WanInterface intf;
+
+    /**
+     * Counts the packets emitted
+     */
+    private static final class CountingPacketService extends PacketServiceAdapter {
+        int emitted;
+
+        @Override
+        public void emit(OutboundPacket packet) {
+            emitted++;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        packetService = new CountingPacketService();
+        gateway = new WanGateway(new NatHandler(new DefaultApplicationId(1, "org.sd_wan.app"), DEVICE,
+                new TimeoutPolicy()));
+        intf = new WanInterface("wan1", MacAddress.valueOf("00:00:00:00:00:01"), Ip4Address.valueOf("192.168.1.2"),
+                100);
+        gateway.addInterface(WAN1, intf);
+        gateway.updateInterfaceState(WAN1, true);
+
+        Map<DeviceId, WanGateway> gateways = new HashMap<>();
+        gateways.put(DEVICE, gateway);
+        prober = new LinkProber(packetService, gateways);
+    }
+
+    @Test
+    public void unresolvedNextHopIsNotCountedAsLoss() {
+        for (int i = 0; i < 5; i++) {
+            prober.probe(TARGET);
+        }
+        //The broadcast probes looking for the next hop are sent but never counted
+        assertEquals(5, packetService.emitted);
+        assertNull(prober.getNextHop(DEVICE, WAN1));
+        assertFalse(gateway.getInterfaceQuality().get(WAN1).isKnown());
+    }
+
+    @Test
+    public void configuredNextHopIsResolvedByArp() {
+        intf.setNextHop(NEXT_HOP_IP);
+        prober.probe(TARGET);
+        assertEquals(1, packetService.emitted);
+
+        //Replies from other hosts on the link are ignored
+        prober.handleArpReply(DEVICE, WAN1, arpReply(Ip4Address.valueOf("192.168.1.3"),
+                MacAddress.valueOf("00:00:00:00:01:03")));
+        assertNull(prober.getNextHop(DEVICE, WAN1));
+
+        prober.handleArpReply(DEVICE, WAN1, arpReply(NEXT_HOP_IP, NEXT_HOP_MAC));
+        assertEquals(NEXT_HOP_MAC, prober.getNextHop(DEVICE, WAN1));
+
+        //The next hop is resolved again once the interface comes back up
+        gateway.updateInterfaceState(WAN1, false);
+        prober.probe(TARGET);
+        assertNull(prober.getNextHop(DEVICE, WAN1));
+        assertFalse(gateway.getInterfaceQuality().get(WAN1).isKnown());
+    }
+
+    @Test
+    public void unconfiguredNextHopIsLearnedFromEchoReplies() {
+        //The broadcast probe reaches an on-link target, whose reply gives the next hop
+        prober.probe(TARGET);
+        assertNull(prober.getNextHop(DEVICE, WAN1));
+        assertTrue(prober.handleReply(DEVICE, WAN1, echoReply(NEXT_HOP_MAC)));
+        assertEquals(NEXT_HOP_MAC, prober.getNextHop(DEVICE, WAN1));
+    }
+
+    @Test
+    public void changedNextHopIsResolvedAgain() {
+        intf.setNextHop(NEXT_HOP_IP);
+        prober.probe(TARGET);
+        prober.handleArpReply(DEVICE, WAN1, arpReply(NEXT_HOP_IP, NEXT_HOP_MAC));
+
+        Ip4Address newNextHop = Ip4Address.valueOf("192.168.1.254");
+        intf.setNextHop(newNextHop);
+        prober.forgetNextHop(DEVICE, WAN1);
+        assertNull(prober.getNextHop(DEVICE, WAN1));
+
+        //The old router's replies no longer resolve it
+        prober.handleArpReply(DEVICE, WAN1, arpReply(NEXT_HOP_IP, NEXT_HOP_MAC));
+        assertNull(prober.getNextHop(DEVICE, WAN1));
+        prober.handleArpReply(DEVICE, WAN1, arpReply(newNextHop, MacAddress.valueOf("00:00:00:00:01:fe")));
+        assertEquals(MacAddress.valueOf("00:00:00:00:01:fe"), prober.getNextHop(DEVICE, WAN1));
+    }
+
+    private Ethernet echoReply(MacAddress sender) {
+        ICMPEcho echo = new ICMPEcho()
+                .setIdentifier(LinkProber.PROBE_IDENTIFIER)
+                .setSequenceNum((short) 0);
+        ICMP icmp = new ICMP()
+                .setIcmpType(ICMP.TYPE_ECHO_REPLY)
+                .setIcmpCode((byte) 0);
+        icmp.setPayload(echo);
+        IPv4 ipPacket = new IPv4()
+                .setSourceAddress(TARGET.toInt())
+                .setDestinationAddress(intf.getIp4Address().toInt())
+                .setProtocol(IPv4.PROTOCOL_ICMP);
+        ipPacket.setPayload(icmp);
+        Ethernet frame = new Ethernet()
+                .setEtherType(Ethernet.TYPE_IPV4)
+                .setSourceMACAddress(sender)
+                .setDestinationMACAddress(intf.getMacAddress());
+        frame.setPayload(ipPacket);
+        return frame;
+    }
+
+    private static ARP arpReply(Ip4Address senderIp, MacAddress senderMac) {
+        return new ARP()
+                .setOpCode(ARP.OP_REPLY)
+                .setSenderHardwareAddress(senderMac.toBytes())
+                .setSenderProtocolAddress(senderIp.toOctets());
+    }
+}
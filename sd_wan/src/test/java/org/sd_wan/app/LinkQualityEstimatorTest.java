@@ -0,0 +1,81 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sd_wan.app;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Set of tests for the probe based link quality estimator.
+ */
+public class LinkQualityEstimatorTest {
+
+    private static final long MS = 1000000L;
+
+    @Test
+    public void smoothsRttAndJitter() {
+        LinkQualityEstimator estimator = new LinkQualityEstimator(1000);
+        assertFalse(estimator.getQuality().isKnown());
+
+        int seq = estimator.probeSent(0);
+        assertTrue(estimator.replyReceived(seq, 20 * MS));
+        assertEquals(20, estimator.getQuality().getRttMillis(), 1e-9);
+        assertEquals(0, estimator.getQuality().getJitterMillis(), 1e-9);
+
+        seq = estimator.probeSent(1000 * MS);
+        assertTrue(estimator.replyReceived(seq, 1036 * MS));
+        assertEquals(22, estimator.getQuality().getRttMillis(), 1e-9);
+        assertEquals(1, estimator.getQuality().getJitterMillis(), 1e-9);
+
+        //Duplicate replies are ignored
+        assertFalse(estimator.replyReceived(seq, 1040 * MS));
+    }
+
+    @Test
+    public void countsTimedOutProbesAsLost() {
+        LinkQualityEstimator estimator = new LinkQualityEstimator(1000);
+        int first = estimator.probeSent(0);
+        int second = estimator.probeSent(500 * MS);
+        assertTrue(estimator.replyReceived(second, 510 * MS));
+
+        estimator.expire(1500 * MS);
+        assertEquals(0.5, estimator.getQuality().getLossRatio(), 1e-9);
+        assertFalse(estimator.replyReceived(first, 1600 * MS));
+    }
+
+    @Test
+    public void lossCoversTheLastWindowOfProbes() {
+        LinkQualityEstimator estimator = new LinkQualityEstimator(1000);
+        long now = 0;
+        for (int i = 0; i < LinkQualityEstimator.WINDOW; i++) {
+            estimator.probeSent(now);
+            now += 2000 * MS;
+        }
+        estimator.expire(now);
+        assertEquals(1, estimator.getQuality().getLossRatio(), 1e-9);
+
+        for (int i = 0; i < LinkQualityEstimator.WINDOW / 2; i++) {
+            int seq = estimator.probeSent(now);
+            estimator.replyReceived(seq, now + 10 * MS);
+            now += 2000 * MS;
+        }
+        assertEquals(0.5, estimator.getQuality().getLossRatio(), 1e-9);
+        assertTrue(estimator.getQuality().getDelayScore() > 5000);
+    }
+}
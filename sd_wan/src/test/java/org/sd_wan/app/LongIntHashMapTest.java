@@ -0,0 +1,80 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sd_wan.app;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Set of tests for the primitive hash map used to index NAT state.
+ */
+public class LongIntHashMapTest {
+
+    @Test
+    public void putGetAndOverwrite() {
+        LongIntHashMap map = new LongIntHashMap();
+        assertEquals(LongIntHashMap.NO_VALUE, map.put(42L, 1));
+        assertEquals(1, map.put(42L, 2));
+        assertEquals(2, map.get(42L));
+        assertEquals(LongIntHashMap.NO_VALUE, map.get(43L));
+        assertEquals(1, map.size());
+    }
+
+    @Test
+    public void removeKeepsProbeChainsIntact() {
+        LongIntHashMap map = new LongIntHashMap();
+        for (int i = 0; i < 1000; i++) {
+            map.put(NatSessionTable.key(0x0A000002, i, (byte) 6), i);
+        }
+        for (int i = 0; i < 1000; i += 2) {
+            assertEquals(i, map.remove(NatSessionTable.key(0x0A000002, i, (byte) 6)));
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i % 2 == 0 ? LongIntHashMap.NO_VALUE : i,
+                    map.get(NatSessionTable.key(0x0A000002, i, (byte) 6)));
+        }
+        assertEquals(500, map.size());
+    }
+
+    @Test
+    public void matchesHashMapUnderRandomOperations() {
+        LongIntHashMap map = new LongIntHashMap();
+        Map<Long, Integer> reference = new HashMap<>();
+        Random random = new Random(7);
+        for (int i = 0; i < 100000; i++) {
+            long key = random.nextInt(5000);
+            if (random.nextBoolean()) {
+                Integer previous = reference.put(key, i);
+                assertEquals(previous == null ? LongIntHashMap.NO_VALUE : previous, map.put(key, i));
+            } else {
+                Integer previous = reference.remove(key);
+                assertEquals(previous == null ? LongIntHashMap.NO_VALUE : previous, map.remove(key));
+            }
+        }
+        assertEquals(reference.size(), map.size());
+        for (long key = 0; key < 5000; key++) {
+            assertEquals(reference.containsKey(key), map.containsKey(key));
+        }
+        map.clear();
+        assertFalse(map.containsKey(1L));
+    }
+}
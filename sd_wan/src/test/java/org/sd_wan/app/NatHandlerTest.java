@@ -0,0 +1,258 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sd_wan.app;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.onlab.packet.Ethernet;
+import org.onlab.packet.IPv4;
+import org.onlab.packet.Ip4Address;
+import org.onlab.packet.IpPrefix;
+import org.onlab.packet.MacAddress;
+import org.onlab.packet.TCP;
+import org.onlab.packet.TpPort;
+import org.onosproject.core.DefaultApplicationId;
+import org.onosproject.core.GroupId;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.criteria.Criterion;
+import org.onosproject.net.flow.criteria.IPCriterion;
+import org.onosproject.net.flow.criteria.PortCriterion;
+import org.onosproject.net.flow.criteria.TcpPortCriterion;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Set of tests for the NAT rules and sessions of a gateway.
+ */
+public class NatHandlerTest {
+
+    private static final PortNumber WAN1 = PortNumber.portNumber(1);
+    private static final PortNumber WAN2 = PortNumber.portNumber(2);
+    private static final PortNumber LAN = PortNumber.portNumber(3);
+    private static final Ip4Address WAN1_IP = Ip4Address.valueOf("192.168.1.2");
+    private static final Ip4Address WAN2_IP = Ip4Address.valueOf("192.168.2.2");
+    private static final String HOST = "10.0.0.2";
+
+    private NatHandler nat;
+
+    /**
+     * Sends every flow out of one interface
+     */
+    private static final class FixedPathSelector implements PathSelector {
+        private final PortNumber port;
+
+        FixedPathSelector(PortNumber port) {
+            this.port = port;
+        }
+
+        @Override
+        public void update(Map<PortNumber, WanInterface> interfaces, Map<PortNumber, Long> weights,
+                           Map<PortNumber, LinkQuality> quality) {
+        }
+
+        @Override
+        public PortNumber select(long flowHash) {
+            return port;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        nat = new NatHandler(new DefaultApplicationId(1, "org.sd_wan.app"),
+                DeviceId.deviceId("of:0000000000000001"), new TimeoutPolicy());
+        nat.addInterfaceTable(WAN1, new WanInterface("wan1", MacAddress.valueOf("00:00:00:00:01:01"), WAN1_IP, 100));
+        nat.addInterfaceTable(WAN2, new WanInterface("wan2", MacAddress.valueOf("00:00:00:00:02:01"), WAN2_IP, 100));
+    }
+
+    @Test
+    public void migrationMovesMappingsToTheSurvivingInterface() {
+        FlowRule[] web = connect(5000, "8.8.8.8", 80, WAN1);
+        FlowRule[] tls = connect(5000, "8.8.4.4", 443, WAN1);
+        connect(6000, "8.8.8.8", 80, WAN2);
+        assertEquals(2, nat.getNumberFlows(WAN1));
+
+        NatMigration migration = nat.migrateInterface(WAN1, new FixedPathSelector(WAN2), TrafficPolicy.EMPTY);
+        assertEquals(2, migration.getMigratedSessions());
+        assertEquals(0, migration.getDroppedSessions());
+        assertEquals(0, nat.getNumberFlows(WAN1));
+        assertEquals(3, nat.getNumberFlows(WAN2));
+        assertEquals(3, nat.getNumberFlows());
+
+        //Both sessions of the host's mapping share one new translated port on the surviving interface
+        int newPort = translatedPort(migration.getInstalledRules().get(0));
+        assertEquals(newPort, translatedPort(migration.getInstalledRules().get(2)));
+        assertEquals(translatedPort(web[0]), translatedPort(tls[0]));
+        for (int i = 0; i < migration.getInstalledRules().size(); i += 2) {
+            assertEquals(IpPrefix.valueOf(WAN2_IP, 32), ((IPCriterion) migration.getInstalledRules().get(i)
+                    .selector().getCriterion(Criterion.Type.IPV4_DST)).ip());
+            assertTrue(migration.getInstalledRules().get(i + 1).treatment().allInstructions().containsAll(
+                    DefaultTrafficTreatment.builder().setIpSrc(WAN2_IP).setTcpSrc(TpPort.tpPort(newPort)).build()
+                            .allInstructions()));
+        }
+
+        //The removal of the old incoming rules does not end the moved sessions
+        nat.removeRule(web[0]);
+        nat.removeRule(tls[0]);
+        assertEquals(3, nat.getNumberFlows());
+    }
+
+    @Test
+    public void migrationRemovesTheOldRulesAndInstallsTheNewOnes() {
+        FlowRule[] old = connect(5000, "8.8.8.8", 80, WAN1);
+
+        NatMigration migration = nat.migrateInterface(WAN1, new FixedPathSelector(WAN2), TrafficPolicy.EMPTY);
+        assertEquals(2, migration.getInstalledRules().size());
+        FlowRule[] installed = migration.getInstalledRules().toArray(new FlowRule[0]);
+
+        //The outgoing rule keeps its selector, so installing its replacement overwrites it
+        assertEquals(1, migration.getRemovedRules().size());
+        assertEquals(old[0], migration.getRemovedRules().get(0));
+        assertEquals(old[1].selector(), installed[1].selector());
+        assertEquals(old[1].id(), installed[1].id());
+        assertNotEquals(old[0].selector(), installed[0].selector());
+
+        //The rules are the ones the next packet of the connection would install on the new interface
+        FlowRule[] again = connect(5000, "8.8.8.8", 80, WAN1);
+        assertEquals(installed[0].id(), again[0].id());
+        assertEquals(installed[1].treatment(), again[1].treatment());
+        assertEquals(1, nat.getNumberFlows());
+    }
+
+    @Test
+    public void migrationAvoidsPortsInUseOnTheTargetInterface() {
+        FlowRule[] onWan2 = connect(6000, "8.8.8.8", 80, WAN2);
+        FlowRule[] onWan1 = connect(5000, "8.8.8.8", 80, WAN1);
+        assertEquals(translatedPort(onWan2[0]), translatedPort(onWan1[0]));
+
+        NatMigration migration = nat.migrateInterface(WAN1, new FixedPathSelector(WAN2), TrafficPolicy.EMPTY);
+        assertEquals(1, migration.getMigratedSessions());
+        assertNotEquals(translatedPort(onWan2[0]), translatedPort(migration.getInstalledRules().get(0)));
+        assertEquals(2, nat.getNumberFlows(WAN2));
+    }
+
+    @Test
+    public void migrationDropsSessionsWithNowhereToGo() {
+        FlowRule[] old = connect(5000, "8.8.8.8", 80, WAN1);
+
+        NatMigration migration = nat.migrateInterface(WAN1, new FixedPathSelector(null), TrafficPolicy.EMPTY);
+        assertEquals(0, migration.getMigratedSessions());
+        assertEquals(1, migration.getDroppedSessions());
+        assertTrue(migration.getInstalledRules().isEmpty());
+        assertTrue(migration.getRemovedRules().contains(old[0]));
+        assertTrue(migration.getRemovedRules().contains(old[1]));
+        assertEquals(0, nat.getNumberFlows());
+    }
+
+    @Test
+    public void sessionsOutliveTheLongestRuleIdleTimeout() {
+        long start = System.currentTimeMillis();
+        connect(5000, "8.8.8.8", 80, WAN1);
+
+        //The configured timeout is shorter than the TCP rules' idle timeout, so it is raised above it
+        nat.setSessionTimeout(1000);
+        long idleMillis = TimeoutPolicy.DEFAULT_TCP_IDLE_TIMEOUT * 1000L;
+        List<FlowRule> expired = new ArrayList<>();
+        assertEquals(0, nat.expireSessions(start + idleMillis, expired));
+        assertTrue(expired.isEmpty());
+        assertEquals(1, nat.getNumberFlows());
+
+        assertEquals(1, nat.expireSessions(System.currentTimeMillis() + 2 * idleMillis, expired));
+        assertEquals(2, expired.size());
+        assertEquals(0, nat.getNumberFlows());
+    }
+
+    @Test
+    public void aggregateIncomingRulesOnlyMatchTrafficArrivingOnTheInterface() {
+        nat.setAggregateRules(true);
+        FlowRule[] rules = connect(5000, "8.8.8.8", 80, WAN1);
+        assertEquals(2, rules.length);
+
+        FlowRule in = rules[0];
+        assertEquals(WAN1, ((PortCriterion) in.selector().getCriterion(Criterion.Type.IN_PORT)).port());
+        assertEquals(IpPrefix.valueOf(WAN1_IP, 32),
+                ((IPCriterion) in.selector().getCriterion(Criterion.Type.IPV4_DST)).ip());
+        assertNull(in.selector().getCriterion(Criterion.Type.IPV4_SRC));
+        assertNull(in.selector().getCriterion(Criterion.Type.TCP_SRC));
+        assertNull(rules[1].selector().getCriterion(Criterion.Type.IPV4_DST));
+    }
+
+    @Test
+    public void aggregateGroupSessionsHaveAnIncomingRulePerInterface() {
+        nat.setAggregateRules(true);
+        nat.setInterfaceGroup(GroupId.valueOf(1));
+        FlowRule[] rules = connect(5000, "8.8.8.8", 80, WAN1);
+        assertEquals(3, rules.length);
+
+        int translated = translatedPort(rules[0]);
+        assertEquals(WAN1, ((PortCriterion) rules[0].selector().getCriterion(Criterion.Type.IN_PORT)).port());
+        assertEquals(WAN2, ((PortCriterion) rules[2].selector().getCriterion(Criterion.Type.IN_PORT)).port());
+        assertEquals(IpPrefix.valueOf(WAN2_IP, 32),
+                ((IPCriterion) rules[2].selector().getCriterion(Criterion.Type.IPV4_DST)).ip());
+        assertEquals(translated, translatedPort(rules[2]));
+        assertEquals(1, nat.getNumberFlows());
+    }
+
+    @Test
+    public void aggregateRulesTakeTheMappingTimeouts() {
+        nat.setAggregateRules(true);
+        Ethernet fin = tcpPacket(5000, "8.8.8.8", 53);
+        ((TCP) fin.getPayload().getPayload()).setFlags((short) 0x01);
+        FlowRule[] rules = nat.makeNATRules(LAN, fin, null, IPv4.PROTOCOL_TCP, WAN1, TrafficPolicy.NONE);
+
+        //Neither the closing timeout nor the DNS port's timeout applies to the mapping's other destinations
+        for (FlowRule rule : rules) {
+            assertEquals(TimeoutPolicy.DEFAULT_TCP_IDLE_TIMEOUT, rule.timeout());
+        }
+    }
+
+    private FlowRule[] connect(int hostPort, String dest, int destPort, PortNumber interfacePort) {
+        return nat.makeNATRules(LAN, tcpPacket(hostPort, dest, destPort), null, IPv4.PROTOCOL_TCP, interfacePort,
+                TrafficPolicy.NONE);
+    }
+
+    /**
+     * @return The translated port matched by an incoming rule
+     */
+    private static int translatedPort(FlowRule inRule) {
+        return ((TcpPortCriterion) inRule.selector().getCriterion(Criterion.Type.TCP_DST)).tcpPort().toInt();
+    }
+
+    private static Ethernet tcpPacket(int hostPort, String dest, int destPort) {
+        TCP tcp = new TCP();
+        tcp.setSourcePort(hostPort);
+        tcp.setDestinationPort(destPort);
+        IPv4 ip = new IPv4();
+        ip.setSourceAddress(HOST);
+        ip.setDestinationAddress(dest);
+        ip.setProtocol(IPv4.PROTOCOL_TCP);
+        ip.setPayload(tcp);
+        Ethernet eth = new Ethernet();
+        eth.setEtherType(Ethernet.TYPE_IPV4);
+        eth.setSourceMACAddress("00:00:00:00:00:02");
+        eth.setPayload(ip);
+        return eth;
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sd_wan.app;
+
+import org.junit.Test;
+import org.onlab.packet.IPv4;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.flow.FlowId;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+/**
+ * Set of tests for the NAT mapping and session table.
+ */
+public class NatSessionTableTest {
+
+    private static final PortNumber WAN = PortNumber.portNumber(1);
+    private static final PortNumber LAN = PortNumber.portNumber(3);
+    private static final int HOST = 0x0a000002;
+    private static final int WAN_IP = 0xc0a80102;
+    private static final int REMOTE = 0x08080808;
+
+    private static final FlowId IN = FlowId.valueOf(0x10);
+    private static final FlowId OUT = FlowId.valueOf(0x11);
+
+    @Test
+    public void indexesMappingsByHostAndTranslatedTuple() {
+        NatSessionTable table = new NatSessionTable();
+        int mapping = table.addMapping(WAN, 0x1234, LAN, HOST, 5000, WAN_IP, 2000, IPv4.PROTOCOL_TCP);
+
+        assertEquals(mapping, table.getByHost(HOST, 5000, IPv4.PROTOCOL_TCP));
+        assertEquals(mapping, table.getByTranslated(WAN_IP, 2000, IPv4.PROTOCOL_TCP));
+        assertEquals(NatSessionTable.NONE, table.getByHost(HOST, 5000, IPv4.PROTOCOL_UDP));
+        assertEquals(NatSessionTable.NONE, table.getByTranslated(WAN_IP, 2001, IPv4.PROTOCOL_TCP));
+        assertEquals(HOST, table.getHostIp(mapping));
+        assertEquals(LAN, table.getHostSwitchPort(mapping));
+        assertEquals(WAN, table.getInterfacePort(mapping));
+        assertArrayEquals(new int[] {mapping}, table.getMappings(WAN));
+    }
+
+    @Test
+    public void reinstallingTheSameRulesKeepsOneSession() {
+        NatSessionTable table = new NatSessionTable();
+        int mapping = table.addMapping(WAN, 0x1234, LAN, HOST, 5000, WAN_IP, 2000, IPv4.PROTOCOL_TCP);
+        int session = table.addSession(mapping, REMOTE, 80, IN, OUT, 0);
+
+        assertEquals(session, table.addSession(mapping, REMOTE, 80, IN, OUT, 1000));
+        assertEquals(1, table.getSessionCount());
+        assertEquals(1, table.getSessionCount(WAN));
+    }
+
+    @Test
+    public void reinstallingAfterOneRuleIdledOutReusesTheSession() {
+        NatSessionTable table = new NatSessionTable();
+        int mapping = table.addMapping(WAN, 0x1234, LAN, HOST, 5000, WAN_IP, 2000, IPv4.PROTOCOL_TCP);
+        int session = table.addSession(mapping, REMOTE, 80, IN, OUT, 0);
+
+        //The outgoing rule idles out while replies keep the incoming rule alive, then the host sends again
+        assertEquals(NatSessionTable.NONE, table.removeFlowRule(OUT));
+        assertEquals(session, table.addSession(mapping, REMOTE, 80, IN, OUT, 1000));
+        assertEquals(1, table.getSessionCount());
+        assertEquals(session, table.getByFlowId(IN));
+        assertEquals(session, table.getByFlowId(OUT));
+
+        //The session holds both rules again, so it only ends once both are removed
+        assertEquals(NatSessionTable.NONE, table.removeFlowRule(IN));
+        assertEquals(mapping, table.removeFlowRule(OUT));
+        assertEquals(0, table.getSessionCount());
+    }
+
+    @Test
+    public void sessionsEndOnceBothRulesAreRemoved() {
+        NatSessionTable table = new NatSessionTable();
+        int mapping = table.addMapping(WAN, 0x1234, LAN, HOST, 5000, WAN_IP, 2000, IPv4.PROTOCOL_TCP);
+        table.addSession(mapping, REMOTE, 80, IN, OUT, 0);
+        table.addSession(mapping, REMOTE, 443, FlowId.valueOf(0x20), FlowId.valueOf(0x21), 0);
+        assertEquals(2, table.getSessionCount(WAN));
+
+        assertEquals(NatSessionTable.NONE, table.removeFlowRule(IN));
+        assertEquals(NatSessionTable.NONE, table.removeFlowRule(IN));
+        assertEquals(2, table.getSessionCount());
+        assertEquals(NatSessionTable.NONE, table.removeFlowRule(OUT));
+        assertEquals(1, table.getSessionCount());
+
+        //The mapping is handed back once its last session ends
+        assertEquals(NatSessionTable.NONE, table.removeFlowRule(FlowId.valueOf(0x20)));
+        assertEquals(mapping, table.removeFlowRule(FlowId.valueOf(0x21)));
+        assertEquals(0, table.getSessionCount(WAN));
+
+        table.removeMapping(mapping);
+        assertEquals(0, table.getMappingCount());
+        assertEquals(NatSessionTable.NONE, table.getByHost(HOST, 5000, IPv4.PROTOCOL_TCP));
+    }
+
+    @Test
+    public void removingASessionLeavesRulesTakenOverByAnother() {
+        NatSessionTable table = new NatSessionTable();
+        int oldMapping = table.addMapping(WAN, 0x1234, LAN, HOST, 5000, WAN_IP, 2000, IPv4.PROTOCOL_TCP);
+        int oldSession = table.addSession(oldMapping, REMOTE, 80, IN, OUT, 0);
+
+        //A new session is installed with the same outgoing rule, taking it from the old one
+        table.removeFlowRule(OUT);
+        int newMapping = table.addMapping(WAN, 0x1234, LAN, HOST, 5001, WAN_IP, 2001, IPv4.PROTOCOL_TCP);
+        FlowId newIn = FlowId.valueOf(0x40);
+        int newSession = table.addSession(newMapping, REMOTE, 80, newIn, OUT, 0);
+
+        assertEquals(oldMapping, table.removeSession(oldSession));
+        assertEquals(newSession, table.getByFlowId(OUT));
+        assertEquals(newSession, table.getByFlowId(newIn));
+        assertEquals(NatSessionTable.NONE, table.getByFlowId(IN));
+    }
+
+    @Test
+    public void removingAnInterfaceLeavesRulesTakenOverOnAnotherInterface() {
+        PortNumber otherWan = PortNumber.portNumber(2);
+        NatSessionTable table = new NatSessionTable();
+        int oldMapping = table.addMapping(WAN, 0x1234, LAN, HOST, 5000, WAN_IP, 2000, IPv4.PROTOCOL_TCP);
+        table.addSession(oldMapping, REMOTE, 80, IN, OUT, 0);
+
+        table.removeFlowRule(OUT);
+        int newMapping = table.addMapping(otherWan, 0x1234, LAN, HOST, 5001, 0xc0a80202, 2000,
+                IPv4.PROTOCOL_TCP);
+        int newSession = table.addSession(newMapping, REMOTE, 80, FlowId.valueOf(0x40), OUT, 0);
+
+        table.removeInterface(WAN);
+        assertEquals(newSession, table.getByFlowId(OUT));
+        assertEquals(NatSessionTable.NONE, table.getByFlowId(IN));
+        assertEquals(1, table.getSessionCount(otherWan));
+    }
+
+    @Test
+    public void freedHandlesAreReused() {
+        NatSessionTable table = new NatSessionTable();
+        int mapping = table.addMapping(WAN, 0x1234, LAN, HOST, 5000, WAN_IP, 2000, IPv4.PROTOCOL_UDP);
+        int session = table.addSession(mapping, REMOTE, 53, IN, OUT, 0);
+        table.removeSession(session);
+        table.removeMapping(mapping);
+
+        int next = table.addMapping(WAN, 0x1234, LAN, HOST, 5001, WAN_IP, 2001, IPv4.PROTOCOL_UDP);
+        assertEquals(mapping, next);
+        assertEquals(session, table.addSession(next, REMOTE, 53, FlowId.valueOf(0x30), FlowId.valueOf(0x31), 0));
+        assertNotEquals(session, table.getByFlowId(IN));
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sd_wan.app;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Set of tests for the in place frame rewriter and its incremental checksums.
+ */
+public class PacketRewriterTest {
+
+    private static final int IP = 14;
+    private static final int L4 = 34;
+
+    @Test
+    public void rewritesTcpSourceWithValidChecksums() {
+        ByteBuffer frame = frame(6, 28);
+        PacketRewriter.setSrcPort(frame, 40001);
+        PacketRewriter.setIpSrc(frame, 0xCB007105);
+        PacketRewriter.setEthSrc(frame, 0x0A0B0C0D0E0FL);
+
+        assertEquals(40001, frame.getShort(L4) & 0xFFFF);
+        assertEquals(0xCB007105, frame.getInt(IP + 12));
+        assertEquals(0x0A0B, frame.getShort(6) & 0xFFFF);
+        assertEquals(0x0E0F, frame.getShort(10) & 0xFFFF);
+        assertEquals(0, checksum(frame, IP, 20, 0));
+        assertEquals(0, transportChecksum(frame, 28));
+    }
+
+    @Test
+    public void rewritesUdpDestinationAndKeepsMissingChecksum() {
+        ByteBuffer frame = frame(17, 12);
+        PacketRewriter.setIpDst(frame, 0x0A000007);
+        PacketRewriter.setDstPort(frame, 5353);
+        assertEquals(0, transportChecksum(frame, 12));
+
+        frame.putShort(L4 + 6, (short) 0);
+        PacketRewriter.setDstPort(frame, 53);
+        assertEquals(0, frame.getShort(L4 + 6));
+    }
+
+    @Test
+    public void rewritesIcmpEchoIdentifier() {
+        ByteBuffer frame = frame(1, 12);
+        PacketRewriter.setIcmpEchoId(frame, 0xBEEF);
+        PacketRewriter.setIpSrc(frame, 0xC0A80101);
+        assertEquals(0xBEEF, frame.getShort(L4 + 4) & 0xFFFF);
+        assertEquals(0, checksum(frame, L4, 12, 0));
+        assertEquals(0, checksum(frame, IP, 20, 0));
+    }
+
+    @Test
+    public void copiesReadOnlyBuffers() {
+        ByteBuffer frame = frame(6, 28);
+        assertSame(frame.array(), PacketRewriter.writableFrame(frame).array());
+        ByteBuffer copy = PacketRewriter.writableFrame(frame.asReadOnlyBuffer());
+        assertNotSame(frame.array(), copy.array());
+        assertEquals(frame, copy);
+    }
+
+    /**
+     * Builds an IPv4 frame with a transport segment of the given length and valid checksums
+     */
+    private static ByteBuffer frame(int protocol, int transportLength) {
+        ByteBuffer frame = ByteBuffer.allocate(L4 + transportLength);
+        frame.putShort(12, (short) 0x0800);
+        frame.put(IP, (byte) 0x45);
+        frame.putShort(IP + 2, (short) (20 + transportLength));
+        frame.put(IP + 8, (byte) 64);
+        frame.put(IP + 9, (byte) protocol);
+        frame.putInt(IP + 12, 0x0A000002);
+        frame.putInt(IP + 16, 0x08080808);
+        for (int i = L4; i < frame.limit(); i++) {
+            frame.put(i, (byte) (i * 7));
+        }
+        frame.putShort(IP + 10, (short) checksum(frame, IP, 20, 0));
+        if (protocol == 1) {
+            frame.putShort(L4 + 2, (short) 0);
+            frame.putShort(L4 + 2, (short) checksum(frame, L4, transportLength, 0));
+        } else {
+            int checksumOffset = L4 + (protocol == 6 ? 16 : 6);
+            if (protocol == 17) {
+                frame.putShort(L4 + 4, (short) transportLength);
+            }
+            frame.putShort(checksumOffset, (short) 0);
+            frame.putShort(checksumOffset, (short) transportChecksum(frame, transportLength));
+        }
+        return frame;
+    }
+
+    private static int transportChecksum(ByteBuffer frame, int transportLength) {
+        int pseudoHeader = sum(frame, IP + 12, 8) + (frame.get(IP + 9) & 0xFF) + transportLength;
+        return checksum(frame, L4, transportLength, pseudoHeader);
+    }
+
+    private static int checksum(ByteBuffer frame, int offset, int length, int initial) {
+        int sum = initial + sum(frame, offset, length);
+        while ((sum >>> 16) != 0) {
+            sum = (sum & 0xFFFF) + (sum >>> 16);
+        }
+        return ~sum & 0xFFFF;
+    }
+
+    private static int sum(ByteBuffer frame, int offset, int length) {
+        int sum = 0;
+        for (int i = 0; i < length; i += 2) {
+            sum += frame.getShort(offset + i) & 0xFFFF;
+        }
+        return sum;
+    }
+}
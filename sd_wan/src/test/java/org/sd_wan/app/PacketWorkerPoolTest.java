@@ -0,0 +1,117 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sd_wan.app;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Set of tests for the packet-in worker lanes.
+ */
+public class PacketWorkerPoolTest {
+
+    @Test
+    public void keepsPacketsOfAFlowInOrder() throws InterruptedException {
+        PacketWorkerPool pool = new PacketWorkerPool(4, 10000);
+        int flows = 16;
+        int packets = 500;
+        List<List<Integer>> seen = new ArrayList<>();
+        for (int flow = 0; flow < flows; flow++) {
+            seen.add(Collections.synchronizedList(new ArrayList<>()));
+        }
+
+        for (int packet = 0; packet < packets; packet++) {
+            for (int flow = 0; flow < flows; flow++) {
+                final int flowIndex = flow;
+                final int packetIndex = packet;
+                assertTrue(pool.dispatch(NatSessionTable.key(0x0a000000 + flow, 5000, (byte) 6),
+                        () -> seen.get(flowIndex).add(packetIndex)));
+            }
+        }
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(10000));
+
+        for (List<Integer> flow : seen) {
+            assertEquals(packets, flow.size());
+            for (int packet = 0; packet < packets; packet++) {
+                assertEquals(packet, (int) flow.get(packet));
+            }
+        }
+        assertEquals(flows * packets, pool.getDispatchedCount());
+        assertEquals(0, pool.getDroppedCount());
+    }
+
+    @Test
+    public void dropsPacketsOfAFullLane() throws InterruptedException {
+        PacketWorkerPool pool = new PacketWorkerPool(1, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+
+        //One packet is being processed and one waits in the queue, the next has no room
+        assertTrue(pool.dispatch(1, () -> {
+            started.countDown();
+            awaitQuietly(release);
+        }));
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        assertTrue(pool.dispatch(1, () -> { }));
+        assertFalse(pool.dispatch(1, () -> { }));
+        assertEquals(1, pool.getDroppedCount());
+        assertEquals(1, pool.getQueuedCount());
+
+        release.countDown();
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(10000));
+    }
+
+    @Test
+    public void shutdownProcessesQueuedPacketsAndRefusesNewOnes() throws InterruptedException {
+        PacketWorkerPool pool = new PacketWorkerPool(2);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Integer> processed = Collections.synchronizedList(new ArrayList<>());
+
+        assertTrue(pool.dispatch(1, () -> awaitQuietly(release)));
+        for (int packet = 0; packet < 10; packet++) {
+            final int packetIndex = packet;
+            assertTrue(pool.dispatch(1, () -> processed.add(packetIndex)));
+        }
+        pool.shutdown();
+        assertFalse(pool.dispatch(2, () -> processed.add(-1)));
+        assertFalse(pool.awaitTermination(10));
+
+        release.countDown();
+        assertTrue(pool.awaitTermination(10000));
+        assertEquals(10, processed.size());
+        assertFalse(processed.contains(-1));
+        assertEquals(0, pool.getDroppedCount());
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sd_wan.app;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Set of tests for coalescing the packet-ins of connections whose rules are being installed.
+ */
+public class PendingFlowTableTest {
+
+    private static final PendingFlowTable.Key KEY =
+            new PendingFlowTable.Key(0x0A000002, 5000, 0x08080808, 53, (byte) 17);
+
+    @Test
+    public void releasesQueuedPacketsWithTranslation() {
+        PendingFlowTable<String> table = new PendingFlowTable<>();
+        List<String> released = new ArrayList<>();
+        PendingFlowTable.Setup<String> setup = table.join(KEY, released::add, 0);
+        assertNotNull(setup);
+        assertNull(table.join(new PendingFlowTable.Key(0x0A000002, 5000, 0x08080808, 53, (byte) 17),
+                released::add, 1));
+        assertNull(table.join(KEY, released::add, 2));
+
+        table.complete(setup, "translated");
+        assertEquals(2, released.size());
+        assertEquals("translated", released.get(0));
+        assertEquals(0, table.size());
+        assertEquals(2, table.getCoalescedCount());
+        assertNotNull(table.join(KEY, released::add, 3));
+    }
+
+    @Test
+    public void dropsWhenQueueFullOrAborted() {
+        PendingFlowTable<String> table = new PendingFlowTable<>(1, 1000);
+        List<String> released = new ArrayList<>();
+        PendingFlowTable.Setup<String> setup = table.join(KEY, released::add, 0);
+        assertNull(table.join(KEY, released::add, 1));
+        assertNull(table.join(KEY, released::add, 2));
+        table.abort(setup);
+        assertEquals(0, released.size());
+        assertEquals(2, table.getDroppedCount());
+    }
+
+    @Test
+    public void replacesStaleSetups() {
+        PendingFlowTable<String> table = new PendingFlowTable<>(4, 1000);
+        List<String> released = new ArrayList<>();
+        PendingFlowTable.Setup<String> stale = table.join(KEY, released::add, 0);
+        PendingFlowTable.Setup<String> setup = table.join(KEY, released::add, 2000);
+        assertNotNull(setup);
+
+        //The stale setup completing late leaves the new one in place
+        table.complete(stale, "late");
+        assertNull(table.join(KEY, released::add, 2001));
+        table.complete(setup, "translated");
+        assertEquals(1, released.size());
+        assertEquals("translated", released.get(0));
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sd_wan.app;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Set of tests for the bitmap backed NAT port allocator.
+ */
+public class PortAllocatorTest {
+
+    @Test
+    public void allocatesSequentiallyFromRangeStart() {
+        PortAllocator allocator = new PortAllocator(1024, 2047);
+        assertEquals(1024, allocator.allocate());
+        assertEquals(1025, allocator.allocate());
+        assertEquals(2, allocator.getAllocatedCount());
+    }
+
+    @Test
+    public void wrapsAroundAndReusesReleasedPorts() {
+        PortAllocator allocator = new PortAllocator(10, 13);
+        for (int port = 10; port <= 13; port++) {
+            assertEquals(port, allocator.allocate());
+        }
+        assertTrue(allocator.release(11));
+        assertEquals(11, allocator.allocate());
+    }
+
+    @Test
+    public void signalsExhaustion() {
+        PortAllocator allocator = new PortAllocator(100, 101);
+        allocator.allocate();
+        allocator.allocate();
+        assertEquals(PortAllocator.EXHAUSTED, allocator.allocate());
+        assertFalse(allocator.release(99));
+    }
+
+    @Test
+    public void skipsReservedPortsAcrossWords() {
+        PortAllocator allocator = new PortAllocator(60, 200);
+        for (int port = 60; port < 130; port++) {
+            assertTrue(allocator.reserve(port));
+        }
+        assertFalse(allocator.reserve(64));
+        assertEquals(130, allocator.allocate());
+    }
+
+    @Test
+    public void keepsAllocationsWhenRangeChanges() {
+        PortAllocator allocator = new PortAllocator(1, 10);
+        allocator.allocate();
+        allocator.setRange(1, 1);
+        assertEquals(PortAllocator.EXHAUSTED, allocator.allocate());
+        assertTrue(allocator.isAllocated(1));
+    }
+}
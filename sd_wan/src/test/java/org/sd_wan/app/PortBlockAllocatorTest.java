@@ -0,0 +1,59 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sd_wan.app;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Set of tests for deterministic port-block NAT allocation.
+ */
+public class PortBlockAllocatorTest {
+
+    // 10.0.0.0/30
+    private static final int BASE = 0x0A000000;
+
+    @Test
+    public void allocatesFromEachHostsOwnBlock() {
+        PortAllocator ports = new PortAllocator(1000, 1099);
+        PortBlockAllocator blocks = new PortBlockAllocator(BASE, 30, 1000, 1099, 25);
+        assertEquals(1000, blocks.allocate(ports, BASE));
+        assertEquals(1001, blocks.allocate(ports, BASE));
+        assertEquals(1050, blocks.allocate(ports, BASE + 2));
+        assertEquals(3, ports.getAllocatedCount());
+        assertEquals(PortAllocator.EXHAUSTED, blocks.allocate(ports, BASE + 4));
+    }
+
+    @Test
+    public void findsHostArithmeticallyAndWrapsWithinBlock() {
+        PortAllocator ports = new PortAllocator(1000, 1099);
+        PortBlockAllocator blocks = new PortBlockAllocator(BASE, 30, 1000, 1099, 2);
+        assertEquals(1002, blocks.allocate(ports, BASE + 1));
+        assertEquals(1003, blocks.allocate(ports, BASE + 1));
+        assertEquals(PortAllocator.EXHAUSTED, blocks.allocate(ports, BASE + 1));
+        ports.release(1002);
+        assertEquals(1002, blocks.allocate(ports, BASE + 1));
+
+        assertEquals(BASE + 1, blocks.getHostIp(blocks.getBlockIndex(1003)));
+        assertEquals(PortBlockAllocator.NONE, blocks.getBlockIndex(1008));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsBlocksLargerThanTheRange() {
+        new PortBlockAllocator(BASE, 24, 1024, 65535, 253);
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sd_wan.app;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Set of tests for the time weighted link rate estimator.
+ */
+public class RateEstimatorTest {
+
+    @Test
+    public void usesActualDurationAndLargeCounters() {
+        RateEstimator estimator = new RateEstimator();
+        //10 Gb/s over 4 s is 5 GB, well past the range of an int
+        assertEquals(10000000000L, estimator.update(5000000000L, 4000, 10000));
+    }
+
+    @Test
+    public void halvesTowardsNewRateEveryHalfLife() {
+        RateEstimator estimator = new RateEstimator();
+        estimator.update(1000, 1000, 5000);
+        assertEquals(8000, estimator.getRate());
+        assertEquals(4000, estimator.update(0, 5000, 5000));
+        assertEquals(0, estimator.update(0, 1000, 0));
+        assertEquals(0, estimator.update(1000, 0, 5000));
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sd_wan.app;
+
+import org.junit.Test;
+import org.onlab.packet.Ip4Address;
+import org.onlab.packet.MacAddress;
+import org.onosproject.net.PortNumber;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Set of tests for the rendezvous hashing path selector.
+ */
+public class RendezvousPathSelectorTest {
+
+    private static final PortNumber WAN1 = PortNumber.portNumber(1);
+    private static final PortNumber WAN2 = PortNumber.portNumber(2);
+    private static final PortNumber WAN3 = PortNumber.portNumber(3);
+
+    private static final int FLOWS = 20000;
+
+    @Test
+    public void mapsEachFlowToTheSameInterface() {
+        RendezvousPathSelector selector = new RendezvousPathSelector();
+        selector.update(interfaces(100, 100, 100), Collections.emptyMap(), Collections.emptyMap());
+        RendezvousPathSelector other = new RendezvousPathSelector();
+        other.update(interfaces(100, 100, 100), Collections.emptyMap(), Collections.emptyMap());
+
+        for (int flow = 0; flow < FLOWS; flow++) {
+            long hash = flowHash(flow);
+            PortNumber port = selector.select(hash);
+            assertEquals(port, selector.select(hash));
+            assertEquals(port, other.select(hash));
+        }
+    }
+
+    @Test
+    public void spreadsFlowsInProportionToBandwidth() {
+        RendezvousPathSelector selector = new RendezvousPathSelector();
+        selector.update(interfaces(100, 300, 0), Collections.emptyMap(), Collections.emptyMap());
+
+        Map<PortNumber, Integer> counts = new HashMap<>();
+        for (int flow = 0; flow < FLOWS; flow++) {
+            counts.merge(selector.select(flowHash(flow)), 1, Integer::sum);
+        }
+        assertEquals(0.25, counts.get(WAN1) / (double) FLOWS, 0.02);
+        assertEquals(0.75, counts.get(WAN2) / (double) FLOWS, 0.02);
+        assertEquals(0, (int) counts.getOrDefault(WAN3, 0));
+    }
+
+    @Test
+    public void removingAnInterfaceOnlyMovesItsFlows() {
+        RendezvousPathSelector selector = new RendezvousPathSelector();
+        Map<PortNumber, WanInterface> interfaces = interfaces(100, 100, 100);
+        selector.update(interfaces, Collections.emptyMap(), Collections.emptyMap());
+        PortNumber[] before = new PortNumber[FLOWS];
+        for (int flow = 0; flow < FLOWS; flow++) {
+            before[flow] = selector.select(flowHash(flow));
+        }
+
+        interfaces.get(WAN2).setState(false);
+        selector.update(interfaces, Collections.emptyMap(), Collections.emptyMap());
+        int moved = 0;
+        for (int flow = 0; flow < FLOWS; flow++) {
+            PortNumber after = selector.select(flowHash(flow));
+            assertNotEquals(WAN2, after);
+            if (!before[flow].equals(WAN2)) {
+                assertEquals(before[flow], after);
+            } else {
+                moved++;
+            }
+        }
+        //Only the flows of the removed interface, about a third, have moved
+        assertEquals(1.0 / 3, moved / (double) FLOWS, 0.02);
+    }
+
+    @Test
+    public void selectsNothingWhenEveryInterfaceIsDown() {
+        RendezvousPathSelector selector = new RendezvousPathSelector();
+        assertNull(selector.select(flowHash(1)));
+
+        Map<PortNumber, WanInterface> interfaces = interfaces(100, 100, 100);
+        for (WanInterface intf : interfaces.values()) {
+            intf.setState(false);
+        }
+        selector.update(interfaces, Collections.emptyMap(), Collections.emptyMap());
+        assertNull(selector.select(flowHash(1)));
+    }
+
+    private static long flowHash(int flow) {
+        return PathSelector.flowHash(0x0a000002 + (flow >> 8), 1024 + flow, 0x08080808, 443, (byte) 6);
+    }
+
+    /**
+     * @param bandwidths The uplink bandwidth of each interface, which is down if 0
+     */
+    private static Map<PortNumber, WanInterface> interfaces(int... bandwidths) {
+        Map<PortNumber, WanInterface> interfaces = new TreeMap<>((a, b) -> Long.compare(a.toLong(), b.toLong()));
+        for (int i = 0; i < bandwidths.length; i++) {
+            WanInterface intf = new WanInterface("wan" + (i + 1), MacAddress.valueOf(i + 1L),
+                    Ip4Address.valueOf(0xc0a80002 + (i << 8)), bandwidths[i]);
+            intf.setState(bandwidths[i] > 0);
+            interfaces.put(PortNumber.portNumber(i + 1), intf);
+        }
+        return interfaces;
+    }
+}
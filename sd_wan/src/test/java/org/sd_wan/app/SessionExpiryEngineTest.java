@@ -0,0 +1,148 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sd_wan.app;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.onlab.packet.Ethernet;
+import org.onlab.packet.IPv4;
+import org.onlab.packet.Ip4Address;
+import org.onlab.packet.MacAddress;
+import org.onlab.packet.TCP;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.core.DefaultApplicationId;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleOperation;
+import org.onosproject.net.flow.FlowRuleOperations;
+import org.onosproject.net.flow.FlowRuleServiceAdapter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Set of tests for the reconciliation of the NAT sessions with the installed flow rules.
+ */
+public class SessionExpiryEngineTest {
+
+    private static final ApplicationId APP_ID = new DefaultApplicationId(1, "org.sd_wan.app");
+    private static final DeviceId DEVICE = DeviceId.deviceId("of:0000000000000001");
+    private static final PortNumber WAN = PortNumber.portNumber(1);
+    private static final PortNumber LAN = PortNumber.portNumber(3);
+    //Beyond the session timeout, which is above the longest rule idle timeout
+    private static final long EXPIRY_MILLIS = 2 * TimeoutPolicy.DEFAULT_TCP_IDLE_TIMEOUT * 1000L;
+
+    private RemovalRecordingService flowRuleService;
+    private SessionExpiryEngine expiryEngine;
+    private WanGateway gateway;
+
+    /**
+     * Records the rules every batch removes, with no flow entries installed
+     */
+    private static final class RemovalRecordingService extends FlowRuleServiceAdapter {
+        final List<FlowRule> removed = new ArrayList<>();
+        int batches;
+
+        @Override
+        public void apply(FlowRuleOperations ops) {
+            batches++;
+            for (Set<FlowRuleOperation> stage : ops.stages()) {
+                for (FlowRuleOperation op : stage) {
+                    if (op.type() == FlowRuleOperation.Type.REMOVE) {
+                        removed.add(op.rule());
+                    }
+                }
+            }
+        }
+    }
+
+    @Before
+    public void setUp() {
+        flowRuleService = new RemovalRecordingService();
+        gateway = new WanGateway(new NatHandler(APP_ID, DEVICE, new TimeoutPolicy()));
+        gateway.addInterface(WAN, new WanInterface("wan1", MacAddress.valueOf("00:00:00:00:01:01"),
+                Ip4Address.valueOf("192.168.1.2"), 100));
+        gateway.updateInterfaceState(WAN, true);
+
+        Map<DeviceId, WanGateway> gateways = new HashMap<>();
+        gateways.put(DEVICE, gateway);
+        expiryEngine = new SessionExpiryEngine(flowRuleService, APP_ID, gateways,
+                new WanMeterHandler(null, APP_ID));
+    }
+
+    @After
+    public void tearDown() {
+        expiryEngine.shutdown();
+    }
+
+    @Test
+    public void expiredSessionsHaveBothRulesRemoved() {
+        FlowRule[] rules = connect(5000);
+
+        expiryEngine.reconcile(System.currentTimeMillis() + EXPIRY_MILLIS);
+        assertEquals(1, flowRuleService.batches);
+        assertEquals(2, flowRuleService.removed.size());
+        assertTrue(flowRuleService.removed.contains(rules[0]));
+        assertTrue(flowRuleService.removed.contains(rules[1]));
+        assertEquals(0, gateway.getNatSessionCount(WAN));
+    }
+
+    @Test
+    public void ruleLeftByAnExpiredSessionIsRemoved() {
+        FlowRule[] rules = connect(5000);
+        //The incoming rule's removal was seen, the outgoing rule's was lost
+        gateway.removeRule(rules[0]);
+
+        expiryEngine.reconcile(System.currentTimeMillis() + EXPIRY_MILLIS);
+        assertEquals(1, flowRuleService.batches);
+        assertEquals(1, flowRuleService.removed.size());
+        assertEquals(rules[1], flowRuleService.removed.get(0));
+        assertEquals(0, gateway.getNatSessionCount(WAN));
+    }
+
+    @Test
+    public void nothingIsAppliedWhileSessionsAreAlive() {
+        connect(5000);
+
+        expiryEngine.reconcile(System.currentTimeMillis());
+        assertEquals(0, flowRuleService.batches);
+        assertEquals(1, gateway.getNatSessionCount(WAN));
+    }
+
+    private FlowRule[] connect(int hostPort) {
+        TCP tcp = new TCP();
+        tcp.setSourcePort(hostPort);
+        tcp.setDestinationPort(80);
+        IPv4 ip = new IPv4();
+        ip.setSourceAddress("10.0.0.2");
+        ip.setDestinationAddress("8.8.8.8");
+        ip.setProtocol(IPv4.PROTOCOL_TCP);
+        ip.setPayload(tcp);
+        Ethernet eth = new Ethernet();
+        eth.setEtherType(Ethernet.TYPE_IPV4);
+        eth.setSourceMACAddress("00:00:00:00:00:02");
+        eth.setPayload(ip);
+        return gateway.makeNatRules(LAN, eth, null, IPv4.PROTOCOL_TCP, WAN, TrafficPolicy.NONE);
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sd_wan.app;
+
+import org.junit.Test;
+import org.onlab.packet.IPv4;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Set of tests for the NAT rule timeout policy.
+ */
+public class TimeoutPolicyTest {
+
+    @Test
+    public void dnsExpiresFasterThanOtherTraffic() {
+        TimeoutPolicy policy = new TimeoutPolicy();
+        assertEquals(TimeoutPolicy.DEFAULT_DNS_IDLE_TIMEOUT, policy.getIdleTimeout(IPv4.PROTOCOL_UDP, 53));
+        assertEquals(TimeoutPolicy.DEFAULT_UDP_IDLE_TIMEOUT, policy.getIdleTimeout(IPv4.PROTOCOL_UDP, 54));
+        assertEquals(TimeoutPolicy.DEFAULT_TCP_IDLE_TIMEOUT, policy.getIdleTimeout(IPv4.PROTOCOL_TCP, 443));
+    }
+
+    @Test
+    public void closingTcpPacketsGetClosingTimeout() {
+        TimeoutPolicy policy = new TimeoutPolicy();
+        assertEquals(TimeoutPolicy.DEFAULT_CLOSING_IDLE_TIMEOUT,
+                policy.getIdleTimeout(IPv4.PROTOCOL_TCP, 443, (short) 0x11));
+        assertEquals(TimeoutPolicy.DEFAULT_CLOSING_IDLE_TIMEOUT,
+                policy.getIdleTimeout(IPv4.PROTOCOL_TCP, 443, (short) 0x04));
+        assertEquals(TimeoutPolicy.DEFAULT_TCP_IDLE_TIMEOUT,
+                policy.getIdleTimeout(IPv4.PROTOCOL_TCP, 443, (short) 0x10));
+    }
+
+    @Test
+    public void portRangesOverrideAndClearToDefaults() {
+        TimeoutPolicy policy = new TimeoutPolicy();
+        policy.setPortTimeout(IPv4.PROTOCOL_TCP, 8000, 8999, 300, 3600);
+        assertEquals(300, policy.getIdleTimeout(IPv4.PROTOCOL_TCP, 8080));
+        assertEquals(3600, policy.getHardTimeout(IPv4.PROTOCOL_TCP, 8080));
+        assertEquals(TimeoutPolicy.DEFAULT_UDP_IDLE_TIMEOUT, policy.getIdleTimeout(IPv4.PROTOCOL_UDP, 8080));
+
+        policy.setDefaultTimeout(IPv4.PROTOCOL_TCP, 120, 0);
+        policy.clearPortTimeout(IPv4.PROTOCOL_TCP, 8000, 8999);
+        assertEquals(120, policy.getIdleTimeout(IPv4.PROTOCOL_TCP, 8080));
+        assertEquals(0, policy.getHardTimeout(IPv4.PROTOCOL_TCP, 8080));
+    }
+
+    @Test
+    public void maxIdleTimeoutFollowsThePortRangesInUse() {
+        TimeoutPolicy policy = new TimeoutPolicy();
+        assertEquals(TimeoutPolicy.DEFAULT_TCP_IDLE_TIMEOUT, policy.getMaxIdleTimeout());
+
+        policy.setPortTimeout(IPv4.PROTOCOL_UDP, 5000, 5100, 300, 0);
+        assertEquals(300, policy.getMaxIdleTimeout());
+        policy.clearPortTimeout(IPv4.PROTOCOL_UDP, 5000, 5100);
+        assertEquals(TimeoutPolicy.DEFAULT_TCP_IDLE_TIMEOUT, policy.getMaxIdleTimeout());
+
+        policy.setClosingIdleTimeout(90);
+        assertEquals(90, policy.getMaxIdleTimeout());
+    }
+}
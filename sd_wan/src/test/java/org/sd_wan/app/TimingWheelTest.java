@@ -0,0 +1,74 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sd_wan.app;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Set of tests for the hierarchical timing wheel used to expire NAT state.
+ */
+public class TimingWheelTest {
+
+    @Test
+    public void expiresEachHandleAtItsDeadline() {
+        TimingWheel wheel = new TimingWheel(1, 0);
+        Random random = new Random(7);
+        long[] deadlines = new long[2000];
+        for (int handle = 0; handle < deadlines.length; handle++) {
+            //Spread deadlines over the first three levels of the wheel
+            deadlines[handle] = 1 + random.nextInt(300000);
+            wheel.schedule(handle, deadlines[handle]);
+        }
+
+        List<Integer> expired = new ArrayList<>();
+        for (long now = 1; now <= 300000; now++) {
+            final long tick = now;
+            wheel.advance(now, handle -> {
+                assertEquals(deadlines[handle], tick);
+                expired.add(handle);
+            });
+        }
+        assertEquals(deadlines.length, expired.size());
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void rescheduledAndCancelledHandlesDoNotExpireEarly() {
+        TimingWheel wheel = new TimingWheel(1000, 0);
+        wheel.schedule(0, 10000);
+        wheel.schedule(1, 10000);
+        wheel.schedule(1, 100000);
+        wheel.schedule(2, 10000);
+        wheel.cancel(2);
+        assertFalse(wheel.isScheduled(2));
+
+        List<Integer> expired = new ArrayList<>();
+        assertEquals(1, wheel.advance(50000, expired::add));
+        assertEquals(0, (int) expired.get(0));
+        assertTrue(wheel.isScheduled(1));
+
+        assertEquals(1, wheel.advance(100000, expired::add));
+        assertEquals(1, (int) expired.get(1));
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sd_wan.app;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Set of tests for the compiled traffic classification rules.
+ */
+public class TrafficPolicyTest {
+
+    private static final byte TCP = 6;
+    private static final byte UDP = 17;
+    private static final int LAN = 0x0A000000;
+
+    private static TrafficClass trafficClass(String name) {
+        return new TrafficClass(name, TrafficClass.NO_MAX_LATENCY, TrafficClass.NO_MAX_LOSS,
+                TrafficClass.NO_MIN_BANDWIDTH, Collections.emptyList());
+    }
+
+    private final TrafficPolicy policy = new TrafficPolicy(
+            Arrays.asList(trafficClass("voice"), trafficClass("bulk")),
+            Arrays.asList(
+                    TrafficRule.builder("voice").matchDscp(46).build(),
+                    TrafficRule.builder("voice").matchProtocol(UDP).matchDestPorts(16384, 32767).build(),
+                    TrafficRule.builder("bulk").matchSrcPrefix(LAN | 0x80, 25).matchProtocol(TCP).build()));
+
+    @Test
+    public void firstMatchingRuleWins() {
+        //Expedited forwarding from the bulk hosts is still voice
+        assertEquals(0, policy.classify(LAN | 0x81, 5000, 0x08080808, 443, TCP, 46));
+        assertEquals(0, policy.classify(LAN | 0x01, 5000, 0x08080808, 20000, UDP, 0));
+        assertEquals(1, policy.classify(LAN | 0x81, 5000, 0x08080808, 443, TCP, 0));
+    }
+
+    @Test
+    public void unmatchedFlowsHaveNoClass() {
+        assertEquals(TrafficPolicy.NONE, policy.classify(LAN | 0x01, 5000, 0x08080808, 443, TCP, 0));
+        assertEquals(TrafficPolicy.NONE, policy.classify(LAN | 0x81, 5000, 0x08080808, 16383, UDP, 0));
+        assertEquals(TrafficPolicy.NONE, policy.classify(LAN | 0x81, 5000, 0x08080808, 32768, UDP, 0));
+        assertEquals(TrafficPolicy.NONE, TrafficPolicy.EMPTY.classify(LAN, 1, LAN, 1, TCP, 46));
+    }
+
+    @Test
+    public void matchesAddressesAcrossTheSignBit() {
+        TrafficPolicy remote = new TrafficPolicy(Collections.singletonList(trafficClass("remote")),
+                Collections.singletonList(TrafficRule.builder("remote").matchDestPrefix(0xC0A80000, 16).build()));
+        assertEquals(0, remote.classify(LAN, 1, 0xC0A8FFFF, 1, TCP, 0));
+        assertEquals(TrafficPolicy.NONE, remote.classify(LAN, 1, 0xC0A90000, 1, TCP, 0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsRulesOfUnknownClasses() {
+        new TrafficPolicy(Collections.singletonList(trafficClass("voice")),
+                Collections.singletonList(TrafficRule.builder("video").build()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTooManyRules() {
+        List<TrafficRule> rules = new ArrayList<>();
+        for (int i = 0; i <= TrafficPolicy.MAX_RULES; i++) {
+            rules.add(TrafficRule.builder("bulk").matchDestPorts(i, i).build());
+        }
+        new TrafficPolicy(Collections.singletonList(trafficClass("bulk")), rules);
+    }
+}
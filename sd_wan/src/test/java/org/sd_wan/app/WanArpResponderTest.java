@@ -0,0 +1,238 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sd_wan.app;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.onlab.packet.Ip4Address;
+import org.onlab.packet.MacAddress;
+import org.onlab.util.ItemNotFoundException;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.core.DefaultApplicationId;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.behaviour.ExtensionTreatmentResolver;
+import org.onosproject.net.driver.Behaviour;
+import org.onosproject.net.driver.Driver;
+import org.onosproject.net.driver.DriverData;
+import org.onosproject.net.driver.DriverHandler;
+import org.onosproject.net.driver.DriverServiceAdapter;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleServiceAdapter;
+import org.onosproject.net.flow.criteria.ArpPaCriterion;
+import org.onosproject.net.flow.criteria.Criterion;
+import org.onosproject.net.flow.instructions.ExtensionTreatment;
+import org.onosproject.net.flow.instructions.ExtensionTreatmentType;
+import org.onosproject.net.flow.instructions.Instruction;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Set of tests for the data-plane ARP responder rules.
+ */
+public class WanArpResponderTest {
+
+    private static final ApplicationId APP_ID = new DefaultApplicationId(1, "org.sd_wan.app");
+    private static final DeviceId OVS = DeviceId.deviceId("of:0000000000000001");
+    private static final DeviceId NO_EXTENSIONS = DeviceId.deviceId("of:0000000000000002");
+    private static final DeviceId NO_DRIVER = DeviceId.deviceId("of:0000000000000003");
+    private static final PortNumber WAN1 = PortNumber.portNumber(1);
+    private static final Ip4Address WAN1_IP = Ip4Address.valueOf("192.168.1.2");
+
+    private RuleRecordingService flowRuleService;
+    private WanArpResponder arpResponder;
+    private WanInterface intf;
+
+    /**
+     * Records the rules applied and removed
+     */
+    private static final class RuleRecordingService extends FlowRuleServiceAdapter {
+        final List<FlowRule> applied = new ArrayList<>();
+        final List<FlowRule> removed = new ArrayList<>();
+
+        @Override
+        public void applyFlowRules(FlowRule... rules) {
+            applied.addAll(Arrays.asList(rules));
+        }
+
+        @Override
+        public void removeFlowRules(FlowRule... rules) {
+            removed.addAll(Arrays.asList(rules));
+        }
+    }
+
+    /**
+     * Gives the Open vSwitch gateway a resolver for the Nicira extensions and the other gateway none, and knows
+     * no driver for any other device
+     */
+    private static final class StubDriverService extends DriverServiceAdapter {
+        @Override
+        public DriverHandler createHandler(DeviceId deviceId, String... credentials) {
+            if (!deviceId.equals(OVS) && !deviceId.equals(NO_EXTENSIONS)) {
+                throw new ItemNotFoundException("No driver for " + deviceId);
+            }
+            return new StubDriverHandler(deviceId.equals(OVS));
+        }
+    }
+
+    private static final class StubDriverHandler implements DriverHandler {
+        private final boolean nicira;
+
+        StubDriverHandler(boolean nicira) {
+            this.nicira = nicira;
+        }
+
+        public Driver driver() {
+            return null;
+        }
+
+        public DriverData data() {
+            return null;
+        }
+
+        @SuppressWarnings("unchecked")
+        public <T extends Behaviour> T behaviour(Class<T> behaviourClass) {
+            if (!hasBehaviour(behaviourClass)) {
+                throw new UnsupportedOperationException(behaviourClass.getName());
+            }
+            return (T) new StubResolver(this);
+        }
+
+        public <T> T get(Class<T> serviceClass) {
+            return null;
+        }
+
+        public boolean hasBehaviour(Class<? extends Behaviour> behaviourClass) {
+            return nicira && behaviourClass == ExtensionTreatmentResolver.class;
+        }
+    }
+
+    private static final class StubResolver implements ExtensionTreatmentResolver {
+        private DriverHandler handler;
+
+        StubResolver(DriverHandler handler) {
+            this.handler = handler;
+        }
+
+        public ExtensionTreatment getExtensionInstruction(ExtensionTreatmentType type) {
+            return new StubExtension(type);
+        }
+
+        public DriverHandler handler() {
+            return handler;
+        }
+
+        public void setHandler(DriverHandler handler) {
+            this.handler = handler;
+        }
+
+        public DriverData data() {
+            return null;
+        }
+
+        public void setData(DriverData data) {
+        }
+    }
+
+    private static final class StubExtension implements ExtensionTreatment {
+        private final ExtensionTreatmentType type;
+
+        StubExtension(ExtensionTreatmentType type) {
+            this.type = type;
+        }
+
+        public ExtensionTreatmentType type() {
+            return type;
+        }
+
+        public byte[] serialize() {
+            return new byte[0];
+        }
+
+        public void deserialize(byte[] data) {
+        }
+    }
+
+    @Before
+    public void setUp() {
+        flowRuleService = new RuleRecordingService();
+        arpResponder = new WanArpResponder(flowRuleService, new StubDriverService(), APP_ID);
+        intf = new WanInterface("wan1", MacAddress.valueOf("00:00:00:00:01:01"), WAN1_IP, 100);
+    }
+
+    @Test
+    public void supportedGatewayAnswersRequestsForTheInterface() {
+        arpResponder.setEnabled(true, new HashMap<>());
+        arpResponder.addInterface(OVS, WAN1, intf);
+
+        assertEquals(1, flowRuleService.applied.size());
+        FlowRule rule = flowRuleService.applied.get(0);
+        assertEquals(OVS, rule.deviceId());
+        assertTrue(rule.isPermanent());
+        assertEquals(WAN1_IP, ((ArpPaCriterion) rule.selector().getCriterion(Criterion.Type.ARP_TPA)).ip());
+        int extensions = 0;
+        for (Instruction instruction : rule.treatment().allInstructions()) {
+            if (instruction.type() == Instruction.Type.EXTENSION) {
+                extensions++;
+            }
+        }
+        assertEquals(3, extensions);
+    }
+
+    @Test
+    public void gatewaysWithoutTheExtensionsAreLeftToTheController() {
+        arpResponder.setEnabled(true, new HashMap<>());
+        arpResponder.addInterface(NO_EXTENSIONS, WAN1, intf);
+        arpResponder.addInterface(NO_DRIVER, WAN1, intf);
+        assertEquals(0, flowRuleService.applied.size());
+    }
+
+    @Test
+    public void nothingIsInstalledWhileDisabled() {
+        arpResponder.addInterface(OVS, WAN1, intf);
+        assertEquals(0, flowRuleService.applied.size());
+    }
+
+    @Test
+    public void rulesAreRemovedWithTheInterfaceOrWhenDisabled() {
+        arpResponder.setEnabled(true, new HashMap<>());
+        arpResponder.addInterface(OVS, WAN1, intf);
+        FlowRule rule = flowRuleService.applied.get(0);
+
+        arpResponder.removeInterface(OVS, WAN1);
+        assertEquals(Arrays.asList(rule), flowRuleService.removed);
+
+        //Interfaces of the gateways are installed on enabling
+        WanGateway gateway = new WanGateway(new NatHandler(APP_ID, OVS, new TimeoutPolicy()));
+        gateway.addInterface(WAN1, intf);
+        Map<DeviceId, WanGateway> gateways = new HashMap<>();
+        gateways.put(OVS, gateway);
+        arpResponder.setEnabled(false, gateways);
+        arpResponder.setEnabled(true, gateways);
+        assertEquals(2, flowRuleService.applied.size());
+
+        arpResponder.setEnabled(false, gateways);
+        assertEquals(2, flowRuleService.removed.size());
+        assertEquals(rule, flowRuleService.removed.get(1));
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sd_wan.app;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.onlab.packet.Ip4Address;
+import org.onlab.packet.MacAddress;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.core.DefaultApplicationId;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.group.GroupBucket;
+import org.onosproject.net.group.GroupBuckets;
+import org.onosproject.net.group.GroupDescription;
+import org.onosproject.net.group.GroupKey;
+import org.onosproject.net.group.GroupServiceAdapter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Set of tests for the rewriting of the interface group's buckets.
+ */
+public class WanGroupHandlerTest {
+
+    private static final ApplicationId APP_ID = new DefaultApplicationId(1, "org.sd_wan.app");
+    private static final DeviceId DEVICE = DeviceId.deviceId("of:0000000000000001");
+    private static final PortNumber WAN1 = PortNumber.portNumber(1);
+    private static final PortNumber WAN2 = PortNumber.portNumber(2);
+    private static final PortNumber WAN3 = PortNumber.portNumber(3);
+
+    private BucketRecordingService groupService;
+    private WanGroupHandler groupHandler;
+    private WanGateway gateway;
+
+    /**
+     * Records the buckets every group modification sets
+     */
+    private static final class BucketRecordingService extends GroupServiceAdapter {
+        final List<List<GroupBucket>> modifications = new ArrayList<>();
+
+        @Override
+        public void setBucketsForGroup(DeviceId deviceId, GroupKey oldCookie, GroupBuckets buckets,
+                                       GroupKey newCookie, ApplicationId appId) {
+            modifications.add(buckets.buckets());
+        }
+    }
+
+    @Before
+    public void setUp() {
+        groupService = new BucketRecordingService();
+        groupHandler = new WanGroupHandler(groupService, APP_ID);
+        gateway = new WanGateway(new NatHandler(APP_ID, DEVICE, new TimeoutPolicy()));
+        addInterface(WAN1);
+        addInterface(WAN2);
+        setUplinkTraffic(WAN2, 40);
+    }
+
+    @Test
+    public void smallWeightChangesNeverRewriteTheBuckets() {
+        groupHandler.setGroupType(DEVICE, gateway, GroupDescription.Type.SELECT);
+        long now = System.currentTimeMillis();
+
+        setUplinkTraffic(WAN2, 50);
+        groupHandler.refresh(DEVICE, gateway, now + 5000);
+        setUplinkTraffic(WAN2, 60);
+        groupHandler.refresh(DEVICE, gateway, now + 2 * WanGroupHandler.MIN_REWEIGHT_INTERVAL_MILLIS);
+        assertEquals(0, groupService.modifications.size());
+    }
+
+    @Test
+    public void largeWeightChangesRewriteTheBucketsOnlyAfterTheInterval() {
+        groupHandler.setGroupType(DEVICE, gateway, GroupDescription.Type.SELECT);
+        long now = System.currentTimeMillis();
+
+        setUplinkTraffic(WAN2, 90);
+        groupHandler.refresh(DEVICE, gateway, now + 5000);
+        assertEquals(0, groupService.modifications.size());
+
+        groupHandler.refresh(DEVICE, gateway, now + WanGroupHandler.MIN_REWEIGHT_INTERVAL_MILLIS);
+        assertEquals(1, groupService.modifications.size());
+        List<GroupBucket> buckets = groupService.modifications.get(0);
+        assertEquals(2, buckets.size());
+        assertEquals(WanGroupHandler.MAX_BUCKET_WEIGHT, buckets.get(0).weight());
+        assertEquals(10, buckets.get(1).weight());
+
+        //The interval starts again from the rewrite
+        setUplinkTraffic(WAN2, 0);
+        groupHandler.refresh(DEVICE, gateway, now + WanGroupHandler.MIN_REWEIGHT_INTERVAL_MILLIS + 5000);
+        assertEquals(1, groupService.modifications.size());
+    }
+
+    @Test
+    public void membershipChangesRewriteTheBucketsAtOnce() {
+        groupHandler.setGroupType(DEVICE, gateway, GroupDescription.Type.SELECT);
+        long now = System.currentTimeMillis();
+
+        gateway.updateInterfaceState(WAN2, false);
+        groupHandler.refresh(DEVICE, gateway, now + 1000);
+        assertEquals(1, groupService.modifications.size());
+        assertEquals(1, groupService.modifications.get(0).size());
+
+        gateway.updateInterfaceState(WAN2, true);
+        groupHandler.refresh(DEVICE, gateway, now + 2000);
+        addInterface(WAN3);
+        groupHandler.refresh(DEVICE, gateway, now + 3000);
+        assertEquals(3, groupService.modifications.size());
+        assertEquals(3, groupService.modifications.get(2).size());
+    }
+
+    @Test
+    public void failoverOrderIsKeptUntilTheInterfacesChange() {
+        groupHandler.setGroupType(DEVICE, gateway, GroupDescription.Type.FAILOVER);
+        long now = System.currentTimeMillis();
+
+        //Neither a reversal of the weights nor a port going down reorders the buckets, the switch skips dead ports
+        setUplinkTraffic(WAN1, 90);
+        setUplinkTraffic(WAN2, 0);
+        gateway.updateInterfaceState(WAN1, false);
+        groupHandler.refresh(DEVICE, gateway, now + 2 * WanGroupHandler.MIN_REWEIGHT_INTERVAL_MILLIS);
+        assertEquals(0, groupService.modifications.size());
+
+        gateway.removeInterface(WAN1);
+        groupHandler.refresh(DEVICE, gateway, now + 2 * WanGroupHandler.MIN_REWEIGHT_INTERVAL_MILLIS + 1000);
+        assertEquals(1, groupService.modifications.size());
+        assertEquals(WAN2, groupService.modifications.get(0).get(0).watchPort());
+    }
+
+    private void addInterface(PortNumber port) {
+        gateway.addInterface(port, new WanInterface("wan" + port.toLong(), MacAddress.valueOf(port.toLong()),
+                Ip4Address.valueOf(0xc0a80002 + (int) (port.toLong() << 8)), 100));
+        gateway.updateInterfaceState(port, true);
+        setUplinkTraffic(port, 0);
+    }
+
+    /**
+     * Sets the traffic an interface sends up its 100 Mb/s uplink, and so its weight
+     */
+    private void setUplinkTraffic(PortNumber port, long megabitsPerSecond) {
+        CurrentPortStatistics stats = new CurrentPortStatistics();
+        stats.txBitsPerSecond = megabitsPerSecond * 1000000L;
+        gateway.updateInterfaceStatistics(port, stats);
+    }
+}
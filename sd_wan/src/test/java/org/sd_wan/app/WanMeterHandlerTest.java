@@ -0,0 +1,244 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sd_wan.app;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.onlab.packet.Ip4Address;
+import org.onlab.packet.MacAddress;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.core.DefaultApplicationId;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.flow.DefaultFlowEntry;
+import org.onosproject.net.flow.DefaultFlowRule;
+import org.onosproject.net.flow.DefaultTrafficSelector;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.FlowEntry;
+import org.onosproject.net.meter.DefaultMeter;
+import org.onosproject.net.meter.Meter;
+import org.onosproject.net.meter.MeterId;
+import org.onosproject.net.meter.MeterListener;
+import org.onosproject.net.meter.MeterRequest;
+import org.onosproject.net.meter.MeterService;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Set of tests for the installation, replacement and draining of the traffic class meters.
+ */
+public class WanMeterHandlerTest {
+
+    private static final ApplicationId APP_ID = new DefaultApplicationId(1, "org.sd_wan.app");
+    private static final DeviceId DEVICE = DeviceId.deviceId("of:0000000000000001");
+    private static final PortNumber WAN1 = PortNumber.portNumber(1);
+    private static final long NOW = 1000000;
+
+    private RecordingMeterService meterService;
+    private WanMeterHandler meterHandler;
+    private RecordingGateway gateway;
+    private WanInterface intf;
+
+    /**
+     * Hands out meter ids in order and records the rate of each meter and the meters withdrawn
+     */
+    private static final class RecordingMeterService implements MeterService {
+        final Map<MeterId, Long> rates = new HashMap<>();
+        final List<MeterId> withdrawn = new ArrayList<>();
+
+        @Override
+        public Meter submit(MeterRequest request) {
+            MeterId id = MeterId.meterId(rates.size() + 1);
+            rates.put(id, request.bands().iterator().next().rate());
+            return DefaultMeter.builder()
+                    .withId(id)
+                    .forDevice(request.deviceId())
+                    .withBands(request.bands())
+                    .build();
+        }
+
+        @Override
+        public void withdraw(MeterRequest request, MeterId meterId) {
+            withdrawn.add(meterId);
+        }
+
+        public Meter getMeter(DeviceId deviceId, MeterId meterId) {
+            return null;
+        }
+
+        public Collection<Meter> getAllMeters() {
+            return Collections.emptyList();
+        }
+
+        public Collection<Meter> getMeters(DeviceId deviceId) {
+            return Collections.emptyList();
+        }
+
+        public MeterId allocateMeterId(DeviceId deviceId) {
+            return null;
+        }
+
+        public void freeMeterId(DeviceId deviceId, MeterId meterId) {
+        }
+
+        public void addListener(MeterListener listener) {
+        }
+
+        public void removeListener(MeterListener listener) {
+        }
+    }
+
+    /**
+     * Records the meters handed to the gateway's interface
+     */
+    private static final class RecordingGateway extends WanGateway {
+        MeterId[] meters;
+
+        RecordingGateway() {
+            super(new NatHandler(APP_ID, DEVICE, new TimeoutPolicy()));
+        }
+
+        @Override
+        public void setInterfaceMeters(PortNumber port, MeterId[] meters) {
+            super.setInterfaceMeters(port, meters);
+            this.meters = meters;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        meterService = new RecordingMeterService();
+        meterHandler = new WanMeterHandler(meterService, APP_ID);
+        gateway = new RecordingGateway();
+        intf = new WanInterface("wan1", MacAddress.valueOf(1), Ip4Address.valueOf("192.168.1.2"), 100);
+        gateway.addInterface(WAN1, intf);
+    }
+
+    @Test
+    public void limitedClassesGetAMeterSizedToTheUplink() {
+        TrafficPolicy policy = policy("voice", "bulk");
+        meterHandler.setRateLimit("bulk", 0.25);
+        meterHandler.refresh(DEVICE, gateway, policy, NOW);
+
+        assertEquals(1, meterService.rates.size());
+        MeterId bulk = gateway.meters[2];
+        assertEquals(25000L, (long) meterService.rates.get(bulk));
+        assertArrayEquals(new MeterId[] {null, null, bulk}, gateway.meters);
+
+        //Refreshing with nothing changed keeps the meter
+        meterHandler.refresh(DEVICE, gateway, policy, NOW + 1000);
+        assertEquals(1, meterService.rates.size());
+        assertEquals(0, meterService.withdrawn.size());
+    }
+
+    @Test
+    public void replacedMeterIsKeptUntilItsSessionsDrain() {
+        TrafficPolicy policy = policy("bulk");
+        meterHandler.setRateLimit("bulk", 0.25);
+        meterHandler.refresh(DEVICE, gateway, policy, NOW);
+        MeterId oldMeter = gateway.meters[1];
+
+        //A bandwidth change resizes the limit, new sessions get a new meter
+        intf.setUplinkBandwidth(200);
+        meterHandler.refresh(DEVICE, gateway, policy, NOW + 1000);
+        MeterId newMeter = gateway.meters[1];
+        assertEquals(50000L, (long) meterService.rates.get(newMeter));
+        assertEquals(0, meterService.withdrawn.size());
+
+        //Still used by a session
+        List<FlowEntry> entries = Collections.singletonList(meteredEntry(oldMeter));
+        meterHandler.releaseRetired(DEVICE, entries, NOW + 2 * WanMeterHandler.RETIRE_GRACE_MILLIS);
+        assertEquals(0, meterService.withdrawn.size());
+
+        //Unused, but rules built with it may still be on their way to the switch
+        meterHandler.releaseRetired(DEVICE, Collections.emptyList(), NOW + 2000);
+        assertEquals(0, meterService.withdrawn.size());
+
+        meterHandler.releaseRetired(DEVICE, Collections.singletonList(meteredEntry(newMeter)),
+                NOW + 2 * WanMeterHandler.RETIRE_GRACE_MILLIS);
+        assertEquals(Collections.singletonList(oldMeter), meterService.withdrawn);
+    }
+
+    @Test
+    public void liftedLimitRetiresTheMeterAndRemovedInterfaceWithdrawsAtOnce() {
+        TrafficPolicy policy = policy("voice", "bulk");
+        meterHandler.setRateLimit("voice", 0.5);
+        meterHandler.setRateLimit("bulk", 0.25);
+        meterHandler.refresh(DEVICE, gateway, policy, NOW);
+        MeterId voice = gateway.meters[1];
+        MeterId bulk = gateway.meters[2];
+
+        meterHandler.setRateLimit("voice", 0);
+        meterHandler.refresh(DEVICE, gateway, policy, NOW + 1000);
+        assertNull(gateway.meters[1]);
+        assertEquals(0, meterService.withdrawn.size());
+
+        //The interface's sessions went with it, so its meter has nothing to drain
+        gateway.removeInterface(WAN1);
+        meterHandler.refresh(DEVICE, gateway, policy, NOW + 2000);
+        assertEquals(Collections.singletonList(bulk), meterService.withdrawn);
+
+        meterHandler.releaseRetired(DEVICE, Collections.emptyList(), NOW + 2 * WanMeterHandler.RETIRE_GRACE_MILLIS);
+        assertEquals(Arrays.asList(bulk, voice), meterService.withdrawn);
+    }
+
+    @Test
+    public void reorderedClassesKeepTheirMeters() {
+        meterHandler.setRateLimit("voice", 0.5);
+        meterHandler.setRateLimit("bulk", 0.25);
+        meterHandler.refresh(DEVICE, gateway, policy("voice", "bulk"), NOW);
+        MeterId voice = gateway.meters[1];
+        MeterId bulk = gateway.meters[2];
+
+        meterHandler.refresh(DEVICE, gateway, policy("bulk", "video", "voice"), NOW + 1000);
+        assertArrayEquals(new MeterId[] {null, bulk, null, voice}, gateway.meters);
+        assertEquals(2, meterService.rates.size());
+        assertEquals(0, meterService.withdrawn.size());
+    }
+
+    private static TrafficPolicy policy(String... classNames) {
+        List<TrafficClass> classes = new ArrayList<>();
+        for (String name : classNames) {
+            classes.add(new TrafficClass(name, TrafficClass.NO_MAX_LATENCY, TrafficClass.NO_MAX_LOSS,
+                    TrafficClass.NO_MIN_BANDWIDTH, Collections.emptyList()));
+        }
+        return new TrafficPolicy(classes, Collections.emptyList());
+    }
+
+    private static FlowEntry meteredEntry(MeterId meter) {
+        return new DefaultFlowEntry(DefaultFlowRule.builder()
+                .forDevice(DEVICE)
+                .fromApp(APP_ID)
+                .withSelector(DefaultTrafficSelector.builder().build())
+                .withTreatment(DefaultTrafficTreatment.builder()
+                        .meter(meter)
+                        .setOutput(WAN1)
+                        .build())
+                .withPriority(10)
+                .makeTemporary(60)
+                .build(), FlowEntry.FlowEntryState.ADDED, 1, 1, 1);
+    }
+}
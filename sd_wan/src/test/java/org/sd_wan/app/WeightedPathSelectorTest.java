@@ -0,0 +1,115 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sd_wan.app;
+
+import org.junit.Test;
+import org.onlab.packet.Ip4Address;
+import org.onlab.packet.MacAddress;
+import org.onosproject.net.PortNumber;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Set of tests for the capacity weighted path selector.
+ */
+public class WeightedPathSelectorTest {
+
+    private static final PortNumber WAN1 = PortNumber.portNumber(1);
+    private static final PortNumber WAN2 = PortNumber.portNumber(2);
+    private static final PortNumber WAN3 = PortNumber.portNumber(3);
+
+    private static final int DRAWS = 100000;
+
+    @Test
+    public void spreadsFlowsInProportionToTheWeights() {
+        WeightedPathSelector selector = new WeightedPathSelector();
+        Map<PortNumber, Long> weights = new HashMap<>();
+        weights.put(WAN1, 10L);
+        weights.put(WAN2, 30L);
+        weights.put(WAN3, 60L);
+        selector.update(interfaces(true, true, true), weights, Collections.emptyMap());
+
+        Map<PortNumber, Integer> counts = draw(selector);
+        assertEquals(0.1, counts.get(WAN1) / (double) DRAWS, 0.01);
+        assertEquals(0.3, counts.get(WAN2) / (double) DRAWS, 0.01);
+        assertEquals(0.6, counts.get(WAN3) / (double) DRAWS, 0.01);
+    }
+
+    @Test
+    public void neverSelectsInterfacesThatAreDownOrHaveNoWeight() {
+        WeightedPathSelector selector = new WeightedPathSelector();
+        Map<PortNumber, Long> weights = new HashMap<>();
+        weights.put(WAN1, 50L);
+        weights.put(WAN2, 0L);
+        weights.put(WAN3, 50L);
+        selector.update(interfaces(false, true, true), weights, Collections.emptyMap());
+
+        Map<PortNumber, Integer> counts = draw(selector);
+        assertEquals(0, (int) counts.getOrDefault(WAN1, 0));
+        assertEquals(0, (int) counts.getOrDefault(WAN2, 0));
+        assertEquals(DRAWS, (int) counts.get(WAN3));
+    }
+
+    @Test
+    public void splitsEvenlyWhenNoInterfaceHasWeight() {
+        WeightedPathSelector selector = new WeightedPathSelector();
+        Map<PortNumber, Long> weights = new HashMap<>();
+        weights.put(WAN1, 0L);
+        weights.put(WAN2, 0L);
+        selector.update(interfaces(true, true, false), weights, Collections.emptyMap());
+
+        Map<PortNumber, Integer> counts = draw(selector);
+        assertEquals(0.5, counts.get(WAN1) / (double) DRAWS, 0.01);
+        assertEquals(0.5, counts.get(WAN2) / (double) DRAWS, 0.01);
+        assertEquals(0, (int) counts.getOrDefault(WAN3, 0));
+    }
+
+    @Test
+    public void selectsNothingWhenEveryInterfaceIsDown() {
+        WeightedPathSelector selector = new WeightedPathSelector();
+        assertNull(selector.select(1));
+
+        Map<PortNumber, Long> weights = new HashMap<>();
+        weights.put(WAN1, 100L);
+        selector.update(interfaces(false, false, false), weights, Collections.emptyMap());
+        assertNull(selector.select(1));
+    }
+
+    private static Map<PortNumber, Integer> draw(PathSelector selector) {
+        Map<PortNumber, Integer> counts = new HashMap<>();
+        for (int i = 0; i < DRAWS; i++) {
+            counts.merge(selector.select(i), 1, Integer::sum);
+        }
+        return counts;
+    }
+
+    private static Map<PortNumber, WanInterface> interfaces(boolean... up) {
+        Map<PortNumber, WanInterface> interfaces = new TreeMap<>((a, b) -> Long.compare(a.toLong(), b.toLong()));
+        for (int i = 0; i < up.length; i++) {
+            WanInterface intf = new WanInterface("wan" + (i + 1), MacAddress.valueOf(i + 1L),
+                    Ip4Address.valueOf(0xc0a80002 + (i << 8)), 100);
+            intf.setState(up[i]);
+            interfaces.put(PortNumber.portNumber(i + 1), intf);
+        }
+        return interfaces;
+    }
+}